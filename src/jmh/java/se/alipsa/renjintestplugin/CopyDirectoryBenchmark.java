@@ -0,0 +1,88 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying a synthetic test tree (10 directories, R files and data files) with string replacement, either
+ * all of it or, as {@link TestSourceSync} does on a rebuild, only what changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyDirectoryBenchmark {
+
+  @Param({"100", "1000"})
+  public int fileCount;
+
+  private File dir;
+  private File sourceDir;
+  private File targetDir;
+  private File syncDir;
+  private Properties props;
+  private TestSourceSync sync;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("copy-bench").toFile();
+    sourceDir = new File(dir, "source");
+    targetDir = new File(dir, "target");
+    syncDir = new File(dir, "sync");
+    props = new Properties();
+    props.setProperty("library(xmlr)", "library('se.alipsa:xmlr')");
+    props.setProperty("library(foo)", "library('se.alipsa:foo')");
+    StringBuilder content = new StringBuilder("library(xmlr)\nlibrary(foo)\n");
+    for (int i = 0; i < 100; i++) {
+      content.append("x").append(i).append(" <- mean(c(1, 2, 3)) + ").append(i).append('\n');
+    }
+    for (int i = 0; i < fileCount; i++) {
+      File subDir = new File(sourceDir, "dir" + (i % 10));
+      if (i % 5 == 0) {
+        FileUtils.write(new File(subDir, "data" + i + ".csv"), "a,b\n1,2\n", StandardCharsets.UTF_8);
+      } else {
+        FileUtils.write(new File(subDir, "Test" + i + ".R"), content.toString(), StandardCharsets.UTF_8);
+      }
+    }
+    sync = new TestSourceSync(syncDir, RunnerSettings.EXTENSIONS, props);
+    sync.addDirectory(sourceDir, false);
+    sync.sync();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public void copyDirectory() throws IOException {
+    StringReplacementFileCopier.copyDirectory(sourceDir, targetDir, new SuffixFileFilter(".R"), props);
+  }
+
+  @Benchmark
+  public void syncUnchanged() throws IOException {
+    sync.sync();
+  }
+}
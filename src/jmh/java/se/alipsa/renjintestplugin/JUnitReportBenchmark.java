@@ -0,0 +1,89 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Writing the JUnit XML reports and the summary for a large number of results (100 results per test file,
+ * one in ten is a failure).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JUnitReportBenchmark {
+
+  @Param({"10000"})
+  public int resultCount;
+
+  private File dir;
+  private File reportDir;
+  private List<TestResult> results;
+  private Map<File, List<TestResult>> resultsByFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("report-bench").toFile();
+    reportDir = new File(dir, "reports");
+    reportDir.mkdirs();
+    results = new ArrayList<>();
+    for (int i = 0; i < resultCount; i++) {
+      TestResult result = new TestResult(new File(dir, "tests/Test" + (i / 100) + ".R"));
+      result.setTestMethod("test.case" + i + "()");
+      result.setStartTime(1_000_000L + i);
+      result.setEndTime(1_000_000L + i + 3);
+      result.setDurationNanos(3_123_456L);
+      result.setCpuNanos(2_000_000L);
+      result.setAllocatedBytes(1024L * i);
+      if (i % 10 == 0) {
+        result.setResult(TestResult.OutCome.FAILURE);
+        result.setIssue("EvalException executing test Test" + (i / 100) + ".R: test.case" + i + "()");
+        result.setError(new RuntimeException("assertThat(x, equalTo(" + i + ")) is not TRUE"));
+      } else {
+        result.setResult(TestResult.OutCome.SUCCESS);
+      }
+      results.add(result);
+    }
+    resultsByFile = results.stream().collect(Collectors.groupingBy(TestResult::getTestFile));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public void writeReports() {
+    JUnitReportWriter writer = new JUnitReportWriter(reportDir, dir);
+    resultsByFile.forEach(writer::write);
+    writer.close();
+  }
+
+  @Benchmark
+  public void writeSummary() {
+    TestSummaryWriter.write(reportDir, dir, results, new RunStatistics(), "");
+  }
+}
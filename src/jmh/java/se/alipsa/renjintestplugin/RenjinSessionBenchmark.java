@@ -0,0 +1,93 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.renjin.eval.Session;
+import org.renjin.eval.SessionBuilder;
+import org.renjin.script.RenjinScriptEngine;
+import org.renjin.script.RenjinScriptEngineFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The fixed costs of running R tests: creating a Session, getting a script engine for it and
+ * running a (small) hamcrest test file in a session template.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenjinSessionBenchmark {
+
+  private final RenjinScriptEngineFactory factory = new RenjinScriptEngineFactory();
+  private File dir;
+  private File testFile;
+  private Session session;
+  private RenjinTestRunner runner;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("session-bench").toFile();
+    testFile = new File(dir, "HamcrestTest.R");
+    FileUtils.write(testFile, "library(hamcrest)\n"
+        + "x <- c(1, 2, 3)\n"
+        + "assertThat(mean(x), equalTo(2))\n"
+        + "test.sum <- function() {\n"
+        + "  assertThat(sum(x), equalTo(6))\n"
+        + "}\n"
+        + "test.paste <- function() {\n"
+        + "  assertThat(paste('a', 'b'), identicalTo('a b'))\n"
+        + "}\n", StandardCharsets.UTF_8);
+    session = newSession();
+    RunnerSettings settings = new RunnerSettings();
+    settings.setTestOutputDirectory(dir);
+    settings.setPreloadPackages(Collections.singletonList("hamcrest"));
+    runner = RenjinTestRunner.create(getClass().getClassLoader(), settings, new TestLog(null, true));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public Session buildSession() {
+    return newSession();
+  }
+
+  @Benchmark
+  public RenjinScriptEngine getScriptEngine() {
+    return factory.getScriptEngine(session);
+  }
+
+  @Benchmark
+  public List<TestResult> runHamcrestTestFile() throws Exception {
+    return runner.runTestFile(testFile, new TestLog(null, true));
+  }
+
+  private Session newSession() {
+    return new SessionBuilder()
+        .withDefaultPackages()
+        .setClassLoader(getClass().getClassLoader())
+        .build();
+  }
+}
@@ -0,0 +1,93 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single pass streaming replacement with the previous line by line, key by key replacement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringReplacementBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int keyCount;
+
+  @Param({"10000"})
+  public int lineCount;
+
+  private File dir;
+  private File sourceFile;
+  private File targetFile;
+  private Properties props;
+  private StringReplacer replacer;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("replacement-bench").toFile();
+    sourceFile = new File(dir, "source.R");
+    targetFile = new File(dir, "target.R");
+    props = new Properties();
+    for (int i = 0; i < keyCount; i++) {
+      props.setProperty("library(pkg" + i + ")", "library('se.alipsa:pkg" + i + "')");
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lineCount; i++) {
+      if (i % 10 == 0) {
+        sb.append("library(pkg").append(i % keyCount).append(")\n");
+      } else {
+        sb.append("x").append(i).append(" <- mean(c(1, 2, 3)) + ").append(i).append('\n');
+      }
+    }
+    FileUtils.write(sourceFile, sb.toString(), StandardCharsets.UTF_8);
+    replacer = StringReplacer.of(props);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public void streaming() throws IOException {
+    StringReplacementFileCopier.copyFile(sourceFile, targetFile, replacer);
+  }
+
+  /**
+   * The implementation before the streaming replacer (including appending the line once per key).
+   */
+  @Benchmark
+  public void lineByLine() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    Files.lines(sourceFile.toPath(), StandardCharsets.UTF_8).forEach(line -> {
+      for (String key : props.stringPropertyNames()) {
+        String modLine = line.replace(key, props.getProperty(key));
+        sb.append(modLine).append(System.lineSeparator());
+      }
+    });
+    FileUtils.write(targetFile, sb.toString(), StandardCharsets.UTF_8);
+  }
+}
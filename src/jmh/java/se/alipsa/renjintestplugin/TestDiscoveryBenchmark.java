@@ -0,0 +1,58 @@
+package se.alipsa.renjintestplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.renjin.eval.Session;
+import org.renjin.eval.SessionBuilder;
+import org.renjin.script.RenjinScriptEngine;
+import org.renjin.script.RenjinScriptEngineFactory;
+import org.renjin.sexp.Symbol;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the test.* functions in an environment with many variables, one in a hundred is a test function.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TestDiscoveryBenchmark {
+
+  @Param({"100", "10000"})
+  public int symbolCount;
+
+  private Session session;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    session = new SessionBuilder()
+        .withDefaultPackages()
+        .setClassLoader(getClass().getClassLoader())
+        .build();
+    RenjinScriptEngine engine = new RenjinScriptEngineFactory().getScriptEngine(session);
+    engine.eval("for (i in seq_len(" + symbolCount + ")) {\n"
+        + "  if (i %% 100 == 0) assign(paste0('test.f', i), function() NULL)\n"
+        + "  else assign(paste0('x', i), i)\n"
+        + "}\n"
+        + "rm(i)\n");
+  }
+
+  @Benchmark
+  public List<Symbol> findTestFunctions() {
+    return RenjinTestRunner.findTestFunctions(session.getTopLevelContext(), session.getGlobalEnvironment());
+  }
+}
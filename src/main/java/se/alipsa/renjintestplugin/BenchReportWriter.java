@@ -0,0 +1,153 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes bench results as JSON and CSV and reads the mean time per operation back from a CSV file
+ * (e.g. the results of a previous run) to compare against.
+ */
+public final class BenchReportWriter {
+
+  static final String JSON_FILE_NAME = "renjin-bench-results.json";
+  static final String CSV_FILE_NAME = "renjin-bench-results.csv";
+
+  private static final String[] CSV_HEADER = {"file", "function", "meanNanosPerOp", "stdDevNanosPerOp",
+      "minNanosPerOp", "p50NanosPerOp", "p90NanosPerOp", "p99NanosPerOp", "maxNanosPerOp", "allocatedBytesPerOp",
+      "iterations", "operations", "error"};
+
+  private BenchReportWriter() {
+    // static helpers only
+  }
+
+  public static void writeJson(File outFile, List<BenchResult> results) throws IOException {
+    try (Writer out = Files.newBufferedWriter(outFile.toPath(), StandardCharsets.UTF_8)) {
+      out.write("[");
+      String separator = "\n";
+      for (BenchResult res : results) {
+        out.write(separator);
+        separator = ",\n";
+        out.write("  {\"file\": " + Json.quote(res.getBenchFile().getName()));
+        out.write(", \"function\": " + Json.quote(res.getBenchFunction()));
+        out.write(", \"meanNanosPerOp\": " + number(res.getMean()));
+        out.write(", \"stdDevNanosPerOp\": " + number(res.getStdDev()));
+        out.write(", \"minNanosPerOp\": " + number(res.getMin()));
+        out.write(", \"p50NanosPerOp\": " + number(res.getPercentile(50)));
+        out.write(", \"p90NanosPerOp\": " + number(res.getPercentile(90)));
+        out.write(", \"p99NanosPerOp\": " + number(res.getPercentile(99)));
+        out.write(", \"maxNanosPerOp\": " + number(res.getMax()));
+        out.write(", \"allocatedBytesPerOp\": " + number(res.getAllocatedBytesPerOp()));
+        out.write(", \"iterations\": " + res.getNanosPerOp().length);
+        out.write(", \"operations\": " + res.getOperations());
+        out.write(", \"error\": " + Json.quote(res.getError() == null ? null : TestResultPrinter.formatMessage(res.getError())));
+        out.write("}");
+      }
+      out.write("\n]\n");
+    }
+  }
+
+  public static void writeCsv(File outFile, List<BenchResult> results) throws IOException {
+    try (Writer out = Files.newBufferedWriter(outFile.toPath(), StandardCharsets.UTF_8)) {
+      out.write(String.join(",", CSV_HEADER));
+      out.write("\n");
+      for (BenchResult res : results) {
+        String[] row = {
+            res.getBenchFile().getName(), res.getBenchFunction(), number(res.getMean()), number(res.getStdDev()),
+            number(res.getMin()), number(res.getPercentile(50)), number(res.getPercentile(90)),
+            number(res.getPercentile(99)), number(res.getMax()), number(res.getAllocatedBytesPerOp()),
+            String.valueOf(res.getNanosPerOp().length), String.valueOf(res.getOperations()),
+            res.getError() == null ? "" : TestResultPrinter.formatMessage(res.getError())
+        };
+        for (int i = 0; i < row.length; i++) {
+          if (i > 0) {
+            out.write(",");
+          }
+          out.write(csvField(row[i]));
+        }
+        out.write("\n");
+      }
+    }
+  }
+
+  /**
+   * @param csvFile a CSV file written by {@link #writeCsv(File, List)}
+   * @return the mean nanos per operation by {@link BenchResult#getName()}
+   * @throws IOException if the file could not be read
+   */
+  public static Map<String, Double> readMeans(File csvFile) throws IOException {
+    Map<String, Double> means = new HashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(csvFile.toPath(), StandardCharsets.UTF_8)) {
+      String line = reader.readLine();
+      while ((line = reader.readLine()) != null) {
+        List<String> fields = parseCsvLine(line);
+        if (fields.size() > 2 && !fields.get(2).isEmpty() && !"null".equals(fields.get(2))) {
+          means.put(fields.get(0) + ":" + fields.get(1), Double.parseDouble(fields.get(2)));
+        }
+      }
+    }
+    return means;
+  }
+
+  /**
+   * @return the value with at most 3 decimals
+   */
+  static String format(double value) {
+    DecimalFormatSymbols otherSymbols = new DecimalFormatSymbols(Locale.getDefault());
+    otherSymbols.setDecimalSeparator('.');
+    otherSymbols.setGroupingSeparator(',');
+    return new DecimalFormat("###.###", otherSymbols).format(value);
+  }
+
+  private static String number(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return "null";
+    }
+    return format(value);
+  }
+
+  private static String csvField(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"").replace("\n", " ") + '"';
+  }
+
+  static List<String> parseCsvLine(String line) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+}
@@ -0,0 +1,126 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * The outcome of running one bench.* function: the time per operation of each measurement iteration
+ * and the bytes allocated per operation.
+ */
+public class BenchResult {
+
+  private final File benchFile;
+  private final String benchFunction;
+  private double[] nanosPerOp = new double[0];
+  private long operations;
+  private double allocatedBytesPerOp = -1;
+  private Throwable error;
+
+  public BenchResult(File benchFile, String benchFunction) {
+    this.benchFile = benchFile;
+    this.benchFunction = benchFunction;
+  }
+
+  public File getBenchFile() {
+    return benchFile;
+  }
+
+  public String getBenchFunction() {
+    return benchFunction;
+  }
+
+  /**
+   * @return the file name and function name, used to match a result against the baseline
+   */
+  public String getName() {
+    return benchFile.getName() + ":" + benchFunction;
+  }
+
+  /**
+   * @return the average time per operation (call of the bench function) of each measurement iteration
+   */
+  public double[] getNanosPerOp() {
+    return nanosPerOp;
+  }
+
+  public void setNanosPerOp(double[] nanosPerOp) {
+    this.nanosPerOp = nanosPerOp.clone();
+    Arrays.sort(this.nanosPerOp);
+  }
+
+  /**
+   * @return the total number of operations in the measurement iterations
+   */
+  public long getOperations() {
+    return operations;
+  }
+
+  public void setOperations(long operations) {
+    this.operations = operations;
+  }
+
+  /**
+   * @return the average number of bytes allocated per operation or -1 if not measured
+   */
+  public double getAllocatedBytesPerOp() {
+    return allocatedBytesPerOp;
+  }
+
+  public void setAllocatedBytesPerOp(double allocatedBytesPerOp) {
+    this.allocatedBytesPerOp = allocatedBytesPerOp;
+  }
+
+  /**
+   * @return the error thrown by the bench function or null if it ran fine
+   */
+  public Throwable getError() {
+    return error;
+  }
+
+  public void setError(Throwable error) {
+    this.error = error;
+  }
+
+  public double getMean() {
+    if (nanosPerOp.length == 0) {
+      return Double.NaN;
+    }
+    double sum = 0;
+    for (double value : nanosPerOp) {
+      sum += value;
+    }
+    return sum / nanosPerOp.length;
+  }
+
+  public double getStdDev() {
+    if (nanosPerOp.length < 2) {
+      return 0;
+    }
+    double mean = getMean();
+    double sum = 0;
+    for (double value : nanosPerOp) {
+      sum += (value - mean) * (value - mean);
+    }
+    return Math.sqrt(sum / (nanosPerOp.length - 1));
+  }
+
+  /**
+   * @param percentile the percentile, 0 - 100
+   * @return the nearest rank percentile of the time per operation of the measurement iterations
+   */
+  public double getPercentile(double percentile) {
+    if (nanosPerOp.length == 0) {
+      return Double.NaN;
+    }
+    int rank = (int) Math.ceil(percentile / 100.0 * nanosPerOp.length);
+    return nanosPerOp[Math.max(0, Math.min(nanosPerOp.length - 1, rank - 1))];
+  }
+
+  public double getMin() {
+    return nanosPerOp.length == 0 ? Double.NaN : nanosPerOp[0];
+  }
+
+  public double getMax() {
+    return nanosPerOp.length == 0 ? Double.NaN : nanosPerOp[nanosPerOp.length - 1];
+  }
+}
@@ -0,0 +1,41 @@
+package se.alipsa.renjintestplugin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * A {@link TestRunListener} that logs one line per test file as it finishes, with how far the run has come, e.g.
+ * <pre>
+ * [12/120] SumTest.R: 4 tests, 1 failed (230 ms)
+ * </pre>
+ */
+public class ConsoleProgressReporter implements TestRunListener {
+
+  private static final Logger logger = LoggerFactory.getLogger(ConsoleProgressReporter.class);
+
+  private TestRunInfo run;
+  private int finishedCount;
+
+  @Override
+  public void runStarted(TestRunInfo run) {
+    this.run = run;
+    finishedCount = 0;
+  }
+
+  @Override
+  public void fileFinished(File testFile, List<TestResult> results) {
+    finishedCount++;
+    long failures = results.stream().filter(TestResult::isFailure).count();
+    long millis = results.stream().mapToLong(TestResult::getDurationNanos).sum() / 1_000_000;
+    if (failures > 0) {
+      logger.warn("[{}/{}] {}: {} tests, {} failed ({} ms)", finishedCount, run.getTestFiles().size(),
+          run.relativePath(testFile), results.size(), failures, millis);
+    } else {
+      logger.info("[{}/{}] {}: {} tests ({} ms)", finishedCount, run.getTestFiles().size(),
+          run.relativePath(testFile), results.size(), millis);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A SHA-256 hash built up from strings and file contents, used to detect whether some input has changed.
+ */
+public class ContentHash {
+
+  private final MessageDigest digest;
+
+  public ContentHash() {
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  public ContentHash add(String value) {
+    if (value != null) {
+      digest.update(value.getBytes(StandardCharsets.UTF_8));
+    }
+    digest.update((byte) 0);
+    return this;
+  }
+
+  public ContentHash add(long value) {
+    return add(Long.toString(value));
+  }
+
+  public ContentHash addFile(File file) throws IOException {
+    byte[] buffer = new byte[8192];
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      int len;
+      while ((len = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, len);
+      }
+    }
+    digest.update((byte) 0);
+    return this;
+  }
+
+  /**
+   * Add all files in a directory (recursively) in a predictable order.
+   *
+   * @param dir the directory, nothing is added if it does not exist
+   * @param content if true the content of each file is added, otherwise only the size and last modified time
+   * @return this
+   * @throws IOException if some file could not be read
+   */
+  public ContentHash addDirectory(File dir, boolean content) throws IOException {
+    if (dir == null || !dir.isDirectory()) {
+      return this;
+    }
+    List<File> files = new ArrayList<>(FileUtils.listFiles(dir, (String[]) null, true));
+    Collections.sort(files);
+    int prefixLength = dir.getAbsolutePath().length() + 1;
+    for (File file : files) {
+      add(file.getAbsolutePath().substring(prefixLength));
+      if (content) {
+        addFile(file);
+      } else {
+        add(file.length()).add(file.lastModified());
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Add the elements of a classpath: the size and last modified time of a jar, and the files of a directory
+   * (e.g. target/classes) so that recompiled classes or changed resources change the hash.
+   *
+   * @param elements the classpath elements
+   * @param content if true the content of each file in a directory is added, otherwise only the size and last
+   * modified time
+   * @return this
+   * @throws IOException if some file could not be read
+   */
+  public ContentHash addClasspath(List<String> elements, boolean content) throws IOException {
+    for (String element : elements) {
+      File file = new File(element);
+      add(element);
+      if (file.isFile()) {
+        add(file.length()).add(file.lastModified());
+      } else {
+        addDirectory(file, content);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * @return the hash as a hex string, the ContentHash cannot be used after this
+   */
+  public String finish() {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  public static String of(File file) throws IOException {
+    return new ContentHash().addFile(file).finish();
+  }
+}
@@ -0,0 +1,210 @@
+package se.alipsa.renjintestplugin;
+
+import org.renjin.sexp.AttributeMap;
+import org.renjin.sexp.DoubleVector;
+import org.renjin.sexp.IntSequence;
+import org.renjin.sexp.IntVector;
+import org.renjin.sexp.ListVector;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringArrayVector;
+import org.renjin.sexp.StringVector;
+import org.renjin.sexp.Symbols;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read-only data set shared by all sessions in the JVM, see {@link FixtureStore}. The integer and numeric columns
+ * are read straight from a memory-mapped column file, so they are neither copied onto the heap nor copied per
+ * session (and forks reading the same column file share the pages). The character columns are read onto the heap
+ * once. Renjin vectors are copied on modification, so a test changing the data frame gets its own copy and the
+ * fixture seen by the other tests stays the same.
+ */
+public class Fixture {
+
+  /** The version of the column file format and of the conversion, column files of other versions are not used */
+  static final int VERSION = 2;
+  static final byte INTEGER = 'I';
+  static final byte NUMERIC = 'D';
+  static final byte CHARACTER = 'S';
+
+  private final String name;
+  private final int rowCount;
+  private final List<String> columnNames;
+  private final SEXP dataFrame;
+
+  private Fixture(String name, int rowCount, List<String> columnNames, SEXP dataFrame) {
+    this.name = name;
+    this.rowCount = rowCount;
+    this.columnNames = columnNames;
+    this.dataFrame = dataFrame;
+  }
+
+  /**
+   * Map a column file written by {@link FixtureStore}.
+   *
+   * @param name the name the fixture is bound to in the sessions
+   * @param columnFile the column file
+   * @return the fixture
+   * @throws IOException if the column file could not be read
+   */
+  static Fixture map(String name, File columnFile) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(columnFile.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(columnFile + " is too large to be mapped");
+      }
+      // the mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.getInt() != VERSION) {
+      throw new IOException(columnFile + " was written by another version");
+    }
+    int rowCount = buffer.getInt();
+    int columnCount = buffer.getInt();
+    List<String> columnNames = new ArrayList<>();
+    ListVector.NamedBuilder builder = ListVector.newNamedBuilder();
+    for (int i = 0; i < columnCount; i++) {
+      String columnName = readString(buffer);
+      byte type = buffer.get();
+      columnNames.add(columnName);
+      builder.add(columnName, readColumn(buffer, type, rowCount));
+    }
+    builder.setAttribute(Symbols.CLASS, StringVector.valueOf("data.frame"));
+    builder.setAttribute(Symbols.ROW_NAMES, new IntSequence(1, 1, rowCount));
+    return new Fixture(name, rowCount, Collections.unmodifiableList(columnNames), builder.build());
+  }
+
+  private static SEXP readColumn(ByteBuffer buffer, byte type, int rowCount) throws IOException {
+    if (type == CHARACTER) {
+      String[] values = new String[rowCount];
+      for (int row = 0; row < rowCount; row++) {
+        values[row] = readString(buffer);
+      }
+      return new StringArrayVector(values);
+    }
+    ByteBuffer column = buffer.slice();
+    if (type == INTEGER) {
+      buffer.position(buffer.position() + rowCount * Integer.BYTES);
+      return new MappedIntVector(column.asIntBuffer(), rowCount, AttributeMap.EMPTY);
+    }
+    if (type == NUMERIC) {
+      buffer.position(buffer.position() + rowCount * Double.BYTES);
+      return new MappedDoubleVector(column.asDoubleBuffer(), rowCount, AttributeMap.EMPTY);
+    }
+    throw new IOException("Unknown column type " + (char) type);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the name the fixture is bound to in the sessions
+   */
+  public String getName() {
+    return name;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public List<String> getColumnNames() {
+    return columnNames;
+  }
+
+  /**
+   * @return the fixture as a data frame, the same instance for all sessions
+   */
+  public SEXP getDataFrame() {
+    return dataFrame;
+  }
+
+  /**
+   * An integer column read from a memory-mapped column file. Absolute reads from the buffer do not change its
+   * position, so any number of sessions can read it at the same time.
+   */
+  static class MappedIntVector extends IntVector {
+
+    private final IntBuffer values;
+    private final int length;
+
+    MappedIntVector(IntBuffer values, int length, AttributeMap attributes) {
+      super(attributes);
+      this.values = values;
+      this.length = length;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public int getElementAsInt(int index) {
+      return values.get(index);
+    }
+
+    @Override
+    public boolean isConstantAccessTime() {
+      return true;
+    }
+
+    @Override
+    protected SEXP cloneWithNewAttributes(AttributeMap attributes) {
+      return new MappedIntVector(values, length, attributes);
+    }
+  }
+
+  /**
+   * A numeric column read from a memory-mapped column file, see {@link MappedIntVector}.
+   */
+  static class MappedDoubleVector extends DoubleVector {
+
+    private final DoubleBuffer values;
+    private final int length;
+
+    MappedDoubleVector(DoubleBuffer values, int length, AttributeMap attributes) {
+      super(attributes);
+      this.values = values;
+      this.length = length;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public double getElementAsDouble(int index) {
+      return values.get(index);
+    }
+
+    @Override
+    public boolean isConstantAccessTime() {
+      return true;
+    }
+
+    @Override
+    protected SEXP cloneWithNewAttributes(AttributeMap attributes) {
+      return new MappedDoubleVector(values, length, attributes);
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FilenameUtils;
+import org.renjin.sexp.DoubleVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Loads the fixtures (read-only csv data sets shared by all test files) once per JVM. The first time a csv file is
+ * used it is converted to a column file in the cache directory, named by a hash of the path, size and modification
+ * time of the csv file (hashing the content of a large file takes about as long as reading it). From then on the
+ * column file is memory-mapped (see {@link Fixture}). The column files are written to a temporary file and moved in
+ * place, so several JVMs (forks) can share the cache directory.
+ * <p>
+ * The csv files are read like read.csv(file, stringsAsFactors = FALSE) reads them: the first line holds the column
+ * names (made syntactically valid), a column where all values are integers becomes an integer column, one where all
+ * values are numbers a numeric column and any other column a character column. NA is a missing value in all
+ * columns, an empty field in integer and numeric columns. A quoted "NA" is the string NA.</p>
+ */
+public final class FixtureStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(FixtureStore.class);
+  private static final Map<String, Fixture> fixtures = new HashMap<>();
+  private static final Pattern INTEGER = Pattern.compile("[-+]?\\d{1,10}");
+  private static final Pattern INVALID_NAME_CHARS = Pattern.compile("[^\\w.]");
+
+  private FixtureStore() {
+    // static helpers only
+  }
+
+  /**
+   * @param csvFile the csv file
+   * @param cacheDirectory where to keep the column files
+   * @param log where to write how long converting the csv file took
+   * @return the fixture, loaded if this JVM has not loaded it before
+   * @throws IOException if the csv file could not be read or the column file could not be written or read
+   */
+  public static synchronized Fixture load(File csvFile, File cacheDirectory, TestLog log) throws IOException {
+    String key = new ContentHash()
+        .add(Fixture.VERSION)
+        .add(csvFile.getAbsolutePath())
+        .add(csvFile.length())
+        .add(csvFile.lastModified())
+        .finish();
+    Fixture fixture = fixtures.get(key);
+    if (fixture != null) {
+      return fixture;
+    }
+    File columnFile = new File(cacheDirectory, key + ".columns");
+    if (!columnFile.exists()) {
+      long start = System.nanoTime();
+      cacheDirectory.mkdirs();
+      File tmpFile = File.createTempFile(key, ".tmp", cacheDirectory);
+      try {
+        convert(csvFile, tmpFile);
+        Files.move(tmpFile.toPath(), columnFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmpFile.toPath());
+      }
+      log.info("Converted fixture {} in {} ms", csvFile.getName(),
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+    fixture = Fixture.map(fixtureName(csvFile), columnFile);
+    logger.debug("Mapped fixture {} ({} rows) from {}", fixture.getName(), fixture.getRowCount(), columnFile);
+    fixtures.put(key, fixture);
+    return fixture;
+  }
+
+  /**
+   * Drop all loaded fixtures.
+   */
+  public static synchronized void clear() {
+    fixtures.clear();
+  }
+
+  /**
+   * @return the name a fixture is bound to in the sessions, the valid R name of the file name without extension
+   */
+  static String fixtureName(File csvFile) {
+    return validName(FilenameUtils.getBaseName(csvFile.getName()));
+  }
+
+  /**
+   * Convert a csv file to a column file: version, row count, column count, then for each column its name, its
+   * type and its values (4 bytes per integer, 8 bytes per number or a length prefixed UTF-8 string, length -1
+   * meaning NA).
+   */
+  static void convert(File csvFile, File columnFile) throws IOException {
+    List<String> names;
+    List<Byte> types = new ArrayList<>();
+    int rowCount = 0;
+    // the first pass finds the column types and the row count so that the second can fill arrays
+    try (CsvReader reader = new CsvReader(Files.newBufferedReader(csvFile.toPath(), StandardCharsets.UTF_8))) {
+      names = reader.readRecord();
+      if (names == null) {
+        throw new IOException(csvFile + " is empty");
+      }
+      for (int i = 0; i < names.size(); i++) {
+        types.add(Fixture.INTEGER);
+      }
+      List<String> record;
+      while ((record = reader.readRecord()) != null) {
+        checkFieldCount(csvFile, names, record, rowCount);
+        for (int i = 0; i < record.size(); i++) {
+          types.set(i, widen(types.get(i), record.get(i), reader.isQuoted(i)));
+        }
+        rowCount++;
+      }
+    }
+    Object[] columns = new Object[names.size()];
+    for (int i = 0; i < columns.length; i++) {
+      byte type = types.get(i);
+      columns[i] = type == Fixture.INTEGER ? new int[rowCount]
+          : type == Fixture.NUMERIC ? new double[rowCount] : new String[rowCount];
+    }
+    try (CsvReader reader = new CsvReader(Files.newBufferedReader(csvFile.toPath(), StandardCharsets.UTF_8))) {
+      reader.readRecord();
+      for (int row = 0; row < rowCount; row++) {
+        List<String> record = reader.readRecord();
+        for (int i = 0; i < columns.length; i++) {
+          String value = record.get(i);
+          boolean quoted = reader.isQuoted(i);
+          if (columns[i] instanceof int[]) {
+            ((int[]) columns[i])[row] = isNumericNA(value, quoted) ? Integer.MIN_VALUE : Integer.parseInt(value.trim());
+          } else if (columns[i] instanceof double[]) {
+            ((double[]) columns[i])[row] = isNumericNA(value, quoted) ? DoubleVector.NA : parseNumber(value);
+          } else {
+            ((String[]) columns[i])[row] = isNA(value, quoted) ? null : value;
+          }
+        }
+      }
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(columnFile.toPath())))) {
+      out.writeInt(Fixture.VERSION);
+      out.writeInt(rowCount);
+      out.writeInt(columns.length);
+      for (int i = 0; i < columns.length; i++) {
+        ForkChannel.writeString(out, validName(names.get(i)));
+        out.writeByte(types.get(i));
+        if (columns[i] instanceof int[]) {
+          for (int value : (int[]) columns[i]) {
+            out.writeInt(value);
+          }
+        } else if (columns[i] instanceof double[]) {
+          for (double value : (double[]) columns[i]) {
+            out.writeDouble(value);
+          }
+        } else {
+          for (String value : (String[]) columns[i]) {
+            ForkChannel.writeString(out, value);
+          }
+        }
+      }
+    }
+  }
+
+  private static void checkFieldCount(File csvFile, List<String> names, List<String> record, int row) throws IOException {
+    if (record.size() != names.size()) {
+      throw new IOException(csvFile + ": line " + (row + 2) + " has " + record.size() + " fields, expected "
+          + names.size());
+    }
+  }
+
+  /**
+   * @return the narrowest column type that can hold both the values seen so far and the value
+   */
+  private static byte widen(byte type, String value, boolean quoted) {
+    if (type == Fixture.CHARACTER || isNumericNA(value, quoted)) {
+      return type;
+    }
+    if (type == Fixture.INTEGER && INTEGER.matcher(value.trim()).matches()) {
+      long number = Long.parseLong(value.trim());
+      // Integer.MIN_VALUE is NA in R
+      if (number > Integer.MIN_VALUE && number <= Integer.MAX_VALUE) {
+        return type;
+      }
+    }
+    try {
+      parseNumber(value);
+      return Fixture.NUMERIC;
+    } catch (NumberFormatException e) {
+      return Fixture.CHARACTER;
+    }
+  }
+
+  /**
+   * @return whether the field is NA, a quoted "NA" is the string NA
+   */
+  private static boolean isNA(String value, boolean quoted) {
+    return !quoted && "NA".equals(value);
+  }
+
+  private static boolean isNumericNA(String value, boolean quoted) {
+    return value.trim().isEmpty() || isNA(value, quoted);
+  }
+
+  /**
+   * @param value a field that is not NA (see {@link #isNumericNA(String, boolean)})
+   */
+  private static double parseNumber(String value) {
+    String trimmed = value.trim();
+    switch (trimmed) {
+      case "Inf":
+        return Double.POSITIVE_INFINITY;
+      case "-Inf":
+        return Double.NEGATIVE_INFINITY;
+      case "NaN":
+        return Double.NaN;
+      default:
+        if (!Character.isDigit(trimmed.charAt(trimmed.length() - 1)) && trimmed.charAt(trimmed.length() - 1) != '.') {
+          // Double.parseDouble accepts e.g. 1d and Infinity, R does not
+          throw new NumberFormatException(value);
+        }
+        return Double.parseDouble(trimmed);
+    }
+  }
+
+  /**
+   * @return the name like make.names() makes it
+   */
+  static String validName(String name) {
+    String valid = INVALID_NAME_CHARS.matcher(name).replaceAll(".");
+    if (valid.isEmpty() || Character.isDigit(valid.charAt(0)) || valid.charAt(0) == '_'
+        || valid.charAt(0) == '.' && valid.length() > 1 && Character.isDigit(valid.charAt(1))) {
+      valid = "X" + valid;
+    }
+    return valid;
+  }
+
+  /**
+   * Reads comma separated records, fields may be quoted with " (a quote in a quoted field is written twice) and
+   * may then contain commas and line breaks.
+   */
+  static class CsvReader implements AutoCloseable {
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private final BitSet quotedFields = new BitSet();
+    private int position;
+    private int limit;
+
+    CsvReader(Reader reader) {
+      this.reader = reader;
+    }
+
+    /**
+     * @return the fields of the next record or null at the end of the file, blank lines are skipped
+     */
+    List<String> readRecord() throws IOException {
+      List<String> fields;
+      do {
+        fields = readLine();
+      } while (fields != null && fields.isEmpty());
+      return fields;
+    }
+
+    /**
+     * @param field the index of a field in the last record read
+     * @return whether the field was quoted
+     */
+    boolean isQuoted(int field) {
+      return quotedFields.get(field);
+    }
+
+    /**
+     * @return the fields of the next line, an empty list for a blank line or null at the end of the file
+     */
+    private List<String> readLine() throws IOException {
+      List<String> fields = new ArrayList<>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      boolean blank = true;
+      quotedFields.clear();
+      int c = read();
+      if (c == -1) {
+        return null;
+      }
+      for (; c != -1; c = read()) {
+        if (quoted) {
+          if (c == '"') {
+            if (peek() == '"') {
+              field.append((char) read());
+            } else {
+              quoted = false;
+            }
+          } else {
+            field.append((char) c);
+          }
+        } else if (c == '\n') {
+          break;
+        } else if (c != '\r') {
+          blank = false;
+          if (c == '"') {
+            quoted = true;
+            quotedFields.set(fields.size());
+          } else if (c == ',') {
+            fields.add(field.toString());
+            field.setLength(0);
+          } else {
+            field.append((char) c);
+          }
+        }
+      }
+      if (!blank) {
+        fields.add(field.toString());
+      }
+      return fields;
+    }
+
+    /**
+     * Reading through an own buffer is a lot faster than calling read() of a BufferedReader per char.
+     */
+    private int read() throws IOException {
+      int c = peek();
+      position++;
+      return c;
+    }
+
+    private int peek() throws IOException {
+      if (position >= limit) {
+        limit = reader.read(buffer, 0, buffer.length);
+        position = 0;
+        if (limit <= 0) {
+          limit = 0;
+          return -1;
+        }
+      }
+      return buffer[position];
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The wire format used between the maven JVM and a forked test JVM (or a connection to a {@link TestDaemon}).
+ * The maven JVM writes the absolute path of one test file per line to the stdin of the fork (an empty line
+ * tells the fork to exit). The fork answers on its stdout with a stream of messages, each starting with
+ * a one byte message type.
+ */
+final class ForkChannel {
+
+  /** A line of console output: level, message */
+  static final byte LOG = 'L';
+  /** A test result, see {@link #writeResult(DataOutputStream, TestResult)} */
+  static final byte RESULT = 'R';
+  /** The test file was not executed */
+  static final byte NOT_RUN = 'N';
+  /** The test file is done */
+  static final byte DONE = 'D';
+  /**
+   * The fork is set up and waiting for test files: template build time in nanos, parse time saved in nanos and
+   * whether the template was reused (by a test daemon)
+   */
+  static final byte READY = 'Y';
+  /** The fork failed and will exit: message, stack trace */
+  static final byte FATAL = 'F';
+
+  private ForkChannel() {
+    // static helpers only
+  }
+
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static void writeLog(DataOutputStream out, TestLog log) throws IOException {
+    List<String[]> entries = new ArrayList<>();
+    log.drainTo((level, message) -> entries.add(new String[]{level, message}));
+    for (String[] entry : entries) {
+      out.writeByte(LOG);
+      writeString(out, entry[0]);
+      writeString(out, entry[1]);
+    }
+  }
+
+  static void readLog(DataInputStream in, TestLog log) throws IOException {
+    String level = readString(in);
+    String message = readString(in);
+    log.log(level, message);
+  }
+
+  static void writeResult(DataOutputStream out, TestResult result) throws IOException {
+    out.writeByte(RESULT);
+    writeString(out, result.getTestMethod());
+    writeString(out, result.getResult().name());
+    writeString(out, result.getIssue());
+    out.writeLong(result.getStartTime());
+    out.writeLong(result.getEndTime());
+    out.writeLong(result.getSetupNanos());
+    out.writeLong(result.getTeardownNanos());
+    out.writeLong(result.getDurationNanos());
+    out.writeLong(result.getParseNanos());
+    out.writeLong(result.getParseSavedNanos());
+    out.writeLong(result.getFunctionsWallNanos());
+    out.writeLong(result.getCpuNanos());
+    out.writeLong(result.getAllocatedBytes());
+    out.writeInt(result.getSourceDependencies().size());
+    for (String dependency : result.getSourceDependencies()) {
+      writeString(out, dependency);
+    }
+    Throwable error = result.getError();
+    out.writeBoolean(error != null);
+    if (error != null) {
+      writeString(out, error.getClass().getName());
+      writeString(out, error.getMessage());
+      writeString(out, stackTrace(error));
+    }
+  }
+
+  static TestResult readResult(DataInputStream in, File testFile) throws IOException {
+    TestResult result = new TestResult(testFile);
+    result.setTestMethod(readString(in));
+    result.setResult(TestResult.OutCome.valueOf(readString(in)));
+    result.setIssue(readString(in));
+    result.setStartTime(in.readLong());
+    result.setEndTime(in.readLong());
+    result.setSetupNanos(in.readLong());
+    result.setTeardownNanos(in.readLong());
+    result.setDurationNanos(in.readLong());
+    result.setParseNanos(in.readLong());
+    result.setParseSavedNanos(in.readLong());
+    result.setFunctionsWallNanos(in.readLong());
+    result.setCpuNanos(in.readLong());
+    result.setAllocatedBytes(in.readLong());
+    int dependencyCount = in.readInt();
+    if (dependencyCount > 0) {
+      Set<String> dependencies = new TreeSet<>();
+      for (int i = 0; i < dependencyCount; i++) {
+        dependencies.add(readString(in));
+      }
+      result.setSourceDependencies(dependencies);
+    }
+    if (in.readBoolean()) {
+      String className = readString(in);
+      String message = readString(in);
+      String stackTrace = readString(in);
+      result.setError(new ForkedTestException(className, message, stackTrace));
+    }
+    return result;
+  }
+
+  static void writeReady(DataOutputStream out, long templateBuildNanos, long templateParseSavedNanos,
+                         boolean templateReused) throws IOException {
+    out.writeByte(READY);
+    out.writeLong(templateBuildNanos);
+    out.writeLong(templateParseSavedNanos);
+    out.writeBoolean(templateReused);
+    out.flush();
+  }
+
+  static void writeFatal(DataOutputStream out, Throwable error) throws IOException {
+    out.writeByte(FATAL);
+    writeString(out, String.valueOf(error.getMessage()));
+    writeString(out, stackTrace(error));
+    out.flush();
+  }
+
+  static String stackTrace(Throwable error) {
+    StringWriter sw = new StringWriter();
+    try (PrintWriter pw = new PrintWriter(sw)) {
+      error.printStackTrace(pw);
+    }
+    return sw.toString();
+  }
+}
@@ -0,0 +1,40 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+/**
+ * An exception that occurred in a forked test JVM. The original exception cannot be sent
+ * back to the maven JVM (R exceptions are not serializable) so this carries its description instead.
+ */
+public class ForkedTestException extends Exception {
+
+  private final String className;
+  private final String remoteStackTrace;
+
+  public ForkedTestException(String className, String message, String remoteStackTrace) {
+    super(message);
+    this.className = className;
+    this.remoteStackTrace = remoteStackTrace;
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  @Override
+  public String toString() {
+    String message = getLocalizedMessage();
+    return message == null ? className : className + ": " + message;
+  }
+
+  @Override
+  public void printStackTrace(PrintWriter s) {
+    s.print(remoteStackTrace);
+  }
+
+  @Override
+  public void printStackTrace(PrintStream s) {
+    s.print(remoteStackTrace);
+  }
+}
@@ -0,0 +1,98 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The entry point of a forked test JVM. Settings are passed as key=value arguments (see {@link RunnerSettings}),
+ * test files are read from stdin and the results are written to stdout, see {@link ForkChannel}.
+ */
+public class ForkedTestRunner {
+
+  public static void main(String[] args) throws IOException {
+    // stdout is reserved for the protocol, anything else printed goes to stderr
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    System.setOut(System.err);
+
+    RunnerSettings settings = RunnerSettings.fromArguments(args);
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    TestFunctionPool.RunnerFactory runnerFactory = log -> RenjinTestRunner.create(classLoader, settings, log);
+    TestFunctionPool functionPool = settings.getFunctionThreadCount() > 1
+        ? new TestFunctionPool(settings.getFunctionThreadCount() - 1, 1, classLoader, runnerFactory)
+        : null;
+    RenjinTestRunner runner;
+    TestLog setupLog = new TestLog(null, true);
+    try {
+      runner = RenjinTestRunner.create(classLoader, settings, setupLog);
+      runner.setFunctionPool(functionPool);
+      ForkChannel.writeLog(out, setupLog);
+      ForkChannel.writeReady(out, runner.getTemplateBuildNanos(), runner.getTemplateParseSavedNanos(), false);
+    } catch (Exception e) {
+      ForkChannel.writeLog(out, setupLog);
+      ForkChannel.writeFatal(out, e);
+      System.exit(1);
+      return;
+    }
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    try {
+      runTestFiles(runner, runnerFactory, functionPool, in, out);
+    } catch (Exception e) {
+      System.exit(1);
+    }
+    out.flush();
+    System.exit(0);
+  }
+
+  /**
+   * Run the test files read from in, one absolute path per line until an empty line or the end of the stream, and
+   * write the console output and results of each to out. If something goes wrong the error is written to out
+   * before it is thrown.
+   *
+   * @param runner the runner to start with
+   * @param runnerFactory creates a new runner when a test timed out
+   * @param functionPool the function pool to give to new runners (may be null)
+   * @return the runner in use when done
+   * @throws Exception if a test file could not be run, the runner should not be used anymore
+   */
+  static RenjinTestRunner runTestFiles(RenjinTestRunner runner, TestFunctionPool.RunnerFactory runnerFactory,
+                                       TestFunctionPool functionPool, BufferedReader in, DataOutputStream out)
+      throws Exception {
+    String line;
+    while ((line = in.readLine()) != null && !line.isEmpty()) {
+      TestLog log = new TestLog(null, true);
+      try {
+        List<TestResult> results = runner.runTestFile(new File(line), log);
+        if (runner.isBroken()) {
+          log.warn("A test timed out, replacing the session");
+          runner = runnerFactory.create(log);
+          runner.setFunctionPool(functionPool);
+        }
+        ForkChannel.writeLog(out, log);
+        if (results == null) {
+          out.writeByte(ForkChannel.NOT_RUN);
+        } else {
+          for (TestResult result : results) {
+            ForkChannel.writeResult(out, result);
+          }
+        }
+        out.writeByte(ForkChannel.DONE);
+        out.flush();
+      } catch (Exception e) {
+        ForkChannel.writeLog(out, log);
+        ForkChannel.writeFatal(out, e);
+        throw e;
+      }
+    }
+    out.flush();
+    return runner;
+  }
+}
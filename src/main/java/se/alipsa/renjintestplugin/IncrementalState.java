@@ -0,0 +1,161 @@
+package se.alipsa.renjintestplugin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps track of the content hash and outcome of each test file between runs so that test files
+ * that succeeded last time and whose inputs have not changed since then do not have to be run again.
+ * <p>
+ * The inputs of a test file are the test file itself (and the testthat directory next to it if there is one)
+ * plus an inputs hash for everything that all tests depend on (src scripts, classpath etc.). If the inputs hash
+ * differs from the one of the previous run, all test files are run.</p>
+ */
+public class IncrementalState {
+
+  private static final int VERSION = 5;
+  private static final Logger logger = LoggerFactory.getLogger(IncrementalState.class);
+
+  private final File stateFile;
+  private final File testOutputDirectory;
+  private final String inputsHash;
+  private final Map<String, Entry> previous = new HashMap<>();
+  private final Map<String, String> currentHashes = new HashMap<>();
+
+  public IncrementalState(File stateFile, File testOutputDirectory, String inputsHash) {
+    this.stateFile = stateFile;
+    this.testOutputDirectory = testOutputDirectory;
+    this.inputsHash = inputsHash;
+    if (stateFile.exists()) {
+      try {
+        load();
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Failed to read {}, running all tests: {}", stateFile, e.toString());
+        previous.clear();
+      }
+    }
+  }
+
+  /**
+   * @param testFile the test file
+   * @return the results from the previous run if the test file succeeded then and its inputs are unchanged,
+   * otherwise null
+   * @throws IOException if the test file could not be read
+   */
+  public List<TestResult> getUpToDateResults(File testFile) throws IOException {
+    String path = relativePath(testFile);
+    String hash = hash(testFile);
+    currentHashes.put(path, hash);
+    Entry entry = previous.get(path);
+    if (entry == null || !entry.hash.equals(hash)) {
+      return null;
+    }
+    for (TestResult result : entry.results) {
+      if (!TestResult.OutCome.SUCCESS.equals(result.getResult())) {
+        return null;
+      }
+    }
+    return entry.results;
+  }
+
+  /**
+   * Write the state for the test files that were run (or reused) in this run.
+   *
+   * @param results all results of this run
+   * @throws IOException if the state file could not be written
+   */
+  public void save(List<TestResult> results) throws IOException {
+    Map<File, List<TestResult>> resultsByFile = results.stream()
+        .collect(Collectors.groupingBy(TestResult::getTestFile));
+    stateFile.getParentFile().mkdirs();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(stateFile.toPath())))) {
+      out.writeInt(VERSION);
+      ForkChannel.writeString(out, inputsHash);
+      List<Map.Entry<File, List<TestResult>>> entries = new ArrayList<>();
+      for (Map.Entry<File, List<TestResult>> entry : resultsByFile.entrySet()) {
+        if (currentHashes.containsKey(relativePath(entry.getKey()))) {
+          entries.add(entry);
+        }
+      }
+      out.writeInt(entries.size());
+      for (Map.Entry<File, List<TestResult>> entry : entries) {
+        String path = relativePath(entry.getKey());
+        ForkChannel.writeString(out, path);
+        ForkChannel.writeString(out, currentHashes.get(path));
+        out.writeInt(entry.getValue().size());
+        for (TestResult result : entry.getValue()) {
+          ForkChannel.writeResult(out, result);
+        }
+      }
+    }
+  }
+
+  private void load() throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile.toPath())))) {
+      if (in.readInt() != VERSION || !inputsHash.equals(ForkChannel.readString(in))) {
+        logger.info("Inputs have changed since the previous run, running all tests");
+        return;
+      }
+      int fileCount = in.readInt();
+      for (int i = 0; i < fileCount; i++) {
+        String path = ForkChannel.readString(in);
+        String hash = ForkChannel.readString(in);
+        File testFile = new File(testOutputDirectory, path);
+        int resultCount = in.readInt();
+        List<TestResult> results = new ArrayList<>(resultCount);
+        for (int j = 0; j < resultCount; j++) {
+          in.readByte();
+          results.add(ForkChannel.readResult(in, testFile));
+        }
+        previous.put(path, new Entry(hash, results));
+      }
+    }
+  }
+
+  /**
+   * A testthat.R file runs all the tests in the testthat directory next to it so those are part of its content.
+   * The test files in a testthat directory (when run natively) depend on the helper and setup files next to them.
+   */
+  static String hash(File testFile) throws IOException {
+    ContentHash hash = new ContentHash().addFile(testFile);
+    hash.addDirectory(new File(testFile.getParentFile(), "testthat"), true);
+    if (RenjinTestRunner.isTestthatFile(testFile)) {
+      File[] helpers = testFile.getParentFile().listFiles((dir, name) -> name.startsWith("helper") || name.startsWith("setup"));
+      if (helpers != null) {
+        Arrays.sort(helpers);
+        for (File helper : helpers) {
+          hash.add(helper.getName()).addFile(helper);
+        }
+      }
+    }
+    return hash.finish();
+  }
+
+  private String relativePath(File testFile) {
+    return testFile.getAbsolutePath().substring(testOutputDirectory.getAbsolutePath().length() + 1);
+  }
+
+  private static class Entry {
+    private final String hash;
+    private final List<TestResult> results;
+
+    Entry(String hash, List<TestResult> results) {
+      this.hash = hash;
+      this.results = results;
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package se.alipsa.renjintestplugin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the surefire style JUnit XML report for a test file using StAX. Reports can be submitted as soon
+ * as a test file is done and are then written on a background thread so that the reports exist
+ * even if the build is killed before all tests have run. Times are measured in nanoseconds and the
+ * phases and resource usage of each test are written as properties of the testcase, see {@link #PROPERTIES}.
+ * <pre>
+ *&lt;testsuite tests="3" failures="1" errors="0" name="se.alipsa.renjintestplugin.RenjinTestMojoTest" time="2.301"&gt;
+ *     &lt;testcase classname="foo1" name="ASuccessfulTest" time="1.868"/&gt;
+ *     &lt;testcase classname="foo2" name="AnotherSuccessfulTest" time="1.868"&gt;
+ *         &lt;properties&gt;
+ *             &lt;property name="cpuNanos" value="1530000000"/&gt;
+ *             &lt;property name="allocatedBytes" value="52428800"/&gt;
+ *         &lt;/properties&gt;
+ *     &lt;/testcase&gt;
+ *     &lt;testcase classname="foo3" name="AFailingTest" time="1.868"&gt;
+ *         &lt;failure message="NotEnoughFoo" type="SomeExceptionType"&gt; details about failure &lt;/failure&gt;
+ *     &lt;/testcase&gt;
+ * &lt;/testsuite&gt;
+ * </pre>
+ */
+public class JUnitReportWriter implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(JUnitReportWriter.class);
+  private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+  /**
+   * The testcase properties, -1 (not measured) and 0 values are left out and so is evalNanos when it is the whole
+   * time of the testcase
+   */
+  static final String[] PROPERTIES = {"setupNanos", "parseNanos", "evalNanos", "teardownNanos", "cpuNanos", "allocatedBytes"};
+  private static final int EVAL_NANOS = 2;
+
+  private final File reportOutputDirectory;
+  private final File testOutputDirectory;
+  private final String reportNameSuffix;
+  private final ExecutorService executor;
+
+  public JUnitReportWriter(File reportOutputDirectory, File testOutputDirectory) {
+    this(reportOutputDirectory, testOutputDirectory, "");
+  }
+
+  /**
+   * @param reportOutputDirectory where to write the reports
+   * @param testOutputDirectory the directory the test file paths are made relative to
+   * @param reportNameSuffix added to the report file names, e.g. to keep the reports of different shards apart
+   */
+  public JUnitReportWriter(File reportOutputDirectory, File testOutputDirectory, String reportNameSuffix) {
+    this.reportOutputDirectory = reportOutputDirectory;
+    this.testOutputDirectory = testOutputDirectory;
+    this.reportNameSuffix = reportNameSuffix;
+    this.executor = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "renjin-test-report-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Write the report for a test file on the background thread.
+   *
+   * @param testFile the test file
+   * @param results the results of the test file
+   */
+  public void submit(File testFile, List<TestResult> results) {
+    executor.submit(() -> write(testFile, results));
+  }
+
+  /**
+   * Wait until all submitted reports have been written.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Write the report for a test file.
+   *
+   * @param testFile the test file
+   * @param resultGroup the results of the test file
+   */
+  public void write(File testFile, List<TestResult> resultGroup) {
+    DecimalFormatSymbols otherSymbols = new DecimalFormatSymbols(Locale.getDefault());
+    otherSymbols.setDecimalSeparator('.');
+    otherSymbols.setGroupingSeparator(',');
+    DecimalFormat format = new DecimalFormat("###.###", otherSymbols);
+
+    long totalTime = 0;
+    int failures = 0;
+    int errors = 0;
+    int skipped = 0;
+    for (TestResult res : resultGroup) {
+      totalTime += res.getDurationNanos();
+      if (TestResult.OutCome.FAILURE.equals(res.getResult())) {
+        failures++;
+      } else if (TestResult.OutCome.ERROR.equals(res.getResult())) {
+        errors++;
+      } else if (TestResult.OutCome.SKIPPED.equals(res.getResult())) {
+        skipped++;
+      }
+    }
+    String file = testFile.getAbsolutePath();
+    String strippedPath = file.substring(testOutputDirectory.getAbsolutePath().length() + 1).replace(File.separatorChar, '.');
+    String name = strippedPath.substring(0, strippedPath.lastIndexOf("."));
+
+    File outFile = new File(reportOutputDirectory, "TEST-" + strippedPath + reportNameSuffix + ".xml");
+    try (Writer out = Files.newBufferedWriter(outFile.toPath(), StandardCharsets.UTF_8)) {
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      XMLStreamWriter xml = XML_OUTPUT_FACTORY.createXMLStreamWriter(out);
+      xml.writeStartElement("testsuite");
+      xml.writeAttribute("tests", String.valueOf(resultGroup.size()));
+      xml.writeAttribute("failures", String.valueOf(failures));
+      xml.writeAttribute("errors", String.valueOf(errors));
+      if (skipped > 0) {
+        xml.writeAttribute("skipped", String.valueOf(skipped));
+      }
+      xml.writeAttribute("name", name);
+      xml.writeAttribute("time", format.format(totalTime / 1_000_000_000.0));
+      for (TestResult res : resultGroup) {
+        String testName = res.getTestFile().getName();
+        // a successful test without properties is an empty element, as in the reports written with dom4j
+        boolean empty = TestResult.OutCome.SUCCESS.equals(res.getResult()) && !hasProperties(res);
+        if (empty) {
+          xml.writeEmptyElement("testcase");
+        } else {
+          xml.writeStartElement("testcase");
+        }
+        xml.writeAttribute("classname", testName.substring(0, testName.lastIndexOf(".")));
+        xml.writeAttribute("name", res.getTestMethod());
+        xml.writeAttribute("time", format.format(res.getDurationNanos() / 1_000_000_000.0));
+        if (empty) {
+          continue;
+        }
+        writeProperties(xml, res);
+        if (TestResult.OutCome.SKIPPED.equals(res.getResult())) {
+          xml.writeEmptyElement("skipped");
+          if (res.getIssue() != null) {
+            xml.writeAttribute("message", res.getIssue());
+          }
+        } else if (!TestResult.OutCome.SUCCESS.equals(res.getResult())) {
+          xml.writeStartElement("failure");
+          if (res.getIssue() != null) {
+            xml.writeAttribute("message", res.getIssue());
+          }
+          xml.writeAttribute("type", res.getResult().toString());
+          xml.writeCharacters(TestResultPrinter.asString(res.getError()));
+          xml.writeEndElement();
+        }
+        xml.writeEndElement();
+      }
+      xml.writeEndElement();
+      xml.flush();
+      xml.close();
+    } catch (IOException | XMLStreamException e) {
+      logger.warn("Failed to write test report {}", outFile, e);
+    }
+  }
+
+  private static boolean hasProperties(TestResult res) {
+    long[] values = propertyValues(res);
+    for (int i = 0; i < PROPERTIES.length; i++) {
+      if (isWritten(res, i, values[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isWritten(TestResult res, int property, long value) {
+    return value > 0 && !(property == EVAL_NANOS && value == res.getDurationNanos());
+  }
+
+  private void writeProperties(XMLStreamWriter xml, TestResult res) throws XMLStreamException {
+    long[] values = propertyValues(res);
+    boolean started = false;
+    for (int i = 0; i < PROPERTIES.length; i++) {
+      if (!isWritten(res, i, values[i])) {
+        continue;
+      }
+      if (!started) {
+        xml.writeStartElement("properties");
+        started = true;
+      }
+      xml.writeEmptyElement("property");
+      xml.writeAttribute("name", PROPERTIES[i]);
+      xml.writeAttribute("value", String.valueOf(values[i]));
+    }
+    if (started) {
+      xml.writeEndElement();
+    }
+  }
+
+  /**
+   * @return the values of the {@link #PROPERTIES} of the result, in the same order
+   */
+  static long[] propertyValues(TestResult res) {
+    return new long[]{res.getSetupNanos(), res.getParseNanos(), res.getEvalNanos(), res.getTeardownNanos(),
+        res.getCpuNanos(), res.getAllocatedBytes()};
+  }
+}
@@ -0,0 +1,50 @@
+package se.alipsa.renjintestplugin;
+
+/**
+ * Minimal helpers for writing JSON without pulling in a JSON library.
+ */
+final class Json {
+
+  private Json() {
+    // static helpers only
+  }
+
+  /**
+   * @param value the string to quote, may be null
+   * @return the value as a JSON string literal (or null)
+   */
+  static String quote(String value) {
+    if (value == null) {
+      return "null";
+    }
+    StringBuilder sb = new StringBuilder(value.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"').toString();
+  }
+}
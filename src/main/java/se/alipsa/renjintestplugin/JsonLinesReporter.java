@@ -0,0 +1,124 @@
+package se.alipsa.renjintestplugin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * A {@link TestRunListener} that streams the events of a run to renjin-test-events.jsonl in the
+ * reportOutputDirectory, one JSON object per line, written (and flushed) as they happen. A dashboard can follow a
+ * long run with e.g. <code>tail -f</code>, and the reporter keeps nothing in memory between events:
+ * <pre>
+ * {"event": "runStarted", "time": 1700000000000, "testFiles": 120}
+ * {"event": "fileStarted", "time": 1700000000010, "file": "SumTest.R"}
+ * {"event": "testFinished", "time": 1700000000120, "file": "SumTest.R", "test": "test.sum()", "outcome": "SUCCESS", ...}
+ * {"event": "fileFinished", "time": 1700000000121, "file": "SumTest.R", "tests": 1, "failures": 0}
+ * {"event": "runFinished", "time": 1700000009000, "tests": 480, "success": 478, "failure": 2, ...}
+ * </pre>
+ */
+public class JsonLinesReporter implements TestRunListener {
+
+  static final String FILE_NAME = "renjin-test-events";
+
+  private static final Logger logger = LoggerFactory.getLogger(JsonLinesReporter.class);
+
+  private TestRunInfo run;
+  private File outFile;
+  private Writer out;
+
+  @Override
+  public void runStarted(TestRunInfo run) {
+    this.run = run;
+    outFile = new File(run.getReportOutputDirectory(), FILE_NAME + run.getReportNameSuffix() + ".jsonl");
+    try {
+      outFile.getParentFile().mkdirs();
+      out = Files.newBufferedWriter(outFile.toPath(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      logger.warn("Failed to open {}: {}", outFile, e.toString());
+      return;
+    }
+    write(event("runStarted").append(", \"testFiles\": ").append(run.getTestFiles().size()));
+  }
+
+  @Override
+  public void fileStarted(File testFile) {
+    write(event("fileStarted").append(", \"file\": ").append(Json.quote(run.relativePath(testFile))));
+  }
+
+  @Override
+  public void testFinished(TestResult result) {
+    StringBuilder line = event("testFinished")
+        .append(", \"file\": ").append(Json.quote(run.relativePath(result.getTestFile())))
+        .append(", \"test\": ").append(Json.quote(result.getTestMethod()))
+        .append(", \"outcome\": ").append(Json.quote(result.getResult().name()))
+        .append(", \"durationNanos\": ").append(result.getDurationNanos());
+    long[] values = JUnitReportWriter.propertyValues(result);
+    for (int i = 0; i < values.length; i++) {
+      line.append(", ").append(Json.quote(JUnitReportWriter.PROPERTIES[i])).append(": ").append(values[i]);
+    }
+    if (result.getIssue() != null) {
+      line.append(", \"issue\": ").append(Json.quote(result.getIssue()));
+    }
+    write(line);
+  }
+
+  @Override
+  public void fileFinished(File testFile, List<TestResult> results) {
+    write(event("fileFinished")
+        .append(", \"file\": ").append(Json.quote(run.relativePath(testFile)))
+        .append(", \"tests\": ").append(results.size())
+        .append(", \"failures\": ").append(results.stream().filter(TestResult::isFailure).count()));
+  }
+
+  @Override
+  public void runFinished(List<TestResult> results, RunStatistics statistics) {
+    long[] counts = new long[TestResult.OutCome.values().length];
+    for (TestResult result : results) {
+      counts[result.getResult().ordinal()]++;
+    }
+    StringBuilder line = event("runFinished").append(", \"tests\": ").append(results.size());
+    for (TestResult.OutCome outCome : TestResult.OutCome.values()) {
+      line.append(", ").append(Json.quote(outCome.name().toLowerCase())).append(": ").append(counts[outCome.ordinal()]);
+    }
+    line.append(", \"templateCount\": ").append(statistics.getTemplateCount())
+        .append(", \"reusedTemplateCount\": ").append(statistics.getReusedTemplateCount());
+    write(line);
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        logger.warn("Failed to close {}: {}", outFile, e.toString());
+      }
+      out = null;
+    }
+  }
+
+  private static StringBuilder event(String name) {
+    return new StringBuilder("{\"event\": ").append(Json.quote(name))
+        .append(", \"time\": ").append(System.currentTimeMillis());
+  }
+
+  private void write(StringBuilder line) {
+    if (out == null) {
+      return;
+    }
+    try {
+      out.write(line.append("}\n").toString());
+      out.flush();
+    } catch (IOException e) {
+      logger.warn("Failed to write {}, no more events are written: {}", outFile, e.toString());
+      try {
+        out.close();
+      } catch (IOException ignored) {
+        // already failing
+      }
+      out = null;
+    }
+  }
+}
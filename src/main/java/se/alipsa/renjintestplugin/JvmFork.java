@@ -0,0 +1,213 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A forked JVM running {@link ForkedTestRunner}, or a connection to a {@link TestDaemon}, seen from the maven JVM.
+ */
+public class JvmFork implements Closeable {
+
+  private final Process process;
+  private final Socket socket;
+  private final DataInputStream in;
+  private final Writer out;
+  private long templateBuildNanos;
+  private long templateParseSavedNanos;
+  private boolean templateReused;
+
+  private JvmFork(Process process) {
+    this.process = process;
+    this.socket = null;
+    this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    this.out = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+  }
+
+  private JvmFork(Socket socket) throws IOException {
+    this.process = null;
+    this.socket = socket;
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Start a fork and wait until it is ready to run tests.
+   *
+   * @param command the java command line to start the fork with
+   * @param workingDirectory the working directory of the fork
+   * @param log where to write the output from setting up the fork (i.e. running the src scripts)
+   * @return the started fork
+   * @throws MojoExecutionException if the fork could not be started
+   */
+  public static JvmFork start(List<String> command, File workingDirectory, TestLog log) throws MojoExecutionException {
+    JvmFork fork;
+    try {
+      Process process = new ProcessBuilder(command)
+          .directory(workingDirectory)
+          .redirectError(ProcessBuilder.Redirect.INHERIT)
+          .start();
+      fork = new JvmFork(process);
+    } catch (IOException e) {
+      throw new MojoExecutionException("Failed to start forked JVM: " + command, e);
+    }
+    try {
+      fork.awaitReady(log);
+      return fork;
+    } catch (IOException | MojoExecutionException e) {
+      fork.close();
+      throw new MojoExecutionException("Failed to set up forked JVM", e);
+    }
+  }
+
+  /**
+   * Open a connection to a test daemon and wait until it is ready to run tests.
+   *
+   * @param socket the connected socket
+   * @param request the lines telling the daemon what to run the tests with, see {@link TestDaemon}
+   * @param log where to write the output from setting up the session in the daemon
+   * @return the connection
+   * @throws IOException if the daemon could not be reached
+   * @throws MojoExecutionException if the daemon could not set up a session
+   */
+  static JvmFork connect(Socket socket, List<String> request, TestLog log) throws IOException, MojoExecutionException {
+    JvmFork connection = new JvmFork(socket);
+    try {
+      for (String line : request) {
+        connection.out.write(line);
+        connection.out.write('\n');
+      }
+      connection.out.flush();
+      connection.awaitReady(log);
+      return connection;
+    } catch (IOException | MojoExecutionException e) {
+      connection.kill();
+      throw e;
+    }
+  }
+
+  private void awaitReady(TestLog log) throws IOException, MojoExecutionException {
+    byte type;
+    while ((type = in.readByte()) != ForkChannel.READY) {
+      handleMessage(type, log);
+    }
+    templateBuildNanos = in.readLong();
+    templateParseSavedNanos = in.readLong();
+    templateReused = in.readBoolean();
+  }
+
+  /**
+   * @return the time it took for the fork to build its session template
+   */
+  public long getTemplateBuildNanos() {
+    return templateBuildNanos;
+  }
+
+  /**
+   * @return the part of the template build time the fork saved by reading the source scripts from the parse cache
+   */
+  public long getTemplateParseSavedNanos() {
+    return templateParseSavedNanos;
+  }
+
+  /**
+   * @return whether a test daemon reused a session template built for an earlier connection
+   */
+  public boolean isTemplateReused() {
+    return templateReused;
+  }
+
+  /**
+   * Run a test file in the fork.
+   *
+   * @param testFile the file to run
+   * @param log where to write the console output from the fork
+   * @return the results or null if the file was not executed
+   * @throws IOException if the fork is gone, e.g. the test crashed it
+   * @throws MojoExecutionException if the fork reported that it could not run the test file
+   */
+  public List<TestResult> runTestFile(File testFile, TestLog log) throws IOException, MojoExecutionException {
+    out.write(testFile.getAbsolutePath());
+    out.write('\n');
+    out.flush();
+    List<TestResult> results = new ArrayList<>();
+    boolean didRun = true;
+    byte type;
+    while ((type = in.readByte()) != ForkChannel.DONE) {
+      if (type == ForkChannel.RESULT) {
+        results.add(ForkChannel.readResult(in, testFile));
+      } else if (type == ForkChannel.NOT_RUN) {
+        didRun = false;
+      } else {
+        handleMessage(type, log);
+      }
+    }
+    return didRun ? results : null;
+  }
+
+  private void handleMessage(byte type, TestLog log) throws IOException, MojoExecutionException {
+    if (type == ForkChannel.LOG) {
+      ForkChannel.readLog(in, log);
+    } else if (type == ForkChannel.FATAL) {
+      String message = ForkChannel.readString(in);
+      String stackTrace = ForkChannel.readString(in);
+      throw new MojoExecutionException((socket == null ? "Forked JVM" : "Test daemon") + " failed: " + message,
+          new ForkedTestException(MojoExecutionException.class.getName(), message, stackTrace));
+    } else {
+      throw new IOException("Unexpected message type " + (char) type + (socket == null ? " from forked JVM" : " from test daemon"));
+    }
+  }
+
+  /**
+   * Kill the fork right away, e.g. because it did not finish a test file in time.
+   */
+  public void kill() {
+    if (socket != null) {
+      closeSocket();
+    } else {
+      process.destroyForcibly();
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      out.write('\n');
+      out.close();
+    } catch (IOException e) {
+      // the fork is already gone
+    }
+    if (socket != null) {
+      // the daemon keeps running, the empty line told it that we are done
+      closeSocket();
+      return;
+    }
+    try {
+      if (!process.waitFor(10, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+      }
+    } catch (InterruptedException e) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void closeSocket() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // nothing to do
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Delivers the events of a run to the {@link TestRunListener}s on a dedicated thread. The test threads only put the
+ * events on a bounded queue; if the listeners fall so far behind that the queue is full, events are dropped (and the
+ * number dropped is logged) rather than making the tests wait. runFinished is always delivered and close waits
+ * (for a while) until the listeners have handled all events. A listener that throws is logged and skipped for
+ * that event only.
+ */
+public class ListenerDispatcher implements TestRunListener, Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(ListenerDispatcher.class);
+  /** How long close waits for the listeners to handle the remaining events */
+  private static final long CLOSE_TIMEOUT_MILLIS = 60_000;
+
+  private final List<TestRunListener> listeners;
+  private final BlockingQueue<Consumer<TestRunListener>> queue;
+  private final Thread thread;
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final Set<TestRunListener> failedListeners = Collections.newSetFromMap(new IdentityHashMap<>());
+  private volatile boolean closed;
+
+  /**
+   * @param listeners the listeners, the dispatcher does nothing if there are none
+   * @param queueSize the max number of events waiting to be delivered
+   * @param classLoader the context class loader of the dispatcher thread
+   */
+  public ListenerDispatcher(List<TestRunListener> listeners, int queueSize, ClassLoader classLoader) {
+    this.listeners = new ArrayList<>(listeners);
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+    if (listeners.isEmpty()) {
+      thread = null;
+      return;
+    }
+    thread = new Thread(this::deliver, "renjin-test-listeners");
+    thread.setContextClassLoader(classLoader);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Create the listeners named in the pom and the ones registered as services on the class path.
+   *
+   * @param classNames class names of listeners, a name without a package is a listener of this plugin
+   * @param classLoader the class loader to load the listeners with, normally the test class loader
+   * @return the listeners, at most one of each class
+   * @throws MojoExecutionException if a named listener could not be created
+   */
+  public static List<TestRunListener> createListeners(List<String> classNames, ClassLoader classLoader)
+      throws MojoExecutionException {
+    Map<Class<?>, TestRunListener> listeners = new LinkedHashMap<>();
+    if (classNames != null) {
+      for (String name : classNames) {
+        String className = name.trim().contains(".")
+            ? name.trim()
+            : TestRunListener.class.getPackage().getName() + "." + name.trim();
+        try {
+          Object listener = Class.forName(className, true, classLoader).getDeclaredConstructor().newInstance();
+          listeners.putIfAbsent(listener.getClass(), (TestRunListener) listener);
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+          throw new MojoExecutionException("Failed to create listener " + name, e);
+        }
+      }
+    }
+    for (TestRunListener listener : ServiceLoader.load(TestRunListener.class, classLoader)) {
+      listeners.putIfAbsent(listener.getClass(), listener);
+    }
+    return new ArrayList<>(listeners.values());
+  }
+
+  @Override
+  public void runStarted(TestRunInfo run) {
+    submit(listener -> listener.runStarted(run));
+  }
+
+  @Override
+  public void fileStarted(File testFile) {
+    submit(listener -> listener.fileStarted(testFile));
+  }
+
+  @Override
+  public void testFinished(TestResult result) {
+    submit(listener -> listener.testFinished(result));
+  }
+
+  @Override
+  public void fileFinished(File testFile, List<TestResult> results) {
+    // testFinished and fileFinished of a file go together, so that a listener never gets a file without its tests
+    List<TestResult> fileResults = new ArrayList<>(results);
+    submit(listener -> {
+      for (TestResult result : fileResults) {
+        listener.testFinished(result);
+      }
+      listener.fileFinished(testFile, fileResults);
+    });
+  }
+
+  @Override
+  public void runFinished(List<TestResult> results, RunStatistics statistics) {
+    if (thread == null) {
+      return;
+    }
+    try {
+      queue.put(listener -> listener.runFinished(results, statistics));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void submit(Consumer<TestRunListener> event) {
+    if (thread != null && !queue.offer(event)) {
+      droppedCount.incrementAndGet();
+    }
+  }
+
+  private void deliver() {
+    while (!closed || !queue.isEmpty()) {
+      Consumer<TestRunListener> event;
+      try {
+        event = queue.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (event == null) {
+        continue;
+      }
+      for (TestRunListener listener : listeners) {
+        try {
+          event.accept(listener);
+        } catch (RuntimeException | LinkageError e) {
+          if (failedListeners.add(listener)) {
+            logger.warn("Listener {} failed: {}", listener.getClass().getName(), e.toString());
+          } else {
+            logger.debug("Listener {} failed again: {}", listener.getClass().getName(), e.toString());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Wait until the listeners have handled the events and stop the dispatcher thread.
+   */
+  @Override
+  public void close() {
+    if (thread == null) {
+      return;
+    }
+    closed = true;
+    try {
+      thread.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thread.isAlive()) {
+      logger.warn("Listeners did not handle the remaining {} events within {} seconds", queue.size(),
+          TimeUnit.MILLISECONDS.toSeconds(CLOSE_TIMEOUT_MILLIS));
+      thread.interrupt();
+    }
+    if (droppedCount.get() > 0) {
+      logger.warn("Dropped {} listener events because the listeners could not keep up (listenerQueueSize)",
+          droppedCount.get());
+    }
+  }
+}
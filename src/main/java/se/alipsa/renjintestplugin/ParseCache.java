@@ -0,0 +1,147 @@
+package se.alipsa.renjintestplugin;
+
+import org.renjin.RenjinVersion;
+import org.renjin.eval.Context;
+import org.renjin.parser.RParser;
+import org.renjin.primitives.io.serialization.RDataReader;
+import org.renjin.primitives.io.serialization.RDataWriter;
+import org.renjin.sexp.ExpressionVector;
+import org.renjin.sexp.SEXP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * An on-disk cache of parsed R files. The expressions of a parsed file are saved in the R serialization format
+ * under a key made from the Renjin version, the path and the content of the file, so a file is only parsed again
+ * when it (or Renjin) has changed. Each entry also holds the time the original parse took so that the time saved
+ * can be reported.
+ * <p>
+ * Entries are written to a temporary file and moved in place, so several runners (threads or forks) can share the
+ * cache directory. A cache entry that can not be read or written is ignored and the file is parsed as usual.</p>
+ */
+public class ParseCache {
+
+  private static final int VERSION = 1;
+  private static final Logger logger = LoggerFactory.getLogger(ParseCache.class);
+
+  private final File cacheDirectory;
+
+  /**
+   * @param cacheDirectory where to keep the cache entries or null to always parse
+   */
+  public ParseCache(File cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  /**
+   * Parse the file, or read the expressions from the cache if the file has been parsed before.
+   *
+   * @param context the context used to read and write the cached expressions
+   * @param file the R file
+   * @return the parsed file
+   * @throws IOException if the file could not be read
+   */
+  public ParsedFile parse(Context context, File file) throws IOException {
+    if (cacheDirectory == null) {
+      long start = System.nanoTime();
+      ExpressionVector expressions = parseSource(file);
+      return new ParsedFile(expressions, System.nanoTime() - start, 0);
+    }
+    String key = new ContentHash()
+        .add(VERSION)
+        .add(RenjinVersion.getVersionName())
+        .add(file.getAbsolutePath())
+        .addFile(file)
+        .finish();
+    File entry = new File(cacheDirectory, key + ".rds");
+    if (entry.exists()) {
+      long start = System.nanoTime();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry.toPath())))) {
+        long originalParseNanos = in.readLong();
+        SEXP expressions = new RDataReader(context, in).readFile();
+        if (expressions instanceof ExpressionVector) {
+          long loadNanos = System.nanoTime() - start;
+          return new ParsedFile((ExpressionVector) expressions, loadNanos, originalParseNanos - loadNanos);
+        }
+        logger.debug("Ignoring parse cache entry {} for {}, it does not contain expressions", entry, file);
+      } catch (IOException | RuntimeException e) {
+        logger.debug("Failed to read parse cache entry {} for {}: {}", entry, file, e.toString());
+      }
+    }
+    long start = System.nanoTime();
+    ExpressionVector expressions = parseSource(file);
+    long parseNanos = System.nanoTime() - start;
+    write(context, entry, expressions, parseNanos);
+    return new ParsedFile(expressions, parseNanos, 0);
+  }
+
+  private void write(Context context, File entry, ExpressionVector expressions, long parseNanos) {
+    File tmpFile = null;
+    try {
+      Files.createDirectories(cacheDirectory.toPath());
+      tmpFile = File.createTempFile(entry.getName(), ".tmp", cacheDirectory);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath())))) {
+        out.writeLong(parseNanos);
+        RDataWriter writer = new RDataWriter(context, out);
+        writer.save(expressions);
+        out.flush();
+      }
+      Files.move(tmpFile.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Failed to write parse cache entry {}: {}", entry, e.toString());
+      if (tmpFile != null) {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  static ExpressionVector parseSource(File file) throws IOException {
+    try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      return RParser.parseSource(reader, file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * The expressions of an R file and the time it took to get them.
+   */
+  public static class ParsedFile {
+    private final ExpressionVector expressions;
+    private final long parseNanos;
+    private final long savedNanos;
+
+    ParsedFile(ExpressionVector expressions, long parseNanos, long savedNanos) {
+      this.expressions = expressions;
+      this.parseNanos = parseNanos;
+      this.savedNanos = savedNanos;
+    }
+
+    public ExpressionVector getExpressions() {
+      return expressions;
+    }
+
+    /**
+     * @return the time it took to parse the file or to read it from the cache
+     */
+    public long getParseNanos() {
+      return parseNanos;
+    }
+
+    /**
+     * @return the time the original parse took minus the time it took to read the cache, 0 if the file was parsed
+     */
+    public long getSavedNanos() {
+      return savedNanos;
+    }
+  }
+}
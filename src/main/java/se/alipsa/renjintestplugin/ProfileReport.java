@@ -0,0 +1,171 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * The samples of a profiled run, see {@link TestProfiler}. The samples are kept as collapsed stacks, one line per
+ * distinct stack with the frames separated by ; followed by the number of samples, which is what flame graph
+ * tools (e.g. flamegraph.pl or speedscope) read:
+ * <pre>
+ * SumTest.R;test.sum();calculateSum;checkInput 12
+ * </pre>
+ * The first frame is the test file and the second the test, the rest are the profiled R functions.
+ */
+public class ProfileReport {
+
+  /** The name of the collapsed stack file of the whole run, the files of the test files are in FILES_DIRECTORY */
+  static final String FILE_NAME = "renjin-profile";
+  static final String FILES_DIRECTORY = "files";
+  /** The frames of a stack before the first function: the test file and the test */
+  private static final int ROOT_FRAMES = 2;
+
+  private final File file;
+  private final long sampleCount;
+  private final List<HotFunction> hotFunctions;
+
+  private ProfileReport(File file, long sampleCount, List<HotFunction> hotFunctions) {
+    this.file = file;
+    this.sampleCount = sampleCount;
+    this.hotFunctions = hotFunctions;
+  }
+
+  /**
+   * Merge the collapsed stacks of the test files into one file for the run.
+   *
+   * @param directory the profileOutputDirectory
+   * @param nameSuffix added to the name of the file of the run, e.g. to keep the profiles of shards apart
+   * @param hotFunctionCount the max number of hot functions to keep
+   * @return the report of the run
+   * @throws IOException if a file could not be read or written
+   */
+  public static ProfileReport aggregate(File directory, String nameSuffix, int hotFunctionCount) throws IOException {
+    Map<String, Long> stacks = new HashMap<>();
+    File[] files = new File(directory, FILES_DIRECTORY).listFiles((dir, name) -> name.endsWith(TestProfiler.EXTENSION));
+    if (files != null) {
+      for (File file : files) {
+        read(file, stacks);
+      }
+    }
+    File file = new File(directory, FILE_NAME + nameSuffix + TestProfiler.EXTENSION);
+    write(file, stacks);
+    long sampleCount = stacks.values().stream().mapToLong(Long::longValue).sum();
+    return new ProfileReport(file, sampleCount, hotFunctions(stacks, hotFunctionCount));
+  }
+
+  /**
+   * @return the collapsed stack file of the run
+   */
+  public File getFile() {
+    return file;
+  }
+
+  public long getSampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * @return the functions with the most samples, most first
+   */
+  public List<HotFunction> getHotFunctions() {
+    return hotFunctions;
+  }
+
+  /**
+   * Add the samples in a collapsed stack file to the counts.
+   */
+  static void read(File file, Map<String, Long> stacks) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int idx = line.lastIndexOf(' ');
+        if (idx <= 0) {
+          continue;
+        }
+        try {
+          stacks.merge(line.substring(0, idx), Long.parseLong(line.substring(idx + 1)), Long::sum);
+        } catch (NumberFormatException e) {
+          // not a collapsed stack line
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the counts as a collapsed stack file, sorted by stack.
+   */
+  static void write(File file, Map<String, Long> stacks) throws IOException {
+    Files.createDirectories(file.getParentFile().toPath());
+    File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    try (Writer out = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Long> entry : new TreeMap<>(stacks).entrySet()) {
+        out.write(entry.getKey() + " " + entry.getValue() + "\n");
+      }
+    }
+    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  static List<HotFunction> hotFunctions(Map<String, Long> stacks, int count) {
+    Map<String, HotFunction> functions = new HashMap<>();
+    for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+      String[] frames = entry.getKey().split(";");
+      if (frames.length <= ROOT_FRAMES) {
+        continue;
+      }
+      Set<String> seen = new HashSet<>();
+      for (int i = ROOT_FRAMES; i < frames.length; i++) {
+        // a recursive function is counted once per sample
+        if (seen.add(frames[i])) {
+          functions.computeIfAbsent(frames[i], HotFunction::new).totalSamples += entry.getValue();
+        }
+      }
+      functions.get(frames[frames.length - 1]).selfSamples += entry.getValue();
+    }
+    return functions.values().stream()
+        .sorted(Comparator.comparingLong(HotFunction::getSelfSamples)
+            .thenComparingLong(HotFunction::getTotalSamples).reversed()
+            .thenComparing(HotFunction::getName))
+        .limit(Math.max(0, count))
+        .collect(Collectors.toCollection(ArrayList::new));
+  }
+
+  /**
+   * The number of samples in which a function was running itself (self) or was on the stack (total).
+   */
+  public static class HotFunction {
+
+    private final String name;
+    private long selfSamples;
+    private long totalSamples;
+
+    HotFunction(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSelfSamples() {
+      return selfSamples;
+    }
+
+    public long getTotalSamples() {
+      return totalSamples;
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+import org.renjin.RenjinVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Goal which runs the bench.* functions in R files and reports the time and allocation per call.
+ */
+@Mojo(name = "benchR",
+    defaultPhase = LifecyclePhase.INTEGRATION_TEST,
+    requiresDependencyResolution = ResolutionScope.TEST,
+    requiresProject = true
+)
+public class RenjinBenchMojo extends AbstractMojo {
+
+  @Parameter(defaultValue = "${project}", readonly = true)
+  private MavenProject project;
+
+  /**
+   * Where the R files with the bench.* functions are
+   */
+  @Parameter(name = "benchSourceDirectory", property = "benchR.benchSourceDirectory",
+      defaultValue = "${project.basedir}/src/bench/R", required = true)
+  private File benchSourceDirectory;
+
+  @Parameter(name = "reportOutputDirectory", property = "benchR.reportOutputDirectory",
+      defaultValue = "${project.build.directory}/renjin-bench-reports", required = true)
+  private File reportOutputDirectory;
+
+  @Parameter(name = "sourceDirectory", property = "benchR.sourceDirectory",
+      defaultValue = "${project.basedir}/src/main/R", required = true)
+  private File sourceDirectory;
+
+  @Parameter(name = "runSourceScriptsBeforeBenchmarks", property = "benchR.runSourceScriptsBeforeBenchmarks",
+      defaultValue = "false")
+  private boolean runSourceScriptsBeforeBenchmarks;
+
+  /**
+   * Packages to load once into the session before the bench files are run
+   */
+  @Parameter(name = "preloadPackages", property = "benchR.preloadPackages")
+  private List<String> preloadPackages;
+
+  @Parameter(name = "warmupIterations", property = "benchR.warmupIterations", defaultValue = "5")
+  private int warmupIterations;
+
+  @Parameter(name = "measurementIterations", property = "benchR.measurementIterations", defaultValue = "10")
+  private int measurementIterations;
+
+  /**
+   * The min time in milliseconds of each iteration, the bench function is called repeatedly until it has passed
+   */
+  @Parameter(name = "iterationTime", property = "benchR.iterationTime", defaultValue = "1000")
+  private long iterationTime;
+
+  /**
+   * A renjin-bench-results.csv from a previous run to compare the mean time per call against
+   */
+  @Parameter(name = "baselineFile", property = "benchR.baselineFile")
+  private File baselineFile;
+
+  /**
+   * How many percent slower than the baseline a benchmark may get before it counts as a regression
+   */
+  @Parameter(name = "regressionThreshold", property = "benchR.regressionThreshold", defaultValue = "10")
+  private double regressionThreshold;
+
+  /**
+   * Whether to fail the build if some benchmark regressed compared to the baseline (or failed)
+   */
+  @Parameter(name = "failOnRegression", property = "benchR.failOnRegression", defaultValue = "true")
+  private boolean failOnRegression;
+
+  @Parameter(name = "skipBenchmarks", property = "benchR.skip", defaultValue = "false")
+  private boolean skipBenchmarks;
+
+  private final Logger logger = LoggerFactory.getLogger(RenjinBenchMojo.class);
+  private final String[] extensions = new String[]{"R", "r", "S", "s"};
+
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    if (skipBenchmarks) {
+      logger.info("Renjin benchmarks are skipped");
+      return;
+    }
+    logger.info("");
+    logger.info("--------------------------------------------------------");
+    logger.info("               RENJIN BENCHMARKS");
+    logger.info("               Renjin ver: {}", RenjinVersion.getVersionName());
+    logger.info("--------------------------------------------------------");
+
+    if (project == null) {
+      throw new MojoExecutionException("MavenProject is null, cannot continue");
+    }
+    if (!benchSourceDirectory.exists()) {
+      logger.info("No bench files found in bench source directory {}", benchSourceDirectory);
+      return;
+    }
+    if (!reportOutputDirectory.exists()) {
+      reportOutputDirectory.mkdirs();
+    }
+    List<File> benchFiles = new ArrayList<>(FileUtils.listFiles(benchSourceDirectory, extensions, true));
+    Collections.sort(benchFiles);
+
+    ClassLoader classLoader = RenjinTestMojo.createTestClassLoader(project);
+    RunnerSettings settings = new RunnerSettings();
+    settings.setTestOutputDirectory(benchSourceDirectory);
+    if (runSourceScriptsBeforeBenchmarks) {
+      settings.setSourceDirectory(sourceDirectory);
+    }
+    settings.setPreloadPackages(preloadPackages);
+    TestLog log = new TestLog(logger, false);
+
+    Thread thread = Thread.currentThread();
+    ClassLoader originalClassLoader = thread.getContextClassLoader();
+    List<BenchResult> results = new ArrayList<>();
+    try {
+      thread.setContextClassLoader(classLoader);
+      RenjinTestRunner template = RenjinTestRunner.create(classLoader, settings, log);
+      RenjinBenchRunner runner = new RenjinBenchRunner(template, warmupIterations, measurementIterations, iterationTime);
+      for (File benchFile : benchFiles) {
+        results.addAll(runner.runBenchFile(benchFile, log));
+      }
+    } finally {
+      thread.setContextClassLoader(originalClassLoader);
+    }
+
+    try {
+      BenchReportWriter.writeJson(new File(reportOutputDirectory, BenchReportWriter.JSON_FILE_NAME), results);
+      BenchReportWriter.writeCsv(new File(reportOutputDirectory, BenchReportWriter.CSV_FILE_NAME), results);
+    } catch (IOException e) {
+      throw new MojoExecutionException("Failed to write benchmark results to " + reportOutputDirectory, e);
+    }
+    printSummary(results);
+  }
+
+  private void printSummary(List<BenchResult> results) throws MojoExecutionException, MojoFailureException {
+    List<String> problems = new ArrayList<>();
+    for (BenchResult res : results) {
+      if (res.getError() != null) {
+        problems.add(res.getName() + " failed: " + TestResultPrinter.formatMessage(res.getError()));
+      }
+    }
+    Map<String, Double> baseline = Collections.emptyMap();
+    if (baselineFile != null) {
+      if (baselineFile.exists()) {
+        try {
+          baseline = BenchReportWriter.readMeans(baselineFile);
+        } catch (IOException | RuntimeException e) {
+          throw new MojoExecutionException("Failed to read baseline file " + baselineFile, e);
+        }
+      } else {
+        logger.warn("Baseline file {} does not exist, nothing to compare against", baselineFile);
+      }
+    }
+
+    logger.info("");
+    logger.info("R benchmarks summary:");
+    logger.info("---------------------");
+    for (BenchResult res : results) {
+      if (res.getError() != null) {
+        continue;
+      }
+      Double baselineMean = baseline.get(res.getName());
+      if (baselineMean == null || baselineMean <= 0) {
+        logger.info("\t{}: {} ns/op", res.getName(), BenchReportWriter.format(res.getMean()));
+        continue;
+      }
+      double change = (res.getMean() - baselineMean) / baselineMean * 100;
+      logger.info("\t{}: {} ns/op, baseline {} ns/op ({}{}%)", res.getName(), BenchReportWriter.format(res.getMean()),
+          BenchReportWriter.format(baselineMean), change > 0 ? "+" : "", BenchReportWriter.format(change));
+      if (change > regressionThreshold) {
+        problems.add(res.getName() + " regressed by " + BenchReportWriter.format(change) + "% (threshold "
+            + BenchReportWriter.format(regressionThreshold) + "%)");
+      }
+    }
+    logger.info("Results written to {}", reportOutputDirectory);
+    logger.info("");
+    logger.info("--------------END OF RENJIN BENCHMARKS--------------\n");
+
+    if (problems.isEmpty()) {
+      return;
+    }
+    for (String problem : problems) {
+      logger.error("\t{}", problem);
+    }
+    if (failOnRegression) {
+      throw new MojoFailureException(problems.size() + " benchmarks failed or regressed: " + problems.get(0));
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.renjin.eval.Context;
+import org.renjin.eval.Session;
+import org.renjin.parser.RParser;
+import org.renjin.sexp.Environment;
+import org.renjin.sexp.ExpressionVector;
+import org.renjin.sexp.FunctionCall;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.Symbol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static se.alipsa.renjintestplugin.TestResultPrinter.formatMessage;
+
+/**
+ * Runs the bench.* functions (no args functions whose name starts with bench.) in R files. Each bench file is
+ * evaluated in its own environment in the session of a {@link RenjinTestRunner} which is used as a template
+ * the same way as when running tests.
+ * <p>
+ * Each function is first run for a number of warmup iterations and then for a number of measurement iterations.
+ * An iteration calls the function repeatedly until the iteration time has passed (but at least once) and records
+ * the average time per call.</p>
+ */
+public class RenjinBenchRunner {
+
+  static final String BENCH_PREFIX = "bench.";
+
+  private final RenjinTestRunner template;
+  private final int warmupIterations;
+  private final int measurementIterations;
+  private final long iterationNanos;
+
+  /**
+   * @param template the runner whose session is used for the bench files
+   * @param warmupIterations the number of iterations to run before measuring
+   * @param measurementIterations the number of iterations to measure
+   * @param iterationMillis the min time of an iteration
+   */
+  public RenjinBenchRunner(RenjinTestRunner template, int warmupIterations, int measurementIterations,
+                           long iterationMillis) {
+    this.template = template;
+    this.warmupIterations = warmupIterations;
+    this.measurementIterations = Math.max(1, measurementIterations);
+    this.iterationNanos = TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+  }
+
+  /**
+   * Evaluate the bench file and run each bench function defined in it.
+   *
+   * @param benchFile the file to run
+   * @param log where to write the console output
+   * @return the results, if the file itself failed a single result with the error
+   * @throws MojoExecutionException if the session could not be set up for running the bench file
+   */
+  public List<BenchResult> runBenchFile(File benchFile, TestLog log) throws MojoExecutionException {
+    log.info("");
+    log.info("# Running {}", benchFile.getName());
+    Session session = template.getSession();
+    try {
+      session.setWorkingDirectory(benchFile.getParentFile());
+    } catch (FileSystemException e) {
+      throw new MojoExecutionException("Failed to set working dir for session to " + benchFile.getParentFile());
+    }
+    Environment environment = Environment.createChildEnvironment(session.getGlobalEnvironment()).build();
+    Context context = session.getTopLevelContext();
+    try {
+      try {
+        evaluate(context, environment, benchFile);
+      } catch (IOException | RuntimeException e) {
+        log.error("\t# {}: Failure detected: {}", benchFile.getName(), formatMessage(e));
+        BenchResult result = new BenchResult(benchFile, benchFile.getName());
+        result.setError(e);
+        return Collections.singletonList(result);
+      }
+      List<BenchResult> results = new ArrayList<>();
+      for (Symbol name : RenjinTestRunner.findFunctions(context, environment, BENCH_PREFIX)) {
+        results.add(runBenchFunction(context, environment, benchFile, name, log));
+      }
+      return results;
+    } finally {
+      template.restoreTemplate();
+    }
+  }
+
+  private BenchResult runBenchFunction(Context context, Environment environment, File benchFile, Symbol name,
+                                       TestLog log) {
+    String functionName = name.getPrintName().trim() + "()";
+    BenchResult result = new BenchResult(benchFile, functionName);
+    FunctionCall call = FunctionCall.newCall(name);
+    long[] iteration = new long[2];
+    try {
+      for (int i = 0; i < warmupIterations; i++) {
+        runIteration(context, environment, call, iteration);
+      }
+      double[] nanosPerOp = new double[measurementIterations];
+      long operations = 0;
+      long allocatedStart = ResourceMeter.allocatedBytes();
+      for (int i = 0; i < measurementIterations; i++) {
+        runIteration(context, environment, call, iteration);
+        operations += iteration[0];
+        nanosPerOp[i] = iteration[1] / (double) iteration[0];
+      }
+      long allocatedEnd = ResourceMeter.allocatedBytes();
+      result.setNanosPerOp(nanosPerOp);
+      result.setOperations(operations);
+      if (allocatedStart >= 0 && allocatedEnd >= 0) {
+        result.setAllocatedBytesPerOp((allocatedEnd - allocatedStart) / (double) operations);
+      }
+      log.info("\t# {}: mean {} ns/op, p50 {}, p90 {}, p99 {}, {} B/op ({} ops)", functionName,
+          BenchReportWriter.format(result.getMean()), BenchReportWriter.format(result.getPercentile(50)),
+          BenchReportWriter.format(result.getPercentile(90)), BenchReportWriter.format(result.getPercentile(99)),
+          BenchReportWriter.format(result.getAllocatedBytesPerOp()), operations);
+    } catch (RuntimeException e) {
+      log.error("\t# {}: Failure detected: {}", functionName, formatMessage(e));
+      result.setError(e);
+    }
+    return result;
+  }
+
+  /**
+   * Call the function until the iteration time has passed.
+   *
+   * @param iteration gets the number of calls and the elapsed nanos
+   */
+  private void runIteration(Context context, Environment environment, FunctionCall call, long[] iteration) {
+    long operations = 0;
+    long start = System.nanoTime();
+    long elapsed;
+    do {
+      context.evaluate(call, environment);
+      operations++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < iterationNanos);
+    iteration[0] = operations;
+    iteration[1] = elapsed;
+  }
+
+  private void evaluate(Context context, Environment environment, File file) throws IOException {
+    ExpressionVector expressions;
+    try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      expressions = RParser.parseSource(reader, file.getAbsolutePath());
+    }
+    for (SEXP expression : expressions) {
+      context.evaluate(expression, environment);
+    }
+  }
+}
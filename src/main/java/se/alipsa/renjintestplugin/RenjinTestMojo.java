@@ -1,39 +1,30 @@
 package se.alipsa.renjintestplugin;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.DirectoryFileFilter;
-import org.apache.commons.io.filefilter.FileFilterUtils;
-import org.apache.commons.io.filefilter.IOFileFilter;
-import org.apache.commons.io.filefilter.SuffixFileFilter;
-import org.apache.commons.vfs2.FileSystemException;
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.DependencyResolutionRequiredException;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
 import org.apache.maven.plugins.annotations.*;
 import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.renjin.RenjinVersion;
-import org.renjin.eval.Context;
-import org.renjin.eval.EvalException;
-import org.renjin.eval.Session;
-import org.renjin.eval.SessionBuilder;
-import org.renjin.script.RenjinScriptEngine;
-import org.renjin.script.RenjinScriptEngineFactory;
-import org.renjin.sexp.Closure;
-import org.renjin.sexp.FunctionCall;
-import org.renjin.sexp.SEXP;
-import org.renjin.sexp.Symbol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.script.ScriptException;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.*;
-
-import static se.alipsa.renjintestplugin.TestResultPrinter.formatMessage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Goal which runs Renjin tests.
@@ -80,27 +71,406 @@ public class RenjinTestMojo extends AbstractMojo {
   @Parameter(name = "printSuccess", property = "testR.printSuccess", defaultValue = "false")
   private boolean printSuccess;
 
+  /**
+   * Packages to load once into the session template, e.g. hamcrest, so that each test file does not have to
+   */
+  @Parameter(name = "preloadPackages", property = "testR.preloadPackages")
+  private List<String> preloadPackages;
+
+  /**
+   * The number of test files to run in parallel, each thread gets its own Session
+   */
+  @Parameter(name = "threadCount", property = "testR.threadCount", defaultValue = "1")
+  private int threadCount;
+
   /**
    * key value pairs e.g. library('xmlr')
    */
   @Parameter(name = "replaceStringsWhenCopy", property = "testR.replaceStringsWhenCopy")
   private Properties replaceStringsWhenCopy;
 
+  /**
+   * The number of JVMs to fork for running the tests, 0 means run the tests in the maven JVM
+   */
+  @Parameter(name = "forkCount", property = "testR.forkCount", defaultValue = "0")
+  private int forkCount;
+
+  /**
+   * Whether a forked JVM should run more than one test file
+   */
+  @Parameter(name = "reuseForks", property = "testR.reuseForks", defaultValue = "true")
+  private boolean reuseForks;
+
+  /**
+   * Additional JVM arguments for the forked JVMs
+   */
+  @Parameter(name = "argLine", property = "testR.argLine")
+  private String argLine;
+
+  /**
+   * The max heap size of each forked JVM (-Xmx), e.g. 2g
+   */
+  @Parameter(name = "forkMaxHeap", property = "testR.forkMaxHeap")
+  private String forkMaxHeap;
+
+  /**
+   * Only run test files that have changed (or whose inputs have changed) or failed since the previous run
+   */
+  @Parameter(name = "incremental", property = "testR.incremental", defaultValue = "false")
+  private boolean incremental;
+
+  /**
+   * Where the incremental mode keeps track of the test files and their outcome
+   */
+  @Parameter(name = "incrementalStateFile", property = "testR.incrementalStateFile",
+      defaultValue = "${project.build.directory}/renjin-test-state.dat")
+  private File incrementalStateFile;
+
+  /**
+   * The max number of seconds a single test (the top level code of a test file or a test function) may run,
+   * 0 means no limit
+   */
+  @Parameter(name = "testTimeout", property = "testR.testTimeout", defaultValue = "0")
+  private int testTimeout;
+
+  /**
+   * The max number of seconds all tests in a test file may run, 0 means no limit
+   */
+  @Parameter(name = "fileTimeout", property = "testR.fileTimeout", defaultValue = "0")
+  private int fileTimeout;
+
+  /**
+   * The number of slowest tests to list in the summary, 0 means do not list any
+   */
+  @Parameter(name = "printSlowestTests", property = "testR.printSlowestTests", defaultValue = "10")
+  private int printSlowestTests;
+
+  /**
+   * The order to run the test files in, a comma separated list of filesystem, alphabetical,
+   * reversealphabetical, failedfirst and longestfirst, see {@link RunOrder}
+   */
+  @Parameter(name = "runOrder", property = "testR.runOrder", defaultValue = RunOrder.FILESYSTEM)
+  private String runOrder;
+
+  /**
+   * Where the duration and outcome of each test file from previous runs is kept
+   */
+  @Parameter(name = "historyFile", property = "testR.historyFile",
+      defaultValue = "${project.build.directory}/renjin-test-history.dat")
+  private File historyFile;
+
+  /**
+   * Stop running new test files once this many tests have failed (or had errors), the test files that are not run
+   * are reported as skipped. 0 means never stop
+   */
+  @Parameter(name = "skipAfterFailureCount", property = "testR.skipAfterFailureCount", defaultValue = "0")
+  private int skipAfterFailureCount;
+
+  /**
+   * Shorthand for skipAfterFailureCount = 1
+   */
+  @Parameter(name = "failFast", property = "testR.failFast", defaultValue = "false")
+  private boolean failFast;
+
+  /**
+   * The number of shards to split the test files into, e.g. one per CI node
+   */
+  @Parameter(name = "shardCount", property = "testR.shardCount", defaultValue = "1")
+  private int shardCount;
+
+  /**
+   * The shard (0 to shardCount - 1) to run
+   */
+  @Parameter(name = "shardIndex", property = "testR.shardIndex", defaultValue = "0")
+  private int shardIndex;
+
+  /**
+   * Keep the parsed test files and source scripts in parseCacheDirectory so that unchanged files are not parsed again,
+   * opt-in
+   */
+  @Parameter(name = "parseCache", property = "testR.parseCache", defaultValue = "false")
+  private boolean parseCache;
+
+  /**
+   * Where the parse cache keeps the parsed R files
+   */
+  @Parameter(name = "parseCacheDirectory", property = "testR.parseCacheDirectory",
+      defaultValue = "${project.build.directory}/renjin-parse-cache")
+  private File parseCacheDirectory;
+
+  /**
+   * Keep the class loader and the session templates alive after the tests are done so that later executions in
+   * the same build with the same dependencies (e.g. other modules in a reactor build) can reuse the class loader of
+   * the dependencies, and executions of the same module the session templates
+   */
+  @Parameter(name = "reuseSessions", property = "testR.reuseSessions", defaultValue = "false")
+  private boolean reuseSessions;
+
+  /**
+   * The max number of different test classpaths (sets of dependencies) to keep class loaders and sessions for
+   * when reuseSessions is true
+   */
+  @Parameter(name = "sessionCacheSize", property = "testR.sessionCacheSize", defaultValue = "4")
+  private int sessionCacheSize;
+
+  /**
+   * Run each test*.R file in a testthat directory as a test file of its own (each test_that() call being a test)
+   * instead of running the testthat.R next to the directory
+   */
+  @Parameter(name = "nativeTestthat", property = "testR.nativeTestthat", defaultValue = "false")
+  private boolean nativeTestthat;
+
+  /**
+   * The number of sessions to run the test functions of a test file in parallel with, for the files matching
+   * parallelFunctionFiles or having a # @parallel comment line. 0 means the number of processors.
+   */
+  @Parameter(name = "functionThreadCount", property = "testR.functionThreadCount", defaultValue = "0")
+  private int functionThreadCount;
+
+  /**
+   * Wildcard patterns (e.g. *Simulation*.R) of the test files whose test functions are run in parallel
+   */
+  @Parameter(name = "parallelFunctionFiles", property = "testR.parallelFunctionFiles")
+  private List<String> parallelFunctionFiles;
+
+  /**
+   * Record which functions and other objects defined by the source scripts each test file uses and only run the test
+   * files that use something that has changed since they last succeeded (or that have changed themselves).
+   * Requires runSourceScriptsBeforeTests
+   */
+  @Parameter(name = "testImpact", property = "testR.testImpact", defaultValue = "false")
+  private boolean testImpact;
+
+  /**
+   * Where the test impact mode keeps the source dependencies of the test files
+   */
+  @Parameter(name = "testImpactFile", property = "testR.testImpactFile",
+      defaultValue = "${project.build.directory}/renjin-test-impact.dat")
+  private File testImpactFile;
+
+  /**
+   * Listeners (class names implementing TestRunListener) to send the events of the run to, in addition to the ones
+   * registered as services on the test classpath. The listeners of this plugin can be given without package, e.g.
+   * JsonLinesReporter or ConsoleProgressReporter
+   */
+  @Parameter(name = "listeners", property = "testR.listeners")
+  private List<String> listeners;
+
+  /**
+   * The max number of events waiting for the listeners, further events are dropped until the listeners catch up
+   */
+  @Parameter(name = "listenerQueueSize", property = "testR.listenerQueueSize", defaultValue = "10000")
+  private int listenerQueueSize;
+
+  /**
+   * Csv files (relative to the testOutputDirectory) to load once and bind as read-only data frames in every
+   * session, in addition to the csv files in the fixtures directory of the testOutputDirectory
+   */
+  @Parameter(name = "fixtures", property = "testR.fixtures")
+  private List<String> fixtures;
+
+  /**
+   * Where the fixtures are kept in a memory-mappable column format
+   */
+  @Parameter(name = "fixtureCacheDirectory", property = "testR.fixtureCacheDirectory",
+      defaultValue = "${project.build.directory}/renjin-fixtures")
+  private File fixtureCacheDirectory;
+
+  /**
+   * Run the tests on a long-lived test daemon that keeps warm sessions between builds instead of in the maven JVM.
+   * The daemon is started when it is not running. Falls back to running the tests in the maven JVM if the daemon
+   * cannot be reached. Ignored when forkCount is set
+   */
+  @Parameter(name = "daemon", property = "testR.daemon", defaultValue = "false")
+  private boolean daemon;
+
+  /**
+   * Where the test daemon writes its port, token and log
+   */
+  @Parameter(name = "daemonDirectory", property = "testR.daemonDirectory",
+      defaultValue = "${user.home}/.renjin-test/daemon")
+  private File daemonDirectory;
+
+  /**
+   * How long (in minutes) the test daemon stays alive without being used
+   */
+  @Parameter(name = "daemonIdleTimeout", property = "testR.daemonIdleTimeout", defaultValue = "180")
+  private long daemonIdleTimeout;
+
+  /**
+   * The max heap size of the test daemon (-Xmx), the cached sessions are dropped when most of it is in use
+   */
+  @Parameter(name = "daemonMaxHeap", property = "testR.daemonMaxHeap", defaultValue = "2g")
+  private String daemonMaxHeap;
+
+  /**
+   * Sample which R functions (defined by the source scripts and the test files) the tests are running and write
+   * collapsed stacks for flame graph tools, per test file and for the whole run, to the profileOutputDirectory
+   */
+  @Parameter(name = "profile", property = "testR.profile", defaultValue = "false")
+  private boolean profile;
+
+  /**
+   * How often (in milliseconds) to take a sample when profiling
+   */
+  @Parameter(name = "profileInterval", property = "testR.profileInterval", defaultValue = "10")
+  private int profileInterval;
+
+  /**
+   * Where the collapsed stacks of the profile are written
+   */
+  @Parameter(name = "profileOutputDirectory", property = "testR.profileOutputDirectory",
+      defaultValue = "${project.build.directory}/renjin-profile")
+  private File profileOutputDirectory;
+
+  /**
+   * The number of functions with the most samples to show in the summary when profiling
+   */
+  @Parameter(name = "profileTopFunctions", property = "testR.profileTopFunctions", defaultValue = "10")
+  private int profileTopFunctions;
+
+  @Parameter(defaultValue = "${plugin}", readonly = true)
+  private PluginDescriptor pluginDescriptor;
+
   private final Logger logger = LoggerFactory.getLogger(RenjinTestMojo.class);
   private ClassLoader classLoader;
   private final String[] extensions = new String[]{"R", "r", "S", "s"};
+  /** How long a forked JVM gets on top of the fileTimeout to stop a timed out test by itself before it is killed */
+  private static final long FORK_KILL_GRACE_MILLIS = 10_000;
+  /** How long to wait for a new test daemon to start listening */
+  private static final long DAEMON_START_TIMEOUT_MILLIS = 30_000;
+
+  private final AtomicInteger workerCount = new AtomicInteger();
+  private final AtomicInteger failureCount = new AtomicInteger();
   private List<TestResult> results;
-  private RenjinScriptEngineFactory factory;
-  private Session session;
+  private RunStatistics statistics;
+  private JUnitReportWriter reportWriter;
+  private RunnerCache runnerCache;
+  private String templateKey;
+  private List<String> testClasspathElements;
+  private final List<RenjinTestRunner> activeRunners = Collections.synchronizedList(new ArrayList<>());
+  private TestFunctionPool functionPool;
+  private TestDaemonClient daemonClient;
+  private List<File> fixtureFiles;
+  private ListenerDispatcher listenerDispatcher;
 
   public void execute() throws MojoExecutionException, MojoFailureException {
+    if (!prepare("RENJIN TESTS")) {
+      return;
+    }
+    String reportNameSuffix = shardCount > 1 ? "-shard" + shardIndex + "of" + shardCount : "";
+    reportWriter = new JUnitReportWriter(reportOutputDirectory, testOutputDirectory, reportNameSuffix);
+
+    List<File> testFiles = listTestFiles();
+    TestHistory history = new TestHistory(historyFile, testOutputDirectory);
+    if (shardCount != 1 || shardIndex != 0) {
+      int fileCount = testFiles.size();
+      testFiles = TestSharding.select(testFiles, shardIndex, shardCount, history);
+      logger.info("Running shard {} of {} ({} of {} files), balanced by {}", shardIndex, shardCount, testFiles.size(),
+          fileCount, history.isEmpty() ? "file size" : "duration in " + historyFile);
+    }
+    TestImpact impact = null;
+    if (isTestImpact()) {
+      impact = new TestImpact(testImpactFile, testOutputDirectory, sourceDirectory, createInputsHash(false));
+      testFiles = selectAffectedTestFiles(impact, testFiles);
+    }
+    Map<File, List<TestResult>> reusedResults = new LinkedHashMap<>();
+    IncrementalState incrementalState = null;
+    if (incremental) {
+      incrementalState = new IncrementalState(incrementalStateFile, testOutputDirectory, createInputsHash(true));
+      testFiles = selectChangedTestFiles(incrementalState, testFiles, reusedResults);
+    }
+    testFiles = RunOrder.sort(testFiles, runOrder, history);
+    if (profile) {
+      clearProfile();
+    }
+
+    listenerDispatcher = new ListenerDispatcher(ListenerDispatcher.createListeners(listeners, classLoader),
+        listenerQueueSize, classLoader);
+    List<File> runFiles = new ArrayList<>(reusedResults.keySet());
+    runFiles.addAll(testFiles);
+    listenerDispatcher.runStarted(new TestRunInfo(runFiles, testOutputDirectory, reportOutputDirectory,
+        reportNameSuffix));
+    // the listeners get the results of the unchanged test files before the others are run
+    reusedResults.forEach(this::addResults);
+    List<File> executedFiles;
+    Properties daemonInfo = daemon && forkCount <= 0 && !testFiles.isEmpty() ? startDaemon() : null;
+    if (forkCount <= 0 && daemonInfo == null && getFunctionThreadCount() > 1) {
+      // the test files running in parallel each get their own workers
+      int fileCount = threadCount > 1 && testFiles.size() > 1 ? threadCount : 1;
+      functionPool = new TestFunctionPool(getFunctionThreadCount() - 1, fileCount, classLoader, this::createRunner);
+    }
+    try {
+      if (testFiles.isEmpty()) {
+        executedFiles = new ArrayList<>();
+      } else if (forkCount > 0) {
+        executedFiles = runForked(testFiles);
+      } else if (daemonInfo != null) {
+        executedFiles = runOnDaemon(testFiles, daemonInfo);
+      } else if (threadCount > 1 && testFiles.size() > 1) {
+        executedFiles = runInParallel(testFiles);
+      } else {
+        executedFiles = runSequentially(testFiles);
+      }
+      listenerDispatcher.runFinished(results, statistics);
+    } finally {
+      if (functionPool != null) {
+        functionPool.close();
+      }
+      // wait for the reports of the test files that are done
+      reportWriter.close();
+      listenerDispatcher.close();
+      listenerDispatcher = null;
+      releaseRunners();
+    }
+    executedFiles.addAll(reusedResults.keySet());
+
+    history.update(results);
+    try {
+      history.save();
+    } catch (IOException e) {
+      logger.warn("Failed to write {}: {}", historyFile, e.toString());
+    }
+    if (incrementalState != null) {
+      try {
+        incrementalState.save(results);
+      } catch (IOException e) {
+        logger.warn("Failed to write {}: {}", incrementalStateFile, e.toString());
+      }
+    }
+    if (impact != null) {
+      try {
+        impact.save(results);
+      } catch (IOException e) {
+        logger.warn("Failed to write {}: {}", testImpactFile, e.toString());
+      }
+    }
+
+    if (profile) {
+      try {
+        statistics.setProfile(ProfileReport.aggregate(profileOutputDirectory, reportNameSuffix, profileTopFunctions));
+      } catch (IOException e) {
+        logger.warn("Failed to write the profile to {}: {}", profileOutputDirectory, e.toString());
+      }
+    }
+    TestSummaryWriter.write(reportOutputDirectory, testOutputDirectory, results, statistics, reportNameSuffix);
+    TestResultPrinter.printResultToConsole(logger, results, testFailureIgnore, executedFiles, statistics, printSlowestTests);
+  }
+
+  /**
+   * Check the configuration, sync the test files to the testOutputDirectory and set up the class loader.
+   *
+   * @param title the title of the goal to log
+   * @return false if there is nothing to do, i.e. the tests are skipped or there are no test files
+   */
+  boolean prepare(String title) throws MojoExecutionException {
     if (isSkipTests()) {
       logger.info("Renjin Tests are skipped");
-      return;
+      return false;
     }
     logger.info("");
     logger.info("--------------------------------------------------------");
-    logger.info("               RENJIN TESTS");
+    logger.info("               {}", title);
     logger.info("               Renjin ver: {}",RenjinVersion.getVersionName());
     logger.info("--------------------------------------------------------");
 
@@ -126,229 +496,671 @@ public class RenjinTestMojo extends AbstractMojo {
       logger.info("testFailureIgnore is true, will not halt the build if test failures occur");
     }
 
+    if (!testSourceDirectory.exists()) {
+      logger.info("No test files found in test source directory {}", testSourceDirectory);
+      return false;
+    }
+    logger.debug("replaceStringsWhenCopy = {}", replaceStringsWhenCopy);
+    syncTestFiles(false);
+    fixtureFiles = listFixtureFiles();
+
+    setUpClassLoader();
+
+    results = Collections.synchronizedList(new ArrayList<>());
+    statistics = new RunStatistics();
+    return true;
+  }
+
+  /**
+   * Copy the new and changed test files to the testOutputDirectory.
+   *
+   * @param allTestResources whether to sync all test resources, normally only the R files are synced along with
+   * the test sources and the other test resources are copied by maven
+   * @return the files in the testOutputDirectory that were copied or deleted
+   */
+  List<File> syncTestFiles(boolean allTestResources) throws MojoExecutionException {
+    TestSourceSync sync = new TestSourceSync(testOutputDirectory, extensions, replaceStringsWhenCopy);
+    sync.addDirectory(testResourceDirectory, !allTestResources);
+    sync.addDirectory(testSourceDirectory, false);
     try {
-      String[] files = testOutputDirectory.list();
-      if (testOutputDirectory.exists() && files != null && files.length > 0) {
-        logger.info("Cleaning up after previous run...");
-        FileUtils.listFiles(testOutputDirectory, extensions, true).forEach(File::delete);
-      }
+      return sync.sync();
+    } catch (IOException e) {
+      throw new MojoExecutionException("Failed to copy files from " + testSourceDirectory + " to " + testOutputDirectory, e);
+    }
+  }
 
-      logger.debug("replaceStringsWhenCopy = {}", replaceStringsWhenCopy);
-      // If there was R files in the test resource dir,
-      // they would have been deleted in the cleanup above so we need to restore
-      IOFileFilter suffixFilter = new SuffixFileFilter(extensions);
-      FileFilter filter = FileFilterUtils.or(DirectoryFileFilter.DIRECTORY, suffixFilter);
+  /**
+   * @return the results of the last run
+   */
+  List<TestResult> getResults() {
+    return results;
+  }
 
-      if (testResourceDirectory != null && testResourceDirectory.exists()) {
-        try {
-          logger.info("Copying testResourceDirectory = {} to testOutputDirectory = {}",
-              testResourceDirectory, testOutputDirectory);
-          if (replaceStringsWhenCopy != null && replaceStringsWhenCopy.size() > 0) {
-            StringReplacementFileCopier.copyDirectory(testResourceDirectory, testOutputDirectory, filter, replaceStringsWhenCopy);
-          } else {
-            FileUtils.copyDirectory(testResourceDirectory, testOutputDirectory, filter);
-          }
-        } catch (IOException e) {
-          throw new MojoExecutionException("Failed to copy files from " + testResourceDirectory + " to " + testOutputDirectory, e);
+  /**
+   * @return the statistics of the last run
+   */
+  RunStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * @return the test files in the testOutputDirectory
+   */
+  List<File> listTestFiles() {
+    List<File> testFiles = new ArrayList<>(FileUtils.listFiles(testOutputDirectory, extensions, true));
+    testFiles.removeIf(file -> !RenjinTestRunner.isTestFile(file, nativeTestthat));
+    return testFiles;
+  }
+
+  /**
+   * @return the csv files in the fixtures directory of the testOutputDirectory and the ones listed in fixtures
+   * @throws MojoExecutionException if a listed file does not exist or two fixtures would get the same name
+   */
+  private List<File> listFixtureFiles() throws MojoExecutionException {
+    Set<File> files = new LinkedHashSet<>();
+    File fixtureDir = new File(testOutputDirectory, "fixtures");
+    if (fixtureDir.isDirectory()) {
+      files.addAll(new TreeSet<>(FileUtils.listFiles(fixtureDir, new String[]{"csv"}, true)));
+    }
+    if (fixtures != null) {
+      for (String path : fixtures) {
+        File file = new File(path.trim());
+        if (!file.isAbsolute()) {
+          file = new File(testOutputDirectory, path.trim());
         }
+        if (!file.isFile()) {
+          throw new MojoExecutionException("Fixture " + file + " does not exist");
+        }
+        files.add(file.getAbsoluteFile());
+      }
+    }
+    Map<String, File> names = new HashMap<>();
+    for (File file : files) {
+      File other = names.put(FixtureStore.fixtureName(file), file);
+      if (other != null) {
+        throw new MojoExecutionException("Fixtures " + other + " and " + file + " would both be named "
+            + FixtureStore.fixtureName(file));
       }
-      logger.info("Copying {} to {}", testSourceDirectory, testOutputDirectory);
-      if (testSourceDirectory.exists()) {
-        if (replaceStringsWhenCopy != null && replaceStringsWhenCopy.size() > 0) {
-          StringReplacementFileCopier.copyDirectory(testSourceDirectory, testOutputDirectory, filter, replaceStringsWhenCopy);
+    }
+    return new ArrayList<>(files);
+  }
+
+  /**
+   * Collect the results from the previous run for the test files that are up to date in reusedResults.
+   *
+   * @return the test files that need to run
+   */
+  private List<File> selectChangedTestFiles(IncrementalState state, List<File> testFiles,
+                                            Map<File, List<TestResult>> reusedResults) throws MojoExecutionException {
+    List<File> changedFiles = new ArrayList<>();
+    try {
+      for (File testFile : testFiles) {
+        List<TestResult> previousResults = state.getUpToDateResults(testFile);
+        if (previousResults == null) {
+          changedFiles.add(testFile);
         } else {
-          FileUtils.copyDirectory(testSourceDirectory, testOutputDirectory);
+          reusedResults.put(testFile, previousResults);
         }
-      } else {
-        logger.info("No test files found in test source directory {}", testSourceDirectory);
-        return;
       }
+    } catch (IOException e) {
+      throw new MojoExecutionException("Failed to check test files for changes", e);
+    }
+    logger.info("Incremental mode: {} of {} test files are unchanged since they last succeeded and will not be run",
+        reusedResults.size(), testFiles.size());
+    statistics.setReusedFileCount(reusedResults.size());
+    return changedFiles;
+  }
 
+  /**
+   * @return the test files that are affected by changes since they last succeeded
+   */
+  private List<File> selectAffectedTestFiles(TestImpact impact, List<File> testFiles) throws MojoExecutionException {
+    List<File> affectedFiles = new ArrayList<>();
+    try {
+      for (File testFile : testFiles) {
+        if (impact.isAffected(testFile)) {
+          affectedFiles.add(testFile);
+        }
+      }
     } catch (IOException e) {
-      throw new MojoExecutionException("Failed to copy files from " + testSourceDirectory + " to " + testOutputDirectory, e);
+      throw new MojoExecutionException("Failed to check test files for changes", e);
+    }
+    logger.info("Test impact mode: {} of {} test files are not affected by the changes since they last succeeded "
+        + "and will not be run", testFiles.size() - affectedFiles.size(), testFiles.size());
+    return affectedFiles;
+  }
+
+  /**
+   * @return whether the test impact mode is on, it needs the source scripts to be run before the tests
+   */
+  private boolean isTestImpact() {
+    if (testImpact && !runSourceScriptsBeforeTests) {
+      logger.warn("testImpact requires runSourceScriptsBeforeTests, running all test files");
+    }
+    return testImpact && runSourceScriptsBeforeTests;
+  }
+
+  private void setUpClassLoader() throws MojoExecutionException {
+    if (!reuseSessions || forkCount > 0) {
+      classLoader = createTestClassLoader(project);
+      return;
+    }
+    try {
+      testClasspathElements = project.getTestClasspathElements();
+      runnerCache = RunnerCache.forClasspath(testClasspathElements, sessionCacheSize);
+      classLoader = runnerCache.createClassLoader(testClasspathElements);
+      templateKey = createTemplateKey(testClasspathElements);
+    } catch (DependencyResolutionRequiredException | IOException e) {
+      throw new MojoExecutionException("Failed to set up classLoader", e);
+    }
+  }
+
+  /**
+   * The key is made from what goes into a template only: the jar files and the directories (target/classes etc.) of
+   * the classpath by size and last modified time, the preload packages, the source scripts and the fixtures. The
+   * testOutputDirectory is left out, the test files (and the data files next to them) change all the time and are
+   * not part of the template.
+   *
+   * @param classpathElements the test classpath elements the session template is built with
+   * @return the key of the classpath, preload packages and source scripts a session template is built with
+   */
+  private String createTemplateKey(List<String> classpathElements) throws IOException {
+    List<String> templateClasspath = new ArrayList<>();
+    for (String element : classpathElements) {
+      if (!new File(element).getAbsoluteFile().equals(testOutputDirectory.getAbsoluteFile())) {
+        templateClasspath.add(element);
+      }
+    }
+    // recompiled classes or changed resources in target/classes etc. need a new template
+    ContentHash hash = new ContentHash().addClasspath(templateClasspath, false);
+    if (preloadPackages != null) {
+      preloadPackages.forEach(hash::add);
+    }
+    if (runSourceScriptsBeforeTests) {
+      hash.add(sourceDirectory.getAbsolutePath()).addDirectory(sourceDirectory, true);
+      hash.add(String.valueOf(testImpact));
+    }
+    for (File fixtureFile : fixtureFiles) {
+      hash.add(fixtureFile.getAbsolutePath()).add(fixtureFile.length()).add(fixtureFile.lastModified());
+    }
+    if (profile) {
+      // the functions of a profiled session are instrumented
+      hash.add(profileOutputDirectory.getAbsolutePath()).add(profileInterval);
+    }
+    return hash.finish();
+  }
+
+  /**
+   * Remove the collapsed stacks of the test files from the previous run so that they are not part of the profile of
+   * this run.
+   */
+  private void clearProfile() throws MojoExecutionException {
+    try {
+      FileUtils.deleteDirectory(new File(profileOutputDirectory, ProfileReport.FILES_DIRECTORY));
+    } catch (IOException e) {
+      throw new MojoExecutionException("Failed to clear the profile directory " + profileOutputDirectory, e);
+    }
+  }
+
+  /**
+   * Give the runners back to the runner cache so that later executions can reuse them, at most one per thread.
+   */
+  private void releaseRunners() {
+    if (runnerCache == null) {
+      return;
+    }
+    synchronized (activeRunners) {
+      runnerCache.release(templateKey, testClasspathElements, activeRunners, Math.max(1, threadCount));
+      activeRunners.clear();
     }
+    runnerCache.close();
+    runnerCache = null;
+  }
 
+  /**
+   * @return a classloader for the test classpath of the project, i.e. compile + system + provided + runtime + test
+   */
+  static ClassLoader createTestClassLoader(MavenProject project) throws MojoExecutionException {
     List<URL> runtimeUrls = new ArrayList<>();
     try {
-      // Add classpath from calling pom, i.e. compile + system + provided + runtime + test
       for (String element : project.getTestClasspathElements()) {
         runtimeUrls.add(new File(element).toURI().toURL());
       }
     } catch (DependencyResolutionRequiredException | MalformedURLException e) {
       throw new MojoExecutionException("Failed to set up classLoader", e);
     }
-    classLoader = new URLClassLoader(runtimeUrls.toArray(new URL[0]), Thread.currentThread().getContextClassLoader());
+    return new URLClassLoader(runtimeUrls.toArray(new URL[0]), Thread.currentThread().getContextClassLoader());
+  }
 
-    factory = new RenjinScriptEngineFactory();
-    SessionBuilder builder = new SessionBuilder();
-    session = builder
-        .withDefaultPackages()
-        .setClassLoader(classLoader) //allows imports in r code to work
-        .build();
+  /**
+   * Add the results of a test file and write its report right away.
+   */
+  private void addResults(File testFile, List<TestResult> fileResults) {
+    results.addAll(fileResults);
+    reportWriter.submit(testFile, fileResults);
+    if (listenerDispatcher != null) {
+      listenerDispatcher.fileFinished(testFile, fileResults);
+    }
+    int failures = (int) fileResults.stream().filter(TestResult::isFailure).count();
+    if (failures > 0) {
+      failureCount.addAndGet(failures);
+    }
+  }
 
-    results = new ArrayList<>();
+  /**
+   * If the skipAfterFailureCount is reached, report the test file as skipped instead of running it.
+   *
+   * @return whether the test file was skipped
+   */
+  private boolean skipIfTooManyFailures(File testFile, TestLog log) {
+    int maxFailures = failFast ? 1 : skipAfterFailureCount;
+    if (maxFailures <= 0 || failureCount.get() < maxFailures) {
+      return false;
+    }
+    log.info("# Skipping {}, {} tests have failed", testFile.getName(), failureCount.get());
+    TestResult result = new TestResult(testFile);
+    String methodName = testFile.getName();
+    result.setTestMethod(methodName.substring(0, methodName.lastIndexOf(".")) + "()");
+    result.setResult(TestResult.OutCome.SKIPPED);
+    result.setIssue("Skipped after " + failureCount.get() + " failures (skipAfterFailureCount = " + maxFailures + ")");
+    result.setStartTime(System.currentTimeMillis());
+    result.setEndTime(result.getStartTime());
+    addResults(testFile, Collections.singletonList(result));
+    return true;
+  }
 
-    if (runSourceScriptsBeforeTests) {
-      Collection<File> sourceFiles = FileUtils.listFiles(sourceDirectory, extensions, true);
-      for (File sourceFile : sourceFiles) {
-        runRscript(sourceFile);
+  /**
+   * A hash of everything (apart from the test file itself) that can change the outcome of a test.
+   *
+   * @param includeSourceScripts whether to include the source scripts, the test impact mode keeps track of them itself
+   */
+  private String createInputsHash(boolean includeSourceScripts) throws MojoExecutionException {
+    ContentHash hash = new ContentHash();
+    try {
+      hash.add(RenjinVersion.getVersionName());
+      hash.add(String.valueOf(runSourceScriptsBeforeTests));
+      if (includeSourceScripts) {
+        hash.addDirectory(sourceDirectory, true);
+      } else if (sourceDirectory.isDirectory()) {
+        // a new script could redefine a function of another one, so only the content of the scripts is left out
+        for (File sourceFile : new TreeSet<>(FileUtils.listFiles(sourceDirectory, extensions, true))) {
+          hash.add(TestImpact.sourcePath(sourceDirectory, sourceFile));
+        }
       }
+      hash.addDirectory(testResourceDirectory, false);
+      if (replaceStringsWhenCopy != null) {
+        for (String key : new TreeSet<>(replaceStringsWhenCopy.stringPropertyNames())) {
+          hash.add(key).add(replaceStringsWhenCopy.getProperty(key));
+        }
+      }
+      if (preloadPackages != null) {
+        preloadPackages.forEach(hash::add);
+      }
+      hash.addClasspath(project.getTestClasspathElements(), false);
+    } catch (IOException | DependencyResolutionRequiredException e) {
+      throw new MojoExecutionException("Failed to create hash of test inputs", e);
     }
+    return hash.finish();
+  }
 
-    Collection<File> testFiles = FileUtils.listFiles(testOutputDirectory, extensions, true);
-
-    Iterator<File> it = testFiles.iterator();
-    while(it.hasNext()) {
-      File testFile = it.next();
-      boolean didRun = runTestFile(testFile);
+  private List<File> runSequentially(List<File> testFiles) throws MojoExecutionException {
+    TestLog log = new TestLog(logger, false);
+    RenjinTestRunner runner = createTestFileRunner(log);
+    List<File> executedFiles = new ArrayList<>();
+    for (File testFile : testFiles) {
+      if (skipIfTooManyFailures(testFile, log)) {
+        continue;
+      }
+      listenerDispatcher.fileStarted(testFile);
+      List<TestResult> fileResults = runner.runTestFile(testFile, log);
       // We should not report on tests that did not run
-      if (!didRun) {
-        it.remove();
+      if (fileResults != null) {
+        addResults(testFile, fileResults);
+        executedFiles.add(testFile);
+      }
+      if (runner.isBroken()) {
+        log.warn("A test timed out, replacing the session");
+        runner = createTestFileRunner(log);
       }
     }
+    return executedFiles;
+  }
 
-    TestResultPrinter.printResultToConsole(logger, results, testFailureIgnore, testFiles);
-    TestResultPrinter.printResultsToFile(reportOutputDirectory, testOutputDirectory, results, testFailureIgnore);
+  /**
+   * Run the test files on a pool of threadCount workers, each worker has its own Session.
+   */
+  private List<File> runInParallel(List<File> testFiles) throws MojoExecutionException {
+    logger.info("Running {} test files using {} threads", testFiles.size(), threadCount);
+    return runOnPool(testFiles, threadCount, createInProcessExecutor());
   }
 
-  private void runRscript(final File sourceFile) throws MojoExecutionException {
-    String sourceName = sourceFile.getName();
+  /**
+   * @return an executor running the test files in the maven JVM, each pool thread has its own Session
+   */
+  private TestFileExecutor createInProcessExecutor() {
+    ThreadLocal<RenjinTestRunner> runners = new ThreadLocal<>();
+    return (testFile, log) -> {
+      RenjinTestRunner runner = runners.get();
+      if (runner == null) {
+        runner = createTestFileRunner(log);
+        runners.set(runner);
+      }
+      List<TestResult> fileResults = runner.runTestFile(testFile, log);
+      if (runner.isBroken()) {
+        log.warn("A test timed out, the session will be replaced");
+        runners.remove();
+      }
+      return fileResults;
+    };
+  }
 
-    logger.info("");
-    logger.info("# Running src script {}", sourceName);
-    RenjinScriptEngine engine = factory.getScriptEngine(session);
+  /**
+   * Run the test files in forkCount forked JVMs. If a fork dies (e.g. because a test exhausted the heap)
+   * the test file is reported as an error and a new fork is started for the next test file.
+   */
+  private List<File> runForked(List<File> testFiles) throws MojoExecutionException {
+    List<String> command = createForkCommand();
+    logger.info("Running {} test files in {} forked JVMs, reuseForks = {}", testFiles.size(), forkCount, reuseForks);
+    logger.debug("Fork command: {}", command);
+    return runOnJvms(testFiles, forkCount, reuseForks, "forked JVM",
+        log -> JvmFork.start(command, project.getBasedir(), log), null);
+  }
+
+  /**
+   * Start the test daemon if it is not running.
+   *
+   * @return the port and token of the daemon or null if it could not be reached (the tests are run in the maven JVM)
+   */
+  private Properties startDaemon() throws MojoExecutionException {
+    List<String> javaCommand = createJavaCommand(daemonMaxHeap);
+    List<String> classpath = createPluginClasspath();
+    javaCommand.add("-cp");
+    javaCommand.add(String.join(File.pathSeparator, classpath));
+    ContentHash key = new ContentHash();
+    javaCommand.forEach(key::add);
+    for (String element : classpath) {
+      File file = new File(element);
+      key.add(file.length()).add(file.lastModified());
+    }
+    daemonClient = new TestDaemonClient(daemonDirectory, key.finish(), javaCommand, daemonIdleTimeout,
+        sessionCacheSize, DAEMON_START_TIMEOUT_MILLIS);
     try {
-      engine.getSession().setWorkingDirectory(sourceFile.getParentFile());
-      engine.eval(sourceFile);
-    } catch (Exception e) {
-      throw new MojoExecutionException("Failed to run rscript " + sourceFile.getAbsolutePath(), e);
+      return daemonClient.ensureRunning();
+    } catch (IOException e) {
+      logger.warn("Test daemon not available, running the tests in the maven JVM: {}", e.getMessage());
+      return null;
     }
   }
 
-  private boolean runTestFile(final File testFile) throws MojoExecutionException {
-    // Skip testthat tests, they will be executed by the base testthat.R
-    if ("testthat".equals(testFile.getParentFile().getName())) {
-      return false;
+  /**
+   * Run the test files on threadCount (at least one) connections to the test daemon. The daemon keeps the session
+   * templates between builds, so only the first build with given preload packages and source scripts builds them.
+   * A worker that cannot connect to the daemon runs its test files in the maven JVM instead.
+   */
+  private List<File> runOnDaemon(List<File> testFiles, Properties daemonInfo) throws MojoExecutionException {
+    int connectionCount = Math.max(1, threadCount);
+    logger.info("Running {} test files on the test daemon using {} connections", testFiles.size(), connectionCount);
+    List<String> classpathElements;
+    String key;
+    try {
+      classpathElements = project.getTestClasspathElements();
+      key = createTemplateKey(classpathElements);
+    } catch (DependencyResolutionRequiredException | IOException e) {
+      throw new MojoExecutionException("Failed to set up the test daemon request", e);
     }
+    RunnerSettings settings = createRunnerSettings();
+    return runOnJvms(testFiles, connectionCount, true, "test daemon connection",
+        log -> daemonClient.connect(daemonInfo, key, classpathElements, settings, log), createInProcessExecutor());
+  }
 
-    String testName = testFile.getAbsolutePath().substring(testOutputDirectory.getAbsolutePath().length() + 1);
-    logger.info("");
-    logger.info("# Running {}", testName);
-
+  /**
+   * Run the test files on poolSize other JVMs (forks or daemon connections), each pool thread uses one at a time.
+   * If the JVM dies (e.g. because a test exhausted the heap) or is killed because the fileTimeout passed, the
+   * test file is reported as an error and a new one is opened for the next test file.
+   *
+   * @param fallback runs the test files of a pool thread that could not open a JVM (an IOException), if null
+   * that fails the build
+   */
+  private List<File> runOnJvms(List<File> testFiles, int poolSize, boolean reuse, String description,
+                               JvmFactory factory, TestFileExecutor fallback) throws MojoExecutionException {
+    ThreadLocal<JvmFork> forks = new ThreadLocal<>();
+    ThreadLocal<Boolean> fallenBack = new ThreadLocal<>();
+    List<JvmFork> activeForks = Collections.synchronizedList(new ArrayList<>());
     try {
-      session.setWorkingDirectory(testOutputDirectory);
-    } catch (FileSystemException e) {
-      throw new MojoExecutionException("Failed to set working dir for session to " + testOutputDirectory);
-    }
-
-    RenjinScriptEngine engine = factory.getScriptEngine(session);
-
-    // First run any test that are not defined as functions
-    TestResult result = runTest(testFile, engine);
-    results.add(result);
-
-    //now run each testFunction in that file, in the same Session
-    for (Symbol name : session.getGlobalEnvironment().getSymbolNames()) {
-      String methodName = name.getPrintName().trim();
-      if (methodName.startsWith("test.") || methodName.startsWith("test_check")) {
-        SEXP value = session.getGlobalEnvironment().getVariable(session.getTopLevelContext(), name);
-        if (isNoArgsFunction(value)) {
-          Context context = session.getTopLevelContext();
-          result = runTestFunction(context, testFile, name);
-          results.add(result);
+      return runOnPool(testFiles, poolSize, (testFile, log) -> {
+        if (fallenBack.get() != null) {
+          return fallback.run(testFile, log);
+        }
+        JvmFork fork = forks.get();
+        if (fork == null) {
           try {
-            engine.eval("rm(" + name.getPrintName().trim() + ")");
-          } catch (ScriptException e) {
-            throw new MojoExecutionException("Failed to remove test method after execution", e);
+            fork = factory.open(log);
+          } catch (IOException e) {
+            if (fallback == null) {
+              throw new MojoExecutionException("Failed to open a " + description, e);
+            }
+            log.warn("Failed to open a {}, running the test files in the maven JVM: {}", description, e.toString());
+            fallenBack.set(Boolean.TRUE);
+            return fallback.run(testFile, log);
+          }
+          if (fork.isTemplateReused()) {
+            statistics.addReusedTemplate();
+          } else {
+            statistics.addTemplate(fork.getTemplateBuildNanos(), fork.getTemplateParseSavedNanos());
+          }
+          activeForks.add(fork);
+          forks.set(fork);
+        }
+        boolean keepFork = reuse;
+        long killAfter = fileTimeout > 0 ? TimeUnit.SECONDS.toMillis(fileTimeout) + FORK_KILL_GRACE_MILLIS : 0;
+        Watchdog.Deadline deadline = Watchdog.runAfter(killAfter, fork::kill);
+        long start = System.currentTimeMillis();
+        try {
+          return fork.runTestFile(testFile, log);
+        } catch (IOException | MojoExecutionException e) {
+          keepFork = false;
+          String issue = deadline.isExpired()
+              ? "Timeout: " + description + " killed after running " + testFile.getName() + " for " + killAfter / 1000 + " seconds"
+              : Character.toUpperCase(description.charAt(0)) + description.substring(1) + " died running " + testFile.getName();
+          log.error("\t# {}: {}", issue, TestResultPrinter.formatMessage(e));
+          return Collections.singletonList(forkFailure(testFile, issue, e, start));
+        } finally {
+          deadline.close();
+          if (!keepFork) {
+            forks.remove();
+            activeForks.remove(fork);
+            fork.close();
           }
         }
+      });
+    } finally {
+      synchronized (activeForks) {
+        activeForks.forEach(JvmFork::close);
       }
     }
-    return true;
   }
 
-  private TestResult runTestFunction(final Context context, final File testFile, final Symbol name) {
+  private TestResult forkFailure(File testFile, String issue, Exception e, long startTime) {
     TestResult result = new TestResult(testFile);
-    result.setStartTime(System.currentTimeMillis());
-    String methodName = name.getPrintName().trim() + "()";
-    String testName = testFile.getName() + ": " + methodName ;
-    logger.info("\t# Running test function {} in {}", methodName, testFile.getName());
-    String issue;
-    Exception exception;
-    result.setTestMethod(methodName);
-    try {
-      context.evaluate(FunctionCall.newCall(name));
-      if (printSuccess) {
-        logger.info("\t\t# {}: Success", testName);
-      }
-      result.setResult(TestResult.OutCome.SUCCESS);
-      result.setEndTime(System.currentTimeMillis());
-      return result;
-    } catch (EvalException e) {
-      exception = e;
-      issue = e.getClass().getSimpleName() + " executing test " + testName;
-    } catch (RuntimeException e) {
-      exception = e;
-      issue = e.getClass().getSimpleName() + " occurred running R script " + testName;
-    } catch (Exception e) {
-      exception = e;
-      issue = e.getClass().getSimpleName() + " thrown when running script " + testName;
-    }
-    logger.info("\t\t# {}: Failure detected: {}", testName, formatMessage(exception));
-    result.setResult(TestResult.OutCome.FAILURE);
-    result.setError(exception);
+    String methodName = testFile.getName();
+    result.setTestMethod(methodName.substring(0, methodName.lastIndexOf(".")) + "()");
+    result.setStartTime(startTime);
+    result.setResult(TestResult.OutCome.ERROR);
     result.setIssue(issue);
+    result.setError(e);
     result.setEndTime(System.currentTimeMillis());
     return result;
   }
 
-  private TestResult runTest(final File testFile, final RenjinScriptEngine engine) {
-    TestResult result = new TestResult(testFile);
-    String methodName = testFile.getName();
-    methodName = methodName.substring(0, methodName.lastIndexOf("."));
-    result.setStartTime(System.currentTimeMillis());
-    result.setTestMethod(methodName + "()");
-    String issue;
-    Exception exception;
-    String testName = testFile.getName();
+  private List<String> createForkCommand() throws MojoExecutionException {
+    List<String> command = createJavaCommand(forkMaxHeap);
+    Set<String> classpath = new LinkedHashSet<>(createPluginClasspath());
     try {
-      engine.eval(testFile);
-      result.setResult(TestResult.OutCome.SUCCESS);
-      if (printSuccess) {
-        logger.info("\t# {}: Success", testName);
+      classpath.addAll(project.getTestClasspathElements());
+    } catch (DependencyResolutionRequiredException e) {
+      throw new MojoExecutionException("Failed to set up classpath for forked JVM", e);
+    }
+    command.add("-cp");
+    command.add(String.join(File.pathSeparator, classpath));
+    command.add(ForkedTestRunner.class.getName());
+    command.addAll(createRunnerSettings().toArguments());
+    return command;
+  }
+
+  /**
+   * @return the java executable with the max heap and the argLine
+   */
+  private List<String> createJavaCommand(String maxHeap) throws MojoExecutionException {
+    List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    if (maxHeap != null && !maxHeap.trim().isEmpty()) {
+      command.add("-Xmx" + maxHeap.trim());
+    }
+    if (argLine != null && !argLine.trim().isEmpty()) {
+      try {
+        command.addAll(Arrays.asList(CommandLineUtils.translateCommandline(argLine)));
+      } catch (Exception e) {
+        throw new MojoExecutionException("Failed to parse argLine " + argLine, e);
       }
-      result.setEndTime(System.currentTimeMillis());
-      return result;
-    } catch (org.renjin.parser.ParseException e) {
-      exception = e;
-      issue = e.getClass().getSimpleName() + " parsing R script " + testName;
-    } catch (IOException e) {
-      exception = e;
-      issue = e.getClass().getSimpleName() + " reading file " + testName;
-    } catch (ScriptException | EvalException e) {
-      exception = e;
-      issue = e.getClass().getSimpleName() + " executing test " + testName;
-    } catch (RuntimeException e) {
-      exception = e;
-      issue = e.getClass().getSimpleName() + " occurred running R script " + testName;
-    } catch (Exception e) {
-      exception = e;
-      issue = e.getClass().getSimpleName() + " thrown when running script " + testName;
-    }
-    logger.warn("\t# {}: Failure detected: {}", testName, formatMessage(exception));
-    result.setResult(TestResult.OutCome.FAILURE);
-    result.setError(exception);
-    result.setIssue(issue);
-    result.setEndTime(System.currentTimeMillis());
-    return result;
+    }
+    return command;
+  }
+
+  /**
+   * @return the classpath of the plugin itself
+   */
+  private List<String> createPluginClasspath() {
+    Set<String> classpath = new LinkedHashSet<>();
+    if (pluginDescriptor != null) {
+      classpath.add(pluginDescriptor.getPluginArtifact().getFile().getAbsolutePath());
+      for (Artifact artifact : pluginDescriptor.getArtifacts()) {
+        classpath.add(artifact.getFile().getAbsolutePath());
+      }
+    } else {
+      classpath.addAll(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+    }
+    return new ArrayList<>(classpath);
+  }
+
+  /**
+   * Run the test files on a pool of poolSize threads. The console output of each test file is buffered
+   * and written in one go when the file is done so that logs do not interleave.
+   *
+   * @return the test files that were executed
+   */
+  private List<File> runOnPool(List<File> testFiles, int poolSize, TestFileExecutor fileExecutor) throws MojoExecutionException {
+    ExecutorService executor = Executors.newFixedThreadPool(poolSize, r -> {
+      Thread thread = new Thread(r, "renjin-test-worker-" + workerCount.incrementAndGet());
+      thread.setContextClassLoader(classLoader);
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<List<TestResult>>> futures = new ArrayList<>();
+      for (File testFile : testFiles) {
+        futures.add(executor.submit(() -> {
+          TestLog log = new TestLog(logger, true);
+          try {
+            if (skipIfTooManyFailures(testFile, log)) {
+              return null;
+            }
+            listenerDispatcher.fileStarted(testFile);
+            List<TestResult> fileResults = fileExecutor.run(testFile, log);
+            if (fileResults != null) {
+              addResults(testFile, fileResults);
+            }
+            return fileResults;
+          } finally {
+            log.flush();
+          }
+        }));
+      }
+      List<File> executedFiles = new ArrayList<>();
+      for (int i = 0; i < testFiles.size(); i++) {
+        if (futures.get(i).get() != null) {
+          executedFiles.add(testFiles.get(i));
+        }
+      }
+      return executedFiles;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while waiting for tests to finish", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof MojoExecutionException) {
+        throw (MojoExecutionException) e.getCause();
+      }
+      throw new MojoExecutionException("Failed to run tests", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return a runner for running test files, it uses the function pool (if any) to run test functions in parallel
+   */
+  RenjinTestRunner createTestFileRunner(TestLog log) throws MojoExecutionException {
+    RenjinTestRunner runner = createRunner(log);
+    runner.setFunctionPool(functionPool);
+    return runner;
+  }
+
+  private int getFunctionThreadCount() {
+    return functionThreadCount > 0 ? functionThreadCount : Runtime.getRuntime().availableProcessors();
   }
 
-  private boolean isNoArgsFunction(final SEXP value) {
-    if (value instanceof Closure) {
-      Closure testFunction = (Closure) value;
-      return testFunction.getFormals().length() == 0;
+  private RenjinTestRunner createRunner(TestLog log) throws MojoExecutionException {
+    if (runnerCache != null) {
+      RenjinTestRunner cachedRunner = runnerCache.take(templateKey, testClasspathElements);
+      if (cachedRunner != null) {
+        log.info("Reusing a session template from a previous execution");
+        statistics.addReusedTemplate();
+        RenjinTestRunner runner = cachedRunner.withSettings(createRunnerSettings());
+        activeRunners.add(runner);
+        return runner;
+      }
+    }
+    RenjinTestRunner runner = RenjinTestRunner.create(classLoader, createRunnerSettings(), log);
+    statistics.addTemplate(runner.getTemplateBuildNanos(), runner.getTemplateParseSavedNanos());
+    if (runnerCache != null) {
+      activeRunners.add(runner);
+    }
+    return runner;
+  }
+
+  private RunnerSettings createRunnerSettings() {
+    RunnerSettings settings = new RunnerSettings();
+    settings.setTestOutputDirectory(testOutputDirectory);
+    settings.setPrintSuccess(printSuccess);
+    if (runSourceScriptsBeforeTests) {
+      settings.setSourceDirectory(sourceDirectory);
+    }
+    settings.setPreloadPackages(preloadPackages);
+    settings.setTestTimeout(testTimeout);
+    settings.setFileTimeout(fileTimeout);
+    settings.setNativeTestthat(nativeTestthat);
+    settings.setFunctionThreadCount(getFunctionThreadCount());
+    settings.setParallelFunctionFiles(parallelFunctionFiles);
+    settings.setTestImpact(testImpact && runSourceScriptsBeforeTests);
+    settings.setFixtureFiles(fixtureFiles);
+    settings.setFixtureCacheDirectory(fixtureCacheDirectory);
+    if (profile) {
+      settings.setProfileInterval(Math.max(1, profileInterval));
+      settings.setProfileOutputDirectory(profileOutputDirectory);
     }
-    return false;
+    if (parseCache) {
+      settings.setParseCacheDirectory(parseCacheDirectory);
+    }
+    return settings;
+  }
+
+  @FunctionalInterface
+  private interface JvmFactory {
+    JvmFork open(TestLog log) throws IOException, MojoExecutionException;
+  }
+
+  @FunctionalInterface
+  private interface TestFileExecutor {
+    List<TestResult> run(File testFile, TestLog log) throws MojoExecutionException;
   }
 
   public boolean isTestFailureIgnore() {
@@ -387,6 +1199,18 @@ public class RenjinTestMojo extends AbstractMojo {
     this.testOutputDirectory = testOutputDirectory;
   }
 
+  public File getSourceDirectory() {
+    return sourceDirectory;
+  }
+
+  public File getTestResourceDirectory() {
+    return testResourceDirectory;
+  }
+
+  public boolean isRunSourceScriptsBeforeTests() {
+    return runSourceScriptsBeforeTests;
+  }
+
   public boolean isSkipTests() {
     boolean syspropSkip = System.getProperty("skipTests") != null
                           && !System.getProperty("skipTests").equalsIgnoreCase("false");
@@ -0,0 +1,968 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.renjin.eval.Context;
+import org.renjin.eval.EvalException;
+import org.renjin.eval.Session;
+import org.renjin.eval.SessionBuilder;
+import org.renjin.script.RenjinScriptEngine;
+import org.renjin.script.RenjinScriptEngineFactory;
+import org.renjin.sexp.Closure;
+import org.renjin.sexp.Environment;
+import org.renjin.sexp.FunctionCall;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringVector;
+import org.renjin.sexp.Symbol;
+
+import javax.script.ScriptException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static se.alipsa.renjintestplugin.TestResultPrinter.formatMessage;
+
+/**
+ * Runs R test files in one Renjin Session. A runner is not thread safe, when running tests in parallel
+ * each worker thread has its own runner (and hence its own Session).
+ */
+public class RenjinTestRunner {
+
+  private static final Pattern TESTTHAT_TEST_FILE = Pattern.compile("test.*\\.[rR]");
+  private static final Pattern TESTTHAT_HELPER_FILE = Pattern.compile("(helper|setup).*\\.[rR]");
+  private static final Pattern PARALLEL_ANNOTATION = Pattern.compile("\\s*#'?\\s*@parallel\\s*");
+
+  private final Session session;
+  private final RenjinScriptEngineFactory factory;
+  private final File testOutputDirectory;
+  private final boolean printSuccess;
+  private final int testTimeout;
+  private final int fileTimeout;
+  private final ParseCache parseCache;
+  private final boolean nativeTestthat;
+  private final List<String> parallelFunctionFiles;
+  private TestFunctionPool functionPool;
+  private final Map<File, Environment> testthatEnvironments = new HashMap<>();
+  private ClassLoader classLoader;
+  private PrintWriter consoleOut;
+  private TestImpactRecorder impactRecorder;
+  private TestProfiler profiler;
+  /** The values in the global environment when the template was built */
+  private Map<Symbol, SEXP> templateBindings = Collections.emptyMap();
+  private List<Fixture> fixtures = Collections.emptyList();
+  private long templateBuildNanos;
+  private long templateParseSavedNanos;
+  private boolean broken;
+
+  public RenjinTestRunner(Session session, RunnerSettings settings) {
+    this(session, settings, null);
+  }
+
+  RenjinTestRunner(Session session, RunnerSettings settings, ClassLoader classLoader) {
+    this.session = session;
+    this.classLoader = classLoader;
+    this.factory = new RenjinScriptEngineFactory();
+    this.testOutputDirectory = settings.getTestOutputDirectory();
+    this.printSuccess = settings.isPrintSuccess();
+    this.testTimeout = settings.getTestTimeout();
+    this.fileTimeout = settings.getFileTimeout();
+    this.parseCache = new ParseCache(settings.getParseCacheDirectory());
+    this.nativeTestthat = settings.isNativeTestthat();
+    this.parallelFunctionFiles = settings.getParallelFunctionFiles();
+  }
+
+  /**
+   * Create a runner with a new Session. The session is used as a template for all test files run by the runner:
+   * the preload packages are loaded and the source scripts are run once and each test file then starts from
+   * that state.
+   *
+   * @param classLoader the classloader used by the Session, allows imports in r code to work
+   * @param settings the runner settings
+   * @param log where to write output from running the source scripts
+   * @return a runner ready to run test files
+   * @throws MojoExecutionException if some package could not be loaded or some source script failed
+   */
+  public static RenjinTestRunner create(ClassLoader classLoader, RunnerSettings settings, TestLog log) throws MojoExecutionException {
+    long start = System.nanoTime();
+    SessionBuilder builder = new SessionBuilder();
+    Session session = builder
+        .withDefaultPackages()
+        .setClassLoader(classLoader) //allows imports in r code to work
+        .build();
+    RenjinTestRunner runner = new RenjinTestRunner(session, settings);
+    runner.classLoader = classLoader;
+    runner.consoleOut = session.getStdOut();
+    for (String packageName : settings.getPreloadPackages()) {
+      runner.loadPackage(packageName.trim(), log);
+    }
+    runner.fixtures = loadFixtures(settings, log);
+    runner.bindFixtures();
+    if (settings.isTestImpact() && settings.getSourceDirectory() != null) {
+      runner.impactRecorder = new TestImpactRecorder(settings.getSourceDirectory(),
+          Environment.createChildEnvironment(session.getGlobalEnvironment()).build());
+    }
+    for (File sourceFile : settings.getSourceFiles()) {
+      if (runner.impactRecorder == null) {
+        runner.runRscript(sourceFile, log);
+      } else {
+        runner.runSourceScript(sourceFile, log);
+      }
+    }
+    if (settings.getProfileInterval() > 0 && settings.getProfileOutputDirectory() != null) {
+      Environment global = session.getGlobalEnvironment();
+      runner.profiler = new TestProfiler(session.getTopLevelContext(), global,
+          new File(settings.getProfileOutputDirectory(), ProfileReport.FILES_DIRECTORY), settings.getProfileInterval());
+      runner.profiler.addFunctions(session.getTopLevelContext(), global, new ArrayList<>(global.getSymbolNames()));
+    }
+    runner.templateBindings = runner.snapshotGlobalEnvironment();
+    runner.templateBuildNanos = System.nanoTime() - start;
+    log.info("Session template built in {} ms", TimeUnit.NANOSECONDS.toMillis(runner.templateBuildNanos));
+    return runner;
+  }
+
+  public Session getSession() {
+    return session;
+  }
+
+  /**
+   * @return the class loader the session was created with
+   */
+  public ClassLoader getClassLoader() {
+    return classLoader;
+  }
+
+  /**
+   * Create a runner with other settings (e.g. for another module) that uses the session template of this runner.
+   * The preload packages and source scripts of the settings must be the same as the ones this runner was created
+   * with, this runner should not be used afterwards.
+   *
+   * @param settings the settings of the new runner
+   * @return a runner sharing the session of this runner
+   */
+  public RenjinTestRunner withSettings(RunnerSettings settings) {
+    RenjinTestRunner runner = new RenjinTestRunner(session, settings);
+    runner.classLoader = classLoader;
+    runner.consoleOut = consoleOut;
+    runner.templateBindings = templateBindings;
+    runner.impactRecorder = impactRecorder;
+    runner.profiler = profiler;
+    runner.fixtures = fixtures;
+    if (consoleOut != null) {
+      // the output might still go to the buffered log of a test file run by the previous owner
+      session.setStdOut(consoleOut);
+    }
+    return runner;
+  }
+
+  /**
+   * @return the time it took to create the session, load the preload packages and run the source scripts
+   */
+  public long getTemplateBuildNanos() {
+    return templateBuildNanos;
+  }
+
+  /**
+   * @return the part of the time to build the session template that was saved by reading the source scripts
+   * from the parse cache
+   */
+  public long getTemplateParseSavedNanos() {
+    return templateParseSavedNanos;
+  }
+
+  /**
+   * @param functionPool the sessions to run the test functions of a file in parallel with, see
+   * {@link #isParallelFunctionsFile(File)}, or null to always run them one by one
+   */
+  public void setFunctionPool(TestFunctionPool functionPool) {
+    this.functionPool = functionPool;
+  }
+
+  /**
+   * @return whether a test timed out in this runner, the evaluation was then interrupted at an arbitrary point so the
+   * session might be in an inconsistent state and the runner should not be used for more test files
+   */
+  public boolean isBroken() {
+    return broken;
+  }
+
+  private static List<Fixture> loadFixtures(RunnerSettings settings, TestLog log) throws MojoExecutionException {
+    List<Fixture> fixtures = new ArrayList<>();
+    for (File fixtureFile : settings.getFixtureFiles()) {
+      try {
+        fixtures.add(FixtureStore.load(fixtureFile, settings.getFixtureCacheDirectory(), log));
+      } catch (IOException | RuntimeException e) {
+        throw new MojoExecutionException("Failed to load fixture " + fixtureFile, e);
+      }
+    }
+    return fixtures;
+  }
+
+  /**
+   * Bind the fixtures in the global environment, they are then part of the template.
+   */
+  private void bindFixtures() {
+    Environment global = session.getGlobalEnvironment();
+    for (Fixture fixture : fixtures) {
+      global.setVariable(session.getTopLevelContext(), Symbol.get(fixture.getName()), fixture.getDataFrame());
+    }
+  }
+
+  void loadPackage(final String packageName, TestLog log) throws MojoExecutionException {
+    log.info("# Preloading package {}", packageName);
+    RenjinScriptEngine engine = factory.getScriptEngine(session);
+    redirectOutput(engine, log);
+    try {
+      engine.eval("library('" + packageName + "')");
+    } catch (ScriptException | RuntimeException e) {
+      throw new MojoExecutionException("Failed to load package " + packageName, e);
+    }
+  }
+
+  void runRscript(final File sourceFile, TestLog log) throws MojoExecutionException {
+    String sourceName = sourceFile.getName();
+
+    log.info("");
+    log.info("# Running src script {}", sourceName);
+    redirectOutput(log);
+    try {
+      session.setWorkingDirectory(sourceFile.getParentFile());
+      Context context = session.getTopLevelContext();
+      ParseCache.ParsedFile parsed = parseCache.parse(context, sourceFile);
+      templateParseSavedNanos += parsed.getSavedNanos();
+      for (SEXP expression : parsed.getExpressions()) {
+        context.evaluate(expression, session.getGlobalEnvironment());
+      }
+    } catch (Exception e) {
+      throw new MojoExecutionException("Failed to run rscript " + sourceFile.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Run a source script again (e.g. because it was changed) and make whatever it defines part of the session template.
+   *
+   * @param sourceFile the source script
+   * @param log where to write the output from running the script
+   * @return the names in the global environment that the script defined or changed
+   * @throws MojoExecutionException if the script failed
+   */
+  public Set<String> reloadSourceScript(final File sourceFile, TestLog log) throws MojoExecutionException {
+    Set<String> changedNames = new TreeSet<>();
+    try {
+      Set<Symbol> names = runSourceScript(sourceFile, log);
+      for (Symbol name : names) {
+        changedNames.add(name.getPrintName());
+      }
+      if (profiler != null) {
+        profiler.addFunctions(session.getTopLevelContext(), session.getGlobalEnvironment(), names);
+      }
+    } finally {
+      templateBindings = snapshotGlobalEnvironment();
+    }
+    return changedNames;
+  }
+
+  /**
+   * Run a source script and hand what it defined to the impact recorder (if any).
+   *
+   * @return the names in the global environment that the script defined or changed
+   */
+  private Set<Symbol> runSourceScript(final File sourceFile, TestLog log) throws MojoExecutionException {
+    Environment global = session.getGlobalEnvironment();
+    Map<Symbol, SEXP> before = new HashMap<>();
+    for (Symbol name : global.getSymbolNames()) {
+      before.put(name, global.getVariableUnsafe(name));
+    }
+    runRscript(sourceFile, log);
+    Set<Symbol> changedNames = new HashSet<>();
+    for (Symbol name : global.getSymbolNames()) {
+      if (before.get(name) != global.getVariableUnsafe(name)) {
+        changedNames.add(name);
+      }
+    }
+    if (impactRecorder != null) {
+      impactRecorder.addDefinitions(session.getTopLevelContext(), sourceFile, global, changedNames);
+    }
+    return changedNames;
+  }
+
+  /**
+   * Forget the testthat environments so that the helper and setup files are run again for the next test file.
+   */
+  public void clearTestthatEnvironments() {
+    testthatEnvironments.clear();
+  }
+
+  /**
+   * Run the top level code in the test file followed by each test function defined in it.
+   *
+   * @param testFile the file to run
+   * @param log where to write the console output
+   * @return the results or null if the file was not executed
+   * @throws MojoExecutionException if the session could not be set up for running the test file
+   */
+  public List<TestResult> runTestFile(final File testFile, final TestLog log) throws MojoExecutionException {
+    // Skip testthat tests (unless run natively), they will be executed by the base testthat.R
+    if (!isTestFile(testFile, nativeTestthat)) {
+      return null;
+    }
+    if (impactRecorder != null) {
+      impactRecorder.clear();
+    }
+    List<TestResult> results = isTestthatFile(testFile) ? runTestthatFile(testFile, log) : runTestFunctions(testFile, log);
+    recordSourceDependencies(testFile, results, log);
+    writeProfile(testFile, log);
+    return results;
+  }
+
+  /**
+   * Write the samples the profiler (if any) took while running the test file.
+   */
+  private void writeProfile(final File testFile, final TestLog log) {
+    if (profiler == null) {
+      return;
+    }
+    try {
+      profiler.write(relativePath(testFile));
+    } catch (IOException e) {
+      log.warn("\t# Failed to write the profile of {}: {}", testFile.getName(), e.toString());
+    }
+  }
+
+  /**
+   * Profile the functions other than the test functions that the test file defined.
+   */
+  private void profileFunctions(final Context context, final Environment environment) {
+    if (profiler == null) {
+      return;
+    }
+    List<Symbol> names = new ArrayList<>(environment.getSymbolNames());
+    names.removeAll(findTestFunctions(context, environment));
+    profiler.addFunctions(context, environment, names);
+  }
+
+  private String relativePath(final File testFile) {
+    return testFile.getAbsolutePath().substring(testOutputDirectory.getAbsolutePath().length() + 1);
+  }
+
+  /**
+   * Record the functions and objects defined by the source scripts that the test file used on its first result.
+   */
+  private void recordSourceDependencies(final File testFile, final List<TestResult> results, final TestLog log) {
+    if (impactRecorder == null || results.isEmpty()) {
+      return;
+    }
+    try {
+      results.get(0).setSourceDependencies(impactRecorder.collect(testFile));
+    } catch (IOException e) {
+      log.warn("\t# Failed to record the source dependencies of {}: {}", testFile.getName(), e.toString());
+    }
+  }
+
+  private List<TestResult> runTestFunctions(final File testFile, final TestLog log) throws MojoExecutionException {
+    List<TestResult> results = new ArrayList<>();
+
+    String testName = testFile.getAbsolutePath().substring(testOutputDirectory.getAbsolutePath().length() + 1);
+    log.info("");
+    log.info("# Running {}", testName);
+
+    long setupStart = System.nanoTime();
+    try {
+      session.setWorkingDirectory(testOutputDirectory);
+    } catch (FileSystemException e) {
+      throw new MojoExecutionException("Failed to set working dir for session to " + testOutputDirectory);
+    }
+    redirectOutput(log);
+    // Each test file gets its own environment so that whatever it defines is gone when we are done with it
+    Environment testEnvironment = Environment.createChildEnvironment(session.getGlobalEnvironment()).build();
+    Context context = session.getTopLevelContext();
+    long setupNanos = System.nanoTime() - setupStart;
+
+    try (Watchdog.Deadline fileDeadline = Watchdog.interruptAfter(TimeUnit.SECONDS.toMillis(fileTimeout))) {
+      // First run any test that are not defined as functions
+      TestResult result = runTest(context, testEnvironment, testFile, log, fileDeadline);
+      result.setSetupNanos(setupNanos);
+      results.add(result);
+
+      //now run each testFunction defined in that file
+      List<Symbol> functions = findTestFunctions(context, testEnvironment);
+      profileFunctions(context, testEnvironment);
+      if (functionPool != null && functions.size() > 1 && isParallelFunctionsFile(testFile)) {
+        results.addAll(runTestFunctionsInParallel(context, testEnvironment, testFile, functions, log, fileDeadline,
+            result));
+      } else {
+        for (Symbol name : functions) {
+          if (fileDeadline.isExpired()) {
+            break;
+          }
+          result = runTestCall(context, testEnvironment, testFile, name.getPrintName().trim() + "()",
+              FunctionCall.newCall(name), log, fileDeadline);
+          results.add(result);
+        }
+      }
+    } finally {
+      long teardownStart = System.nanoTime();
+      restoreTemplate();
+      if (!results.isEmpty()) {
+        results.get(0).setTeardownNanos(System.nanoTime() - teardownStart);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Run the test functions of the file in this session and in the sessions of the function pool at the same time,
+   * each session takes the next test function from a shared queue when it is done with the previous one.
+   *
+   * @param fileResult the result of the top level code of the file, gets the wall clock time of the test functions
+   * @return the results of the test functions in the order the functions were found
+   */
+  private List<TestResult> runTestFunctionsInParallel(final Context context, final Environment environment,
+                                                      final File testFile, final List<Symbol> functions,
+                                                      final TestLog log, final Watchdog.Deadline fileDeadline,
+                                                      final TestResult fileResult) {
+    long start = System.nanoTime();
+    Queue<Symbol> queue = new ConcurrentLinkedQueue<>(functions);
+    List<TestFunctionPool.Worker> workers = functionPool.start(testFile, queue);
+    log.info("\t# Running {} test functions in {} sessions", functions.size(), workers.size() + 1);
+    List<TestResult> results = runQueuedFunctions(context, environment, testFile, queue, log, fileDeadline);
+    results.addAll(functionPool.finish(workers, log));
+    fileResult.setFunctionsWallNanos(System.nanoTime() - start);
+
+    Map<String, Integer> order = new HashMap<>();
+    for (Symbol name : functions) {
+      order.put(name.getPrintName().trim() + "()", order.size());
+    }
+    results.sort(Comparator.comparing((TestResult res) -> order.getOrDefault(res.getTestMethod(), order.size())));
+    return results;
+  }
+
+  /**
+   * Run test functions of a test file taken from a queue shared with another runner, see {@link TestFunctionPool}.
+   * The test file is evaluated first to define the test functions in this session, if that fails no test functions
+   * are taken from the queue and they are left to the other sessions.
+   *
+   * @return the results of the test functions run by this runner
+   * @throws MojoExecutionException if the session could not be set up for running the test file
+   */
+  List<TestResult> runQueuedTestFunctions(final File testFile, final Queue<Symbol> functions, final TestLog log)
+      throws MojoExecutionException {
+    if (functions.isEmpty()) {
+      // the other sessions were faster
+      return new ArrayList<>();
+    }
+    try {
+      session.setWorkingDirectory(testOutputDirectory);
+    } catch (FileSystemException e) {
+      throw new MojoExecutionException("Failed to set working dir for session to " + testOutputDirectory);
+    }
+    redirectOutput(log);
+    if (impactRecorder != null) {
+      impactRecorder.clear();
+    }
+    Environment testEnvironment = Environment.createChildEnvironment(session.getGlobalEnvironment()).build();
+    Context context = session.getTopLevelContext();
+    try (Watchdog.Deadline fileDeadline = Watchdog.interruptAfter(TimeUnit.SECONDS.toMillis(fileTimeout))) {
+      try {
+        for (SEXP expression : parseCache.parse(context, testFile).getExpressions()) {
+          context.evaluate(expression, testEnvironment);
+        }
+      } catch (IOException | RuntimeException e) {
+        log.warn("\t# Failed to evaluate {} in a worker session, its test functions are run by the other sessions: {}",
+            testFile.getName(), formatMessage(e));
+        return new ArrayList<>();
+      }
+      if (functions.isEmpty()) {
+        // all test functions were taken while the test file was evaluated
+        return new ArrayList<>();
+      }
+      profileFunctions(context, testEnvironment);
+      List<TestResult> results = runQueuedFunctions(context, testEnvironment, testFile, functions, log, fileDeadline);
+      recordSourceDependencies(testFile, results, log);
+      writeProfile(testFile, log);
+      return results;
+    } finally {
+      restoreTemplate();
+    }
+  }
+
+  private List<TestResult> runQueuedFunctions(final Context context, final Environment environment, final File testFile,
+                                              final Queue<Symbol> functions, final TestLog log,
+                                              final Watchdog.Deadline fileDeadline) {
+    List<TestResult> results = new ArrayList<>();
+    Symbol name;
+    // a session that timed out leaves the remaining test functions to the other sessions
+    while (!fileDeadline.isExpired() && !broken && (name = functions.poll()) != null) {
+      results.add(runTestCall(context, environment, testFile, name.getPrintName().trim() + "()",
+          FunctionCall.newCall(name), log, fileDeadline));
+    }
+    return results;
+  }
+
+  /**
+   * @return whether the test functions of the file should be run in parallel: the file matches one of the
+   * parallelFunctionFiles patterns or has a # @parallel comment line
+   */
+  boolean isParallelFunctionsFile(final File testFile) {
+    String path = testFile.getAbsolutePath().substring(testOutputDirectory.getAbsolutePath().length() + 1);
+    for (String pattern : parallelFunctionFiles) {
+      if (FilenameUtils.wildcardMatch(FilenameUtils.separatorsToUnix(path), pattern.trim())) {
+        return true;
+      }
+    }
+    try (Stream<String> lines = Files.lines(testFile.toPath(), StandardCharsets.UTF_8)) {
+      return lines.anyMatch(line -> PARALLEL_ANNOTATION.matcher(line).matches());
+    } catch (IOException | UncheckedIOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Run a testthat test file (a test*.R file in a testthat directory) natively. Each test_that() call in the file
+   * is a test of its own, the rest of the top level code in the file (e.g. context()) is the first test. With the
+   * default reporter of testthat a test_that() call fails (stops) when an expectation in it fails.
+   */
+  private List<TestResult> runTestthatFile(final File testFile, final TestLog log) throws MojoExecutionException {
+    List<TestResult> results = new ArrayList<>();
+    File testthatDir = testFile.getParentFile();
+    log.info("");
+    log.info("# Running {}", testFile.getAbsolutePath().substring(testOutputDirectory.getAbsolutePath().length() + 1));
+
+    long setupStart = System.nanoTime();
+    try {
+      // testthat runs the test files with the testthat directory as working dir
+      session.setWorkingDirectory(testthatDir);
+    } catch (FileSystemException e) {
+      throw new MojoExecutionException("Failed to set working dir for session to " + testthatDir);
+    }
+    redirectOutput(log);
+    Context context = session.getTopLevelContext();
+
+    TestResult fileResult = new TestResult(testFile);
+    String methodName = testFile.getName();
+    fileResult.setTestMethod(methodName.substring(0, methodName.lastIndexOf(".")) + "()");
+    fileResult.setStartTime(System.currentTimeMillis());
+    results.add(fileResult);
+    String testName = testFile.getName();
+    long topLevelNanos = 0;
+    String phase = "running testthat helpers for";
+    Exception exception = null;
+    Watchdog.Deadline testDeadline = null;
+    try (Watchdog.Deadline fileDeadline = Watchdog.interruptAfter(TimeUnit.SECONDS.toMillis(fileTimeout))) {
+      try {
+        Environment environment = Environment.createChildEnvironment(testthatEnvironment(context, testthatDir, log))
+            .build();
+        fileResult.setSetupNanos(System.nanoTime() - setupStart);
+        phase = "parsing";
+        long parseStart = System.nanoTime();
+        ParseCache.ParsedFile parsed = parseCache.parse(context, testFile);
+        fileResult.setParseNanos(System.nanoTime() - parseStart);
+        fileResult.setParseSavedNanos(parsed.getSavedNanos());
+        phase = "executing";
+        for (SEXP expression : parsed.getExpressions()) {
+          if (fileDeadline.isExpired()) {
+            break;
+          }
+          String description = testthatDescription(expression);
+          if (description != null) {
+            results.add(runTestCall(context, environment, testFile, description, expression, log, fileDeadline));
+            continue;
+          }
+          long start = System.nanoTime();
+          testDeadline = Watchdog.interruptAfter(TimeUnit.SECONDS.toMillis(testTimeout));
+          try {
+            context.evaluate(expression, environment);
+          } finally {
+            testDeadline.close();
+            topLevelNanos += System.nanoTime() - start;
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        exception = e;
+      }
+      fileResult.setDurationNanos(Math.max(1, fileResult.getParseNanos() + topLevelNanos));
+      if (timedOut(fileResult, testName, exception, testDeadline, fileDeadline, log)) {
+        return results;
+      }
+    } finally {
+      long teardownStart = System.nanoTime();
+      restoreTemplate();
+      fileResult.setTeardownNanos(System.nanoTime() - teardownStart);
+    }
+    fileResult.setEndTime(System.currentTimeMillis());
+    if (exception == null) {
+      fileResult.setResult(TestResult.OutCome.SUCCESS);
+      if (printSuccess) {
+        log.info("\t# {}: Success", testName);
+      }
+    } else {
+      log.warn("\t# {}: Failure detected: {}", testName, formatMessage(exception));
+      fileResult.setResult(TestResult.OutCome.FAILURE);
+      fileResult.setError(exception);
+      fileResult.setIssue(exception.getClass().getSimpleName() + " " + phase + " " + testName);
+    }
+    return results;
+  }
+
+  /**
+   * The environment the testthat test files in a directory are run in: testthat is attached and the helper*.R and
+   * setup*.R files in the directory (in that order) are run in it once per runner, i.e. once per worker thread or
+   * forked JVM. If this fails it is tried again for the next test file.
+   */
+  private Environment testthatEnvironment(final Context context, final File testthatDir, final TestLog log)
+      throws IOException {
+    Environment environment = testthatEnvironments.get(testthatDir);
+    if (environment != null) {
+      return environment;
+    }
+    environment = Environment.createChildEnvironment(session.getGlobalEnvironment()).build();
+    context.evaluate(FunctionCall.newCall(Symbol.get("library"), Symbol.get("testthat")), environment);
+    File[] files = testthatDir.listFiles((dir, name) -> TESTTHAT_HELPER_FILE.matcher(name).matches());
+    List<File> helpers = new ArrayList<>(Arrays.asList(files == null ? new File[0] : files));
+    // helpers first, then setup files
+    helpers.sort(Comparator.comparing((File file) -> file.getName().startsWith("setup")).thenComparing(File::getName));
+    for (File helper : helpers) {
+      log.info("\t# Running testthat {}", helper.getName());
+      for (SEXP expression : parseCache.parse(context, helper).getExpressions()) {
+        context.evaluate(expression, environment);
+      }
+    }
+    testthatEnvironments.put(testthatDir, environment);
+    return environment;
+  }
+
+  /**
+   * @return the description of the test if the expression is a test_that() call, otherwise null
+   */
+  static String testthatDescription(final SEXP expression) {
+    if (!(expression instanceof FunctionCall)) {
+      return null;
+    }
+    FunctionCall call = (FunctionCall) expression;
+    SEXP function = call.getFunction();
+    if (function instanceof FunctionCall && isSymbol(((FunctionCall) function).getFunction(), "::")) {
+      // testthat::test_that
+      function = ((FunctionCall) function).getArguments().getElementAsSEXP(1);
+    }
+    if (!isSymbol(function, "test_that") || call.getArguments().length() == 0) {
+      return null;
+    }
+    SEXP description = call.getArguments().getElementAsSEXP(0);
+    if (description instanceof StringVector && description.length() == 1) {
+      return ((StringVector) description).getElementAsString(0);
+    }
+    return "test_that(" + description + ")";
+  }
+
+  private static boolean isSymbol(final SEXP value, final String name) {
+    return value instanceof Symbol && name.equals(((Symbol) value).getPrintName());
+  }
+
+  /**
+   * Remove everything that the test file added to the global environment and put back what it replaced or removed
+   * (e.g. using &lt;&lt;-) so that the next test file starts from the state the session had when the template was
+   * built. Values are compared by identity, R values are not changed in place (environments excepted).
+   */
+  void restoreTemplate() {
+    Environment global = session.getGlobalEnvironment();
+    for (Symbol name : new ArrayList<>(global.getSymbolNames())) {
+      if (!templateBindings.containsKey(name)) {
+        global.remove(name);
+      }
+    }
+    for (Map.Entry<Symbol, SEXP> binding : templateBindings.entrySet()) {
+      if (global.getVariableUnsafe(binding.getKey()) != binding.getValue()) {
+        global.setVariable(session.getTopLevelContext(), binding.getKey(), binding.getValue());
+      }
+    }
+  }
+
+  private Map<Symbol, SEXP> snapshotGlobalEnvironment() {
+    Environment global = session.getGlobalEnvironment();
+    Map<Symbol, SEXP> bindings = new HashMap<>();
+    for (Symbol name : global.getSymbolNames()) {
+      bindings.put(name, global.getVariableUnsafe(name));
+    }
+    return bindings;
+  }
+
+  /**
+   * Run a single test, i.e. a call to a test function or a test_that() call.
+   */
+  private TestResult runTestCall(final Context context, final Environment environment, final File testFile,
+                                 final String methodName, final SEXP call, final TestLog log,
+                                 final Watchdog.Deadline fileDeadline) {
+    TestResult result = new TestResult(testFile);
+    result.setStartTime(System.currentTimeMillis());
+    String testName = testFile.getName() + ": " + methodName ;
+    log.info("\t# Running test {} in {}", methodName, testFile.getName());
+    String issue;
+    Exception exception;
+    result.setTestMethod(methodName);
+    Watchdog.Deadline testDeadline = Watchdog.interruptAfter(TimeUnit.SECONDS.toMillis(testTimeout));
+    if (profiler != null) {
+      profiler.start(context, relativePath(testFile), methodName);
+    }
+    ResourceMeter meter = ResourceMeter.start();
+    try {
+      context.evaluate(call, environment);
+      meter.stop(result);
+      testDeadline.close();
+      if (timedOut(result, testName, null, testDeadline, fileDeadline, log)) {
+        return result;
+      }
+      if (printSuccess) {
+        log.info("\t\t# {}: Success", testName);
+      }
+      result.setResult(TestResult.OutCome.SUCCESS);
+      result.setEndTime(System.currentTimeMillis());
+      return result;
+    } catch (EvalException e) {
+      exception = e;
+      issue = e.getClass().getSimpleName() + " executing test " + testName;
+    } catch (RuntimeException e) {
+      exception = e;
+      issue = e.getClass().getSimpleName() + " occurred running R script " + testName;
+    } catch (Exception e) {
+      exception = e;
+      issue = e.getClass().getSimpleName() + " thrown when running script " + testName;
+    } finally {
+      testDeadline.close();
+      if (profiler != null) {
+        profiler.stop();
+      }
+    }
+    meter.stop(result);
+    if (timedOut(result, testName, exception, testDeadline, fileDeadline, log)) {
+      return result;
+    }
+    log.info("\t\t# {}: Failure detected: {}", testName, formatMessage(exception));
+    result.setResult(TestResult.OutCome.FAILURE);
+    result.setError(exception);
+    result.setIssue(issue);
+    result.setEndTime(System.currentTimeMillis());
+    return result;
+  }
+
+  private TestResult runTest(final Context context, final Environment environment, final File testFile, final TestLog log,
+                             final Watchdog.Deadline fileDeadline) {
+    TestResult result = new TestResult(testFile);
+    String methodName = testFile.getName();
+    methodName = methodName.substring(0, methodName.lastIndexOf("."));
+    result.setStartTime(System.currentTimeMillis());
+    result.setTestMethod(methodName + "()");
+    String issue;
+    Exception exception;
+    String testName = testFile.getName();
+    Watchdog.Deadline testDeadline = Watchdog.interruptAfter(TimeUnit.SECONDS.toMillis(testTimeout));
+    if (profiler != null) {
+      profiler.start(context, relativePath(testFile), result.getTestMethod());
+    }
+    ResourceMeter meter = ResourceMeter.start();
+    try {
+      evaluate(context, environment, testFile, result);
+      meter.stop(result);
+      testDeadline.close();
+      if (timedOut(result, testName, null, testDeadline, fileDeadline, log)) {
+        return result;
+      }
+      result.setResult(TestResult.OutCome.SUCCESS);
+      if (printSuccess) {
+        log.info("\t# {}: Success", testName);
+      }
+      result.setEndTime(System.currentTimeMillis());
+      return result;
+    } catch (org.renjin.parser.ParseException e) {
+      exception = e;
+      issue = e.getClass().getSimpleName() + " parsing R script " + testName;
+    } catch (IOException e) {
+      exception = e;
+      issue = e.getClass().getSimpleName() + " reading file " + testName;
+    } catch (EvalException e) {
+      exception = e;
+      issue = e.getClass().getSimpleName() + " executing test " + testName;
+    } catch (RuntimeException e) {
+      exception = e;
+      issue = e.getClass().getSimpleName() + " occurred running R script " + testName;
+    } catch (Exception e) {
+      exception = e;
+      issue = e.getClass().getSimpleName() + " thrown when running script " + testName;
+    } finally {
+      testDeadline.close();
+      if (profiler != null) {
+        profiler.stop();
+      }
+    }
+    meter.stop(result);
+    if (timedOut(result, testName, exception, testDeadline, fileDeadline, log)) {
+      return result;
+    }
+    log.warn("\t# {}: Failure detected: {}", testName, formatMessage(exception));
+    result.setResult(TestResult.OutCome.FAILURE);
+    result.setError(exception);
+    result.setIssue(issue);
+    result.setEndTime(System.currentTimeMillis());
+    return result;
+  }
+
+  /**
+   * If the test or the test file ran out of time, record the test as an error and mark the runner as broken.
+   * The test deadline is null if the test did not get to run.
+   *
+   * @return whether the test timed out
+   */
+  private boolean timedOut(TestResult result, String testName, Exception exception, Watchdog.Deadline testDeadline,
+                           Watchdog.Deadline fileDeadline, TestLog log) {
+    String issue;
+    if (testDeadline != null && testDeadline.isExpired()) {
+      issue = "Timeout: " + testName + " did not finish within " + testTimeout + " seconds";
+    } else if (fileDeadline.isExpired()) {
+      issue = "Timeout: " + result.getTestFile().getName() + " did not finish within " + fileTimeout + " seconds";
+    } else {
+      return false;
+    }
+    broken = true;
+    TimeoutException timeout = new TimeoutException(issue);
+    if (exception != null) {
+      timeout.initCause(exception);
+    }
+    log.error("\t# {}", issue);
+    result.setResult(TestResult.OutCome.ERROR);
+    result.setError(timeout);
+    result.setIssue(issue);
+    result.setEndTime(System.currentTimeMillis());
+    return true;
+  }
+
+  /**
+   * Parse the R file (or get it from the parse cache) and evaluate it in the given environment, the time spent
+   * parsing is set on the result.
+   */
+  private void evaluate(final Context context, final Environment environment, final File file,
+                        final TestResult result) throws IOException {
+    ParseCache.ParsedFile parsed;
+    long parseStart = System.nanoTime();
+    try {
+      parsed = parseCache.parse(context, file);
+    } finally {
+      result.setParseNanos(System.nanoTime() - parseStart);
+    }
+    result.setParseSavedNanos(parsed.getSavedNanos());
+    for (SEXP expression : parsed.getExpressions()) {
+      context.evaluate(expression, environment);
+    }
+  }
+
+  /**
+   * When the log is buffered the R output must go to the log as well, otherwise print() in the tests
+   * would end up in the console detached from the test that produced it.
+   */
+  private void redirectOutput(RenjinScriptEngine engine, TestLog log) {
+    Writer out = redirectOutput(log);
+    if (out != null) {
+      engine.getContext().setWriter(out);
+    }
+  }
+
+  private Writer redirectOutput(TestLog log) {
+    if (!log.isBuffered()) {
+      return null;
+    }
+    Writer out = log.getOutput();
+    session.setStdOut(new PrintWriter(out, true));
+    return out;
+  }
+
+  /**
+   * @return the names of the test functions (no args functions named test.* or test_check*) in the environment
+   */
+  static List<Symbol> findTestFunctions(final Context context, final Environment environment) {
+    return findFunctions(context, environment, "test.", "test_check");
+  }
+
+  /**
+   * @return the names of the no args functions in the environment whose name starts with one of the prefixes
+   */
+  static List<Symbol> findFunctions(final Context context, final Environment environment, final String... prefixes) {
+    List<Symbol> functions = new ArrayList<>();
+    for (Symbol name : environment.getSymbolNames()) {
+      String methodName = name.getPrintName().trim();
+      for (String prefix : prefixes) {
+        if (methodName.startsWith(prefix)) {
+          SEXP value = environment.getVariable(context, name);
+          if (isNoArgsFunction(value)) {
+            functions.add(name);
+          }
+          break;
+        }
+      }
+    }
+    return functions;
+  }
+
+  /**
+   * @param testFile the file
+   * @param nativeTestthat whether testthat test files are run natively
+   * @return whether the file should be run as a test file. Files in a testthat directory are run by the
+   * testthat.R next to the directory, unless testthat is run natively, then the test*.R files in the directory
+   * are run instead of the testthat.R.
+   */
+  static boolean isTestFile(final File testFile, final boolean nativeTestthat) {
+    if (!nativeTestthat) {
+      return !isTestthatFile(testFile);
+    }
+    if (isTestthatFile(testFile)) {
+      return TESTTHAT_TEST_FILE.matcher(testFile.getName()).matches();
+    }
+    return !isTestthatDriver(testFile);
+  }
+
+  /**
+   * @return whether the file is a testthat.R that runs the tests in the testthat directory next to it
+   */
+  static boolean isTestthatDriver(final File testFile) {
+    return testFile.getName().startsWith("testthat") && new File(testFile.getParentFile(), "testthat").isDirectory();
+  }
+
+  /**
+   * @return whether the file is a helper*.R or setup*.R file in a testthat directory
+   */
+  static boolean isTestthatHelper(final File file) {
+    return isTestthatFile(file) && TESTTHAT_HELPER_FILE.matcher(file.getName()).matches();
+  }
+
+  /**
+   * @return whether the file is in a testthat directory, such files are run by the testthat.R next to the directory
+   */
+  static boolean isTestthatFile(final File testFile) {
+    return "testthat".equals(testFile.getParentFile().getName());
+  }
+
+  static boolean isNoArgsFunction(final SEXP value) {
+    if (value instanceof Closure) {
+      Closure testFunction = (Closure) value;
+      return testFunction.getFormals().length() == 0;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,200 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Goal which runs the Renjin tests and then keeps watching the test sources, test resources and R sources,
+ * rerunning the affected test files in the same (warm) session whenever some of them change. Runs until stopped
+ * (Ctrl+C). Takes the same parameters as testR but always runs in the maven JVM, one test file at a time.
+ */
+@Mojo(name = "watchR",
+    requiresDependencyResolution = ResolutionScope.TEST,
+    requiresProject = true
+)
+public class RenjinWatchMojo extends RenjinTestMojo {
+
+  /**
+   * How long (in milliseconds) no more files may change before the affected test files are run
+   */
+  @Parameter(name = "watchQuietPeriod", property = "testR.watchQuietPeriod", defaultValue = "50")
+  private long watchQuietPeriod;
+
+  private final Logger logger = LoggerFactory.getLogger(RenjinWatchMojo.class);
+  private RenjinTestRunner runner;
+
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    if (!prepare("RENJIN TESTS (WATCH MODE)")) {
+      return;
+    }
+    // the other test resources are normally copied by maven, which does not run again when they change
+    syncTestFiles(true);
+    TestLog log = new TestLog(logger, false);
+    runTestFiles(listTestFiles(), log, System.nanoTime());
+
+    List<File> directories = Arrays.asList(getTestSourceDirectory(), getSourceDirectory(), getTestResourceDirectory());
+    try (SourceWatcher watcher = new SourceWatcher(directories)) {
+      logger.info("Watching {} for changes, press Ctrl+C to stop", watcher.getRoots());
+      while (!Thread.currentThread().isInterrupted()) {
+        Set<File> changes = watcher.awaitChanges(watchQuietPeriod);
+        long start = System.nanoTime();
+        try {
+          List<File> testFiles = onChanges(changes, watcher.getRoots(), log);
+          if (testFiles.isEmpty()) {
+            logger.info("No test files are affected by the changes to {}", changes);
+            continue;
+          }
+          runTestFiles(testFiles, log, start);
+        } catch (MojoExecutionException e) {
+          logger.error("{}: {}", e.getMessage(), TestResultPrinter.formatMessage(e.getCause()));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      throw new MojoExecutionException("Failed to watch " + getTestSourceDirectory() + " for changes", e);
+    }
+  }
+
+  /**
+   * Sync the changed test files, run the changed source scripts again and find the test files affected by the changes.
+   *
+   * @return the test files to run
+   */
+  private List<File> onChanges(Set<File> changes, List<File> roots, TestLog log) throws MojoExecutionException {
+    List<File> syncedFiles = syncTestFiles(true);
+    List<File> testFiles = listTestFiles();
+    if (changes.stream().anyMatch(roots::contains)) {
+      log.info("Too many changes to keep track of, running all test files");
+      runner = null;
+      return testFiles;
+    }
+    if (runner == null) {
+      // the previous session could not be built, the new one is built from the current source scripts
+      runner = createTestFileRunner(log);
+    }
+    Set<File> affectedFiles = new LinkedHashSet<>();
+    Set<String> names = new TreeSet<>();
+    for (File changedFile : changes) {
+      if (!isInDirectory(changedFile, getSourceDirectory())) {
+        continue;
+      }
+      names.add(changedFile.getName());
+      if (isRunSourceScriptsBeforeTests() && changedFile.isFile() && isRFile(changedFile)) {
+        try {
+          names.addAll(runner.reloadSourceScript(changedFile, log));
+        } catch (MojoExecutionException e) {
+          log.error("# {}: {}", e.getMessage(), TestResultPrinter.formatMessage(e.getCause()));
+        }
+      }
+    }
+    for (File syncedFile : syncedFiles) {
+      if (testFiles.contains(syncedFile)) {
+        affectedFiles.add(syncedFile);
+      } else if (RenjinTestRunner.isTestthatFile(syncedFile)) {
+        if (RenjinTestRunner.isTestthatHelper(syncedFile)) {
+          runner.clearTestthatEnvironments();
+        }
+        affectedFiles.addAll(testthatFiles(testFiles, syncedFile));
+      } else {
+        // e.g. a data file or an R file sourced by the tests
+        names.add(syncedFile.getName());
+      }
+    }
+    affectedFiles.addAll(selectReferencing(testFiles, names));
+    return testFiles.stream().filter(affectedFiles::contains).collect(Collectors.toList());
+  }
+
+  private void runTestFiles(List<File> testFiles, TestLog log, long startNanos) throws MojoExecutionException {
+    if (runner == null) {
+      runner = createTestFileRunner(log);
+    }
+    List<TestResult> results = new ArrayList<>();
+    List<File> executedFiles = new ArrayList<>();
+    for (File testFile : testFiles) {
+      List<TestResult> fileResults = runner.runTestFile(testFile, log);
+      if (fileResults != null) {
+        results.addAll(fileResults);
+        executedFiles.add(testFile);
+      }
+      if (runner.isBroken()) {
+        log.warn("A test timed out, replacing the session");
+        runner = createTestFileRunner(log);
+      }
+    }
+    try {
+      TestResultPrinter.printResultToConsole(logger, results, true, executedFiles, new RunStatistics(), 0);
+    } catch (MojoFailureException e) {
+      // cannot happen when failures are ignored
+    }
+    logger.info("Ran {} test files in {} ms, waiting for changes", executedFiles.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * @return the test files affected by a change to a helper (or a test file when testthat is not run natively) in a
+   * testthat directory: the test files in the directory when testthat is run natively, otherwise the testthat.R next
+   * to the directory
+   */
+  static List<File> testthatFiles(List<File> testFiles, File changedFile) {
+    File testthatDir = changedFile.getParentFile();
+    return testFiles.stream()
+        .filter(file -> testthatDir.equals(file.getParentFile())
+            || testthatDir.getParentFile().equals(file.getParentFile()) && RenjinTestRunner.isTestthatDriver(file))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @param testFiles the test files to search
+   * @param names names of files or R objects
+   * @return the test files that mention any of the names
+   * @throws MojoExecutionException if some test file could not be read
+   */
+  static List<File> selectReferencing(Collection<File> testFiles, Set<String> names) throws MojoExecutionException {
+    List<File> selected = new ArrayList<>();
+    if (names.isEmpty()) {
+      return selected;
+    }
+    Pattern pattern = Pattern.compile("(?<![\\w.])("
+        + names.stream().map(Pattern::quote).collect(Collectors.joining("|")) + ")(?![\\w.])");
+    for (File testFile : testFiles) {
+      try {
+        if (pattern.matcher(FileUtils.readFileToString(testFile, StandardCharsets.UTF_8)).find()) {
+          selected.add(testFile);
+        }
+      } catch (IOException e) {
+        throw new MojoExecutionException("Failed to read " + testFile, e);
+      }
+    }
+    return selected;
+  }
+
+  private static boolean isInDirectory(File file, File directory) {
+    return directory != null && file.getAbsolutePath().startsWith(directory.getAbsolutePath() + File.separator);
+  }
+
+  private static boolean isRFile(File file) {
+    return Arrays.asList(RunnerSettings.EXTENSIONS).contains(FilenameUtils.getExtension(file.getName()));
+  }
+}
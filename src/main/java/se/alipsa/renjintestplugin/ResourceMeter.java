@@ -0,0 +1,83 @@
+package se.alipsa.renjintestplugin;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the wall clock time, CPU time and allocated bytes of the current thread between
+ * {@link #start()} and {@link #stop(TestResult)}. CPU time and allocated bytes are -1 if the JVM does not
+ * support measuring them.
+ */
+public final class ResourceMeter {
+
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+  private static final boolean CPU_TIME_SUPPORTED = isCpuTimeSupported();
+  private static final boolean ALLOCATION_SUPPORTED = isAllocationSupported();
+
+  private final long startNanos;
+  private final long startCpuNanos;
+  private final long startAllocatedBytes;
+
+  private ResourceMeter() {
+    startCpuNanos = cpuNanos();
+    startAllocatedBytes = allocatedBytes();
+    startNanos = System.nanoTime();
+  }
+
+  public static ResourceMeter start() {
+    return new ResourceMeter();
+  }
+
+  /**
+   * Set the duration, CPU time and allocated bytes since the meter was started on the result.
+   *
+   * @param result the result to update
+   */
+  public void stop(TestResult result) {
+    result.setDurationNanos(System.nanoTime() - startNanos);
+    long cpu = cpuNanos();
+    result.setCpuNanos(cpu < 0 ? -1 : cpu - startCpuNanos);
+    long allocated = allocatedBytes();
+    result.setAllocatedBytes(allocated < 0 ? -1 : allocated - startAllocatedBytes);
+  }
+
+  static long cpuNanos() {
+    return CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : -1;
+  }
+
+  /**
+   * @return the bytes allocated by the current thread so far or -1 if not supported
+   */
+  static long allocatedBytes() {
+    if (!ALLOCATION_SUPPORTED) {
+      return -1;
+    }
+    return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static boolean isCpuTimeSupported() {
+    try {
+      if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() && !THREAD_MX_BEAN.isThreadCpuTimeEnabled()) {
+        THREAD_MX_BEAN.setThreadCpuTimeEnabled(true);
+      }
+      return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() && THREAD_MX_BEAN.isThreadCpuTimeEnabled();
+    } catch (UnsupportedOperationException | SecurityException e) {
+      return false;
+    }
+  }
+
+  private static boolean isAllocationSupported() {
+    try {
+      if (!(THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean)) {
+        return false;
+      }
+      com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+      if (bean.isThreadAllocatedMemorySupported() && !bean.isThreadAllocatedMemoryEnabled()) {
+        bean.setThreadAllocatedMemoryEnabled(true);
+      }
+      return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled();
+    } catch (UnsupportedOperationException | SecurityException | NoClassDefFoundError e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sorts the test files according to the runOrder parameter: a comma separated list of
+ * <ul>
+ *   <li>filesystem - the order the files are listed in (the default)</li>
+ *   <li>alphabetical / reversealphabetical - by relative path</li>
+ *   <li>failedfirst - files that failed in the previous run first</li>
+ *   <li>longestfirst - the files that took the longest in the previous run first, files without history
+ *   (e.g. new ones) before those</li>
+ * </ul>
+ * e.g. "failedfirst,longestfirst" runs the failed files first, longest first, and then the rest longest first.
+ */
+public final class RunOrder {
+
+  static final String FILESYSTEM = "filesystem";
+  static final String ALPHABETICAL = "alphabetical";
+  static final String REVERSE_ALPHABETICAL = "reversealphabetical";
+  static final String FAILED_FIRST = "failedfirst";
+  static final String LONGEST_FIRST = "longestfirst";
+
+  private RunOrder() {
+    // static helpers only
+  }
+
+  /**
+   * @param testFiles the test files in filesystem order
+   * @param runOrder the run order, null or empty means filesystem
+   * @param history the history from previous runs
+   * @return the sorted test files
+   * @throws MojoExecutionException if the run order is unknown
+   */
+  public static List<File> sort(List<File> testFiles, String runOrder, TestHistory history) throws MojoExecutionException {
+    Comparator<File> comparator = comparator(runOrder, history);
+    List<File> sorted = new ArrayList<>(testFiles);
+    if (comparator != null) {
+      // the sort is stable so files that compare equal stay in filesystem order
+      sorted.sort(comparator);
+    }
+    return sorted;
+  }
+
+  static Comparator<File> comparator(String runOrder, TestHistory history) throws MojoExecutionException {
+    if (runOrder == null || runOrder.trim().isEmpty()) {
+      return null;
+    }
+    Comparator<File> comparator = null;
+    for (String order : runOrder.split(",")) {
+      Comparator<File> next;
+      switch (order.trim().toLowerCase()) {
+        case FILESYSTEM:
+          continue;
+        case ALPHABETICAL:
+          next = Comparator.comparing(File::getAbsolutePath);
+          break;
+        case REVERSE_ALPHABETICAL:
+          next = Comparator.comparing(File::getAbsolutePath, Collections.reverseOrder());
+          break;
+        case FAILED_FIRST:
+          next = Comparator.comparing(file -> !history.hasFailed(file));
+          break;
+        case LONGEST_FIRST:
+          next = Comparator.comparingLong(file -> {
+            Long duration = history.getDurationNanos(file);
+            return duration == null ? Long.MIN_VALUE : -duration;
+          });
+          break;
+        default:
+          throw new MojoExecutionException("Unknown runOrder " + order + ", expected a comma separated list of "
+              + String.join(", ", FILESYSTEM, ALPHABETICAL, REVERSE_ALPHABETICAL, FAILED_FIRST, LONGEST_FIRST));
+      }
+      comparator = comparator == null ? next : comparator.thenComparing(next);
+    }
+    return comparator;
+  }
+}
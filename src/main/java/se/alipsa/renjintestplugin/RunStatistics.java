@@ -0,0 +1,77 @@
+package se.alipsa.renjintestplugin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics about a test run (apart from the test results themselves) that are shown in the summary.
+ */
+public class RunStatistics {
+
+  private final AtomicInteger templateCount = new AtomicInteger();
+  private final AtomicLong templateBuildNanos = new AtomicLong();
+  private final AtomicLong templateParseSavedNanos = new AtomicLong();
+  private final AtomicInteger reusedTemplateCount = new AtomicInteger();
+  private int reusedFileCount;
+  private ProfileReport profile;
+
+  /**
+   * Register that a session template (i.e. a runner) was built.
+   *
+   * @param buildNanos the time it took to build it
+   * @param parseSavedNanos the part of the build time saved by the parse cache
+   */
+  public void addTemplate(long buildNanos, long parseSavedNanos) {
+    templateCount.incrementAndGet();
+    templateBuildNanos.addAndGet(buildNanos);
+    templateParseSavedNanos.addAndGet(parseSavedNanos);
+  }
+
+  /**
+   * Register that a session template from a previous execution was reused instead of building a new one.
+   */
+  public void addReusedTemplate() {
+    reusedTemplateCount.incrementAndGet();
+  }
+
+  public int getReusedTemplateCount() {
+    return reusedTemplateCount.get();
+  }
+
+  public int getTemplateCount() {
+    return templateCount.get();
+  }
+
+  public long getTemplateBuildNanos() {
+    return templateBuildNanos.get();
+  }
+
+  /**
+   * @return the time saved by reading the source scripts from the parse cache when building the session templates
+   */
+  public long getTemplateParseSavedNanos() {
+    return templateParseSavedNanos.get();
+  }
+
+  /**
+   * @return the number of test files whose results were reused from a previous run (incremental mode)
+   */
+  public int getReusedFileCount() {
+    return reusedFileCount;
+  }
+
+  public void setReusedFileCount(int reusedFileCount) {
+    this.reusedFileCount = reusedFileCount;
+  }
+
+  /**
+   * @return the profile of the run or null if the run was not profiled
+   */
+  public ProfileReport getProfile() {
+    return profile;
+  }
+
+  public void setProfile(ProfileReport profile) {
+    this.profile = profile;
+  }
+}
@@ -0,0 +1,278 @@
+package se.alipsa.renjintestplugin;
+
+import org.renjin.RenjinVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps class loaders and idle runners (i.e. session templates) alive between the testR executions of a build,
+ * e.g. the modules of a multi-module reactor, so that modules with the same dependencies do not have to open the
+ * same jars and load the Renjin base packages again.
+ * <p>
+ * The test classpath is split in two: the jar files (the dependencies) are loaded by a class loader that is shared
+ * by all executions with the same jar files, the directories (target/classes and target/test-classes of the module
+ * and of modules in the reactor) by a class loader of the module on top of it. Only the jar layer is shared between
+ * modules: a session template can hold objects and classes from the directories of the module it was built for, so
+ * idle runners are kept per module directories, only for the template key (the preload packages and source scripts
+ * they were built with) the module was last released with, at most maxIdle of them, and handed out to one execution
+ * at a time. The class loaders of the runners that are not kept are closed unless some other runner still uses
+ * them. At most maxSize class paths are kept, the least
+ * recently used is dropped (along with its idle runners) when the limit is reached and its class loaders are closed
+ * once the last execution using it is done with it, see {@link #close()}.</p>
+ */
+public final class RunnerCache implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(RunnerCache.class);
+  private static final Map<String, RunnerCache> caches = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final URLClassLoader dependencyLoader;
+  /** The idle runners by module key, all built with the template key of the module */
+  private final Map<String, Deque<RenjinTestRunner>> idleRunners = new HashMap<>();
+  /** The template key of the idle runners by module key */
+  private final Map<String, String> templateKeys = new HashMap<>();
+  /** The number of runners taken and not yet released by class loader */
+  private final Map<ClassLoader, Integer> takenLoaders = new HashMap<>();
+  /** The runners released after the cache was dropped */
+  private final List<RenjinTestRunner> retiredRunners = new ArrayList<>();
+  /** The number of executions using the cache, guarded by the RunnerCache class */
+  private int users;
+  /** Whether the cache has been dropped, guarded by the RunnerCache class */
+  private boolean dropped;
+
+  private RunnerCache(URLClassLoader dependencyLoader) {
+    this.dependencyLoader = dependencyLoader;
+  }
+
+  /**
+   * @param classpathElements the test classpath elements of the module
+   * @param maxSize the max number of class paths to keep
+   * @return the cache for the jar files in the classpath, created if there is none, {@link #close()} it when done
+   * @throws IOException if some classpath element could not be turned into a URL
+   */
+  public static synchronized RunnerCache forClasspath(List<String> classpathElements, int maxSize) throws IOException {
+    List<URL> jarUrls = new ArrayList<>();
+    ContentHash hash = new ContentHash().add(RenjinVersion.getVersionName());
+    for (String element : classpathElements) {
+      File file = new File(element);
+      if (file.isFile()) {
+        jarUrls.add(file.toURI().toURL());
+        hash.add(file.getAbsolutePath()).add(file.length()).add(file.lastModified());
+      }
+    }
+    String key = hash.finish();
+    RunnerCache cache = caches.get(key);
+    if (cache == null) {
+      cache = new RunnerCache(new URLClassLoader(jarUrls.toArray(new URL[0]),
+          Thread.currentThread().getContextClassLoader()));
+      caches.put(key, cache);
+      Iterator<RunnerCache> it = caches.values().iterator();
+      while (caches.size() > Math.max(1, maxSize)) {
+        it.next().drop();
+        it.remove();
+        logger.debug("Dropped the least recently used classpath from the runner cache");
+      }
+    } else {
+      logger.debug("Reusing the class loader for classpath {}", key);
+    }
+    cache.users++;
+    return cache;
+  }
+
+  /**
+   * Drop all cached class loaders and runners.
+   */
+  public static synchronized void clear() {
+    caches.values().forEach(RunnerCache::drop);
+    caches.clear();
+  }
+
+  /**
+   * Tell the cache that the execution that got it from {@link #forClasspath(List, int)} is done with it. The class
+   * loaders of a dropped cache are closed when the last execution using it is done.
+   */
+  @Override
+  public void close() {
+    synchronized (RunnerCache.class) {
+      users--;
+      if (!dropped || users > 0) {
+        return;
+      }
+    }
+    closeClassLoaders();
+  }
+
+  /** Must be called holding the RunnerCache class lock */
+  private void drop() {
+    dropped = true;
+    if (users <= 0) {
+      closeClassLoaders();
+    }
+  }
+
+  private void closeClassLoaders() {
+    List<RenjinTestRunner> runners = new ArrayList<>();
+    synchronized (this) {
+      idleRunners.values().forEach(runners::addAll);
+      idleRunners.clear();
+      runners.addAll(retiredRunners);
+      retiredRunners.clear();
+    }
+    for (RenjinTestRunner runner : runners) {
+      closeClassLoader(runner.getClassLoader());
+    }
+    closeClassLoader(dependencyLoader);
+  }
+
+  private static void closeClassLoader(ClassLoader classLoader) {
+    if (!(classLoader instanceof URLClassLoader)) {
+      return;
+    }
+    try {
+      ((URLClassLoader) classLoader).close();
+    } catch (IOException e) {
+      logger.debug("Failed to close class loader: {}", e.toString());
+    }
+  }
+
+  /**
+   * @param classpathElements the test classpath elements of the module
+   * @return a class loader for the directories of the module that loads the jar files from the shared class loader
+   * @throws MalformedURLException if some classpath element could not be turned into a URL
+   */
+  public URLClassLoader createClassLoader(List<String> classpathElements) throws MalformedURLException {
+    return new URLClassLoader(moduleUrls(classpathElements), dependencyLoader);
+  }
+
+  /**
+   * Take an idle runner built with the given template key for the same module directories.
+   *
+   * @param templateKey the key of the preload packages and source scripts the runner must have been built with
+   * @param classpathElements the test classpath elements of the module that will use the runner
+   * @return the runner or null if there is no idle runner for the template key and module
+   */
+  public synchronized RenjinTestRunner take(String templateKey, List<String> classpathElements) {
+    String moduleKey = moduleKey(classpathElements);
+    Deque<RenjinTestRunner> runners = idleRunners.get(moduleKey);
+    if (runners == null || !templateKey.equals(templateKeys.get(moduleKey))) {
+      return null;
+    }
+    RenjinTestRunner runner = runners.poll();
+    if (runner != null && runner.getClassLoader() != null) {
+      takenLoaders.merge(runner.getClassLoader(), 1, Integer::sum);
+    }
+    return runner;
+  }
+
+  /**
+   * Give back the runners of an execution so that they can be reused by a later execution. Idle runners built with
+   * another template key for the module are dropped, as are the runners beyond maxIdle.
+   *
+   * @param templateKey the key of the preload packages and source scripts the runners were built with
+   * @param classpathElements the test classpath elements of the module the runners were built for
+   * @param runners the runners, the broken ones are dropped
+   * @param maxIdle the max number of idle runners to keep for the module
+   */
+  public void release(String templateKey, List<String> classpathElements, Collection<RenjinTestRunner> runners,
+                      int maxIdle) {
+    synchronized (RunnerCache.class) {
+      List<RenjinTestRunner> droppedRunners = new ArrayList<>();
+      synchronized (this) {
+        for (RenjinTestRunner runner : runners) {
+          if (runner.getClassLoader() != null) {
+            takenLoaders.computeIfPresent(runner.getClassLoader(), (k, count) -> count > 1 ? count - 1 : null);
+          }
+        }
+        if (dropped) {
+          // closed along with the other class loaders when the last execution is done with the cache
+          retiredRunners.addAll(runners);
+          return;
+        }
+        String moduleKey = moduleKey(classpathElements);
+        Deque<RenjinTestRunner> idle = idleRunners.computeIfAbsent(moduleKey, k -> new ArrayDeque<>());
+        if (!templateKey.equals(templateKeys.put(moduleKey, templateKey))) {
+          droppedRunners.addAll(idle);
+          idle.clear();
+        }
+        for (RenjinTestRunner runner : runners) {
+          if (runner.isBroken() || idle.size() >= Math.max(1, maxIdle)) {
+            droppedRunners.add(runner);
+          } else {
+            idle.push(runner);
+          }
+        }
+        droppedRunners.removeIf(runner -> isInUse(runner.getClassLoader()));
+      }
+      for (RenjinTestRunner runner : droppedRunners) {
+        closeClassLoader(runner.getClassLoader());
+      }
+    }
+  }
+
+  /**
+   * Must be called holding the lock of this cache.
+   *
+   * @return whether some idle or taken runner uses the class loader
+   */
+  private boolean isInUse(ClassLoader classLoader) {
+    if (classLoader == null || takenLoaders.containsKey(classLoader)) {
+      return true;
+    }
+    for (Deque<RenjinTestRunner> runners : idleRunners.values()) {
+      for (RenjinTestRunner runner : runners) {
+        if (runner.getClassLoader() == classLoader) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of idle runners kept for the module
+   */
+  synchronized int idleCount(List<String> classpathElements) {
+    Deque<RenjinTestRunner> runners = idleRunners.get(moduleKey(classpathElements));
+    return runners == null ? 0 : runners.size();
+  }
+
+  /**
+   * @return the key of the directories in the classpath, i.e. of the module
+   */
+  static String moduleKey(List<String> classpathElements) {
+    ContentHash hash = new ContentHash();
+    for (String element : classpathElements) {
+      File file = new File(element);
+      if (!file.isFile()) {
+        hash.add(file.getAbsolutePath());
+      }
+    }
+    return hash.finish();
+  }
+
+  private static URL[] moduleUrls(List<String> classpathElements) throws MalformedURLException {
+    List<URL> urls = new ArrayList<>();
+    for (String element : classpathElements) {
+      File file = new File(element);
+      if (!file.isFile()) {
+        urls.add(file.toURI().toURL());
+      }
+    }
+    return urls.toArray(new URL[0]);
+  }
+}
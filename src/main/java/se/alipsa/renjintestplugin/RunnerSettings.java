@@ -0,0 +1,298 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The settings needed to set up a {@link RenjinTestRunner}. They can be turned into key=value
+ * arguments and back so that a forked JVM can set up its runner the same way as the maven JVM.
+ */
+public class RunnerSettings {
+
+  static final String[] EXTENSIONS = new String[]{"R", "r", "S", "s"};
+
+  private static final String TEST_OUTPUT_DIRECTORY = "testOutputDirectory";
+  private static final String SOURCE_DIRECTORY = "sourceDirectory";
+  private static final String PRINT_SUCCESS = "printSuccess";
+  private static final String PRELOAD_PACKAGES = "preloadPackages";
+  private static final String TEST_TIMEOUT = "testTimeout";
+  private static final String FILE_TIMEOUT = "fileTimeout";
+  private static final String PARSE_CACHE_DIRECTORY = "parseCacheDirectory";
+  private static final String NATIVE_TESTTHAT = "nativeTestthat";
+  private static final String FUNCTION_THREAD_COUNT = "functionThreadCount";
+  private static final String PARALLEL_FUNCTION_FILES = "parallelFunctionFiles";
+  private static final String TEST_IMPACT = "testImpact";
+  private static final String FIXTURE_FILES = "fixtureFiles";
+  private static final String FIXTURE_CACHE_DIRECTORY = "fixtureCacheDirectory";
+  private static final String PROFILE_INTERVAL = "profileInterval";
+  private static final String PROFILE_OUTPUT_DIRECTORY = "profileOutputDirectory";
+
+  private File testOutputDirectory;
+  private File sourceDirectory;
+  private boolean printSuccess;
+  private List<String> preloadPackages = new ArrayList<>();
+  private int testTimeout;
+  private int fileTimeout;
+  private File parseCacheDirectory;
+  private boolean nativeTestthat;
+  private int functionThreadCount;
+  private List<String> parallelFunctionFiles = new ArrayList<>();
+  private boolean testImpact;
+  private List<File> fixtureFiles = new ArrayList<>();
+  private File fixtureCacheDirectory;
+  private int profileInterval;
+  private File profileOutputDirectory;
+
+  public File getTestOutputDirectory() {
+    return testOutputDirectory;
+  }
+
+  public void setTestOutputDirectory(File testOutputDirectory) {
+    this.testOutputDirectory = testOutputDirectory;
+  }
+
+  /**
+   * @return the directory of the R scripts to run before the tests or null if they should not be run
+   */
+  public File getSourceDirectory() {
+    return sourceDirectory;
+  }
+
+  public void setSourceDirectory(File sourceDirectory) {
+    this.sourceDirectory = sourceDirectory;
+  }
+
+  public Collection<File> getSourceFiles() {
+    if (sourceDirectory == null || !sourceDirectory.exists()) {
+      return Collections.emptyList();
+    }
+    return FileUtils.listFiles(sourceDirectory, EXTENSIONS, true);
+  }
+
+  public boolean isPrintSuccess() {
+    return printSuccess;
+  }
+
+  public void setPrintSuccess(boolean printSuccess) {
+    this.printSuccess = printSuccess;
+  }
+
+  public List<String> getPreloadPackages() {
+    return preloadPackages;
+  }
+
+  public void setPreloadPackages(List<String> preloadPackages) {
+    this.preloadPackages = preloadPackages == null ? new ArrayList<>() : preloadPackages;
+  }
+
+  /**
+   * @return the max number of seconds a single test may run, 0 means no limit
+   */
+  public int getTestTimeout() {
+    return testTimeout;
+  }
+
+  public void setTestTimeout(int testTimeout) {
+    this.testTimeout = testTimeout;
+  }
+
+  /**
+   * @return the max number of seconds all tests in a test file may run, 0 means no limit
+   */
+  public int getFileTimeout() {
+    return fileTimeout;
+  }
+
+  public void setFileTimeout(int fileTimeout) {
+    this.fileTimeout = fileTimeout;
+  }
+
+  /**
+   * @return the directory of the parse cache or null if R files should always be parsed
+   */
+  public File getParseCacheDirectory() {
+    return parseCacheDirectory;
+  }
+
+  public void setParseCacheDirectory(File parseCacheDirectory) {
+    this.parseCacheDirectory = parseCacheDirectory;
+  }
+
+  /**
+   * @return whether the test files in testthat directories are run one by one instead of by the testthat.R
+   */
+  public boolean isNativeTestthat() {
+    return nativeTestthat;
+  }
+
+  public void setNativeTestthat(boolean nativeTestthat) {
+    this.nativeTestthat = nativeTestthat;
+  }
+
+  /**
+   * @return the number of sessions (including the one running the test file) to run the test functions of
+   * a file in parallel with, 1 or less means the test functions are run one by one
+   */
+  public int getFunctionThreadCount() {
+    return functionThreadCount;
+  }
+
+  public void setFunctionThreadCount(int functionThreadCount) {
+    this.functionThreadCount = functionThreadCount;
+  }
+
+  /**
+   * @return wildcard patterns of the test files (relative to the testOutputDirectory) whose test functions are run
+   * in parallel, in addition to the files marked with a # @parallel comment
+   */
+  public List<String> getParallelFunctionFiles() {
+    return parallelFunctionFiles;
+  }
+
+  public void setParallelFunctionFiles(List<String> parallelFunctionFiles) {
+    this.parallelFunctionFiles = parallelFunctionFiles == null ? new ArrayList<>() : parallelFunctionFiles;
+  }
+
+  /**
+   * @return whether to record which functions and objects defined by the source scripts each test file uses
+   */
+  public boolean isTestImpact() {
+    return testImpact;
+  }
+
+  public void setTestImpact(boolean testImpact) {
+    this.testImpact = testImpact;
+  }
+
+  /**
+   * @return the csv files to bind as read-only data frames in every session, see {@link FixtureStore}
+   */
+  public List<File> getFixtureFiles() {
+    return fixtureFiles;
+  }
+
+  public void setFixtureFiles(List<File> fixtureFiles) {
+    this.fixtureFiles = fixtureFiles == null ? new ArrayList<>() : fixtureFiles;
+  }
+
+  /**
+   * @return where the column files of the fixtures are kept
+   */
+  public File getFixtureCacheDirectory() {
+    return fixtureCacheDirectory;
+  }
+
+  public void setFixtureCacheDirectory(File fixtureCacheDirectory) {
+    this.fixtureCacheDirectory = fixtureCacheDirectory;
+  }
+
+  /**
+   * @return how often (in milliseconds) to sample the R functions the tests are running, 0 to not profile them
+   */
+  public int getProfileInterval() {
+    return profileInterval;
+  }
+
+  public void setProfileInterval(int profileInterval) {
+    this.profileInterval = profileInterval;
+  }
+
+  /**
+   * @return where the collapsed stacks of the profiled test files are written, see {@link ProfileReport}
+   */
+  public File getProfileOutputDirectory() {
+    return profileOutputDirectory;
+  }
+
+  public void setProfileOutputDirectory(File profileOutputDirectory) {
+    this.profileOutputDirectory = profileOutputDirectory;
+  }
+
+  public List<String> toArguments() {
+    List<String> args = new ArrayList<>();
+    args.add(TEST_OUTPUT_DIRECTORY + "=" + testOutputDirectory.getAbsolutePath());
+    args.add(PRINT_SUCCESS + "=" + printSuccess);
+    args.add(TEST_TIMEOUT + "=" + testTimeout);
+    args.add(FILE_TIMEOUT + "=" + fileTimeout);
+    args.add(NATIVE_TESTTHAT + "=" + nativeTestthat);
+    args.add(FUNCTION_THREAD_COUNT + "=" + functionThreadCount);
+    args.add(TEST_IMPACT + "=" + testImpact);
+    args.add(PROFILE_INTERVAL + "=" + profileInterval);
+    if (sourceDirectory != null) {
+      args.add(SOURCE_DIRECTORY + "=" + sourceDirectory.getAbsolutePath());
+    }
+    if (parseCacheDirectory != null) {
+      args.add(PARSE_CACHE_DIRECTORY + "=" + parseCacheDirectory.getAbsolutePath());
+    }
+    if (!preloadPackages.isEmpty()) {
+      args.add(PRELOAD_PACKAGES + "=" + String.join(",", preloadPackages));
+    }
+    if (!parallelFunctionFiles.isEmpty()) {
+      args.add(PARALLEL_FUNCTION_FILES + "=" + String.join(",", parallelFunctionFiles));
+    }
+    if (!fixtureFiles.isEmpty()) {
+      List<String> paths = new ArrayList<>();
+      fixtureFiles.forEach(file -> paths.add(file.getAbsolutePath()));
+      args.add(FIXTURE_FILES + "=" + String.join(File.pathSeparator, paths));
+    }
+    if (fixtureCacheDirectory != null) {
+      args.add(FIXTURE_CACHE_DIRECTORY + "=" + fixtureCacheDirectory.getAbsolutePath());
+    }
+    if (profileOutputDirectory != null) {
+      args.add(PROFILE_OUTPUT_DIRECTORY + "=" + profileOutputDirectory.getAbsolutePath());
+    }
+    return args;
+  }
+
+  public static RunnerSettings fromArguments(String[] args) {
+    Properties props = new Properties();
+    for (String arg : args) {
+      int idx = arg.indexOf('=');
+      if (idx > 0) {
+        props.setProperty(arg.substring(0, idx), arg.substring(idx + 1));
+      }
+    }
+    RunnerSettings settings = new RunnerSettings();
+    settings.setTestOutputDirectory(new File(props.getProperty(TEST_OUTPUT_DIRECTORY)));
+    settings.setPrintSuccess(Boolean.parseBoolean(props.getProperty(PRINT_SUCCESS)));
+    settings.setTestTimeout(Integer.parseInt(props.getProperty(TEST_TIMEOUT, "0")));
+    settings.setFileTimeout(Integer.parseInt(props.getProperty(FILE_TIMEOUT, "0")));
+    settings.setNativeTestthat(Boolean.parseBoolean(props.getProperty(NATIVE_TESTTHAT)));
+    settings.setFunctionThreadCount(Integer.parseInt(props.getProperty(FUNCTION_THREAD_COUNT, "0")));
+    settings.setTestImpact(Boolean.parseBoolean(props.getProperty(TEST_IMPACT)));
+    settings.setProfileInterval(Integer.parseInt(props.getProperty(PROFILE_INTERVAL, "0")));
+    if (props.getProperty(SOURCE_DIRECTORY) != null) {
+      settings.setSourceDirectory(new File(props.getProperty(SOURCE_DIRECTORY)));
+    }
+    if (props.getProperty(PARSE_CACHE_DIRECTORY) != null) {
+      settings.setParseCacheDirectory(new File(props.getProperty(PARSE_CACHE_DIRECTORY)));
+    }
+    if (props.getProperty(PRELOAD_PACKAGES) != null) {
+      settings.setPreloadPackages(new ArrayList<>(Arrays.asList(props.getProperty(PRELOAD_PACKAGES).split(","))));
+    }
+    if (props.getProperty(PARALLEL_FUNCTION_FILES) != null) {
+      settings.setParallelFunctionFiles(new ArrayList<>(Arrays.asList(props.getProperty(PARALLEL_FUNCTION_FILES).split(","))));
+    }
+    if (props.getProperty(FIXTURE_FILES) != null) {
+      List<File> files = new ArrayList<>();
+      for (String path : props.getProperty(FIXTURE_FILES).split(File.pathSeparator)) {
+        files.add(new File(path));
+      }
+      settings.setFixtureFiles(files);
+    }
+    if (props.getProperty(FIXTURE_CACHE_DIRECTORY) != null) {
+      settings.setFixtureCacheDirectory(new File(props.getProperty(FIXTURE_CACHE_DIRECTORY)));
+    }
+    if (props.getProperty(PROFILE_OUTPUT_DIRECTORY) != null) {
+      settings.setProfileOutputDirectory(new File(props.getProperty(PROFILE_OUTPUT_DIRECTORY)));
+    }
+    return settings;
+  }
+}
@@ -0,0 +1,116 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.FalseFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directories (and their sub directories) for created, changed and deleted files. The changes are
+ * collected until the directories have been quiet for a short while so that e.g. an IDE saving several files
+ * results in one batch of changes.
+ */
+public class SourceWatcher implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(SourceWatcher.class);
+
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> directories = new HashMap<>();
+  private final List<File> roots = new ArrayList<>();
+
+  /**
+   * @param rootDirectories the directories to watch, the ones that do not exist are ignored
+   * @throws IOException if some directory could not be watched
+   */
+  public SourceWatcher(List<File> rootDirectories) throws IOException {
+    watchService = FileSystems.getDefault().newWatchService();
+    for (File root : rootDirectories) {
+      if (root != null && root.isDirectory()) {
+        roots.add(root);
+        register(root);
+      }
+    }
+  }
+
+  /**
+   * @return the watched root directories
+   */
+  public List<File> getRoots() {
+    return roots;
+  }
+
+  /**
+   * Wait for files to change.
+   *
+   * @param quietMillis how long no more changes must come in before the changes are returned
+   * @return the created, changed and deleted files, the root directories if the changes could not be kept
+   * track of (too many changes at once)
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Set<File> awaitChanges(long quietMillis) throws InterruptedException {
+    Set<File> changes = new LinkedHashSet<>();
+    WatchKey key = watchService.take();
+    while (key != null) {
+      collect(key, changes);
+      key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS);
+    }
+    return changes;
+  }
+
+  private void collect(WatchKey key, Set<File> changes) {
+    Path directory = directories.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+        changes.addAll(roots);
+        continue;
+      }
+      File file = directory.resolve((Path) event.context()).toFile();
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && file.isDirectory()) {
+        // files created together with the directory were never reported
+        try {
+          register(file);
+          changes.addAll(FileUtils.listFiles(file, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE));
+        } catch (IOException e) {
+          logger.warn("Failed to watch {}: {}", file, e.toString());
+        }
+      } else if (!file.isDirectory()) {
+        changes.add(file);
+      }
+    }
+    if (!key.reset()) {
+      directories.remove(key);
+    }
+  }
+
+  private void register(File directory) throws IOException {
+    for (File dir : FileUtils.listFilesAndDirs(directory, FalseFileFilter.INSTANCE, TrueFileFilter.INSTANCE)) {
+      Path path = dir.toPath();
+      WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      directories.put(key, path);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+}
@@ -7,6 +7,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.Properties;
@@ -14,10 +15,12 @@ import java.util.Properties;
 public class StringReplacementFileCopier {
 
   private static final Logger logger = LoggerFactory.getLogger(StringReplacementFileCopier.class);
+  private static final int BUFFER_SIZE = 8192;
 
   /**
    * Copy all files in a directory to the target directory
-   * If there is a filter match for a file then matching string will be replaced otherwise the file will be copied as is
+   * If there is a filter match for a file then matching string will be replaced otherwise the file will be copied as is.
+   * All keys are replaced in one pass (see {@link StringReplacer}), where keys overlap the longest one wins.
    *
    * @param sourceDirectory the source directory
    * @param targetDirectory the target directory
@@ -26,6 +29,10 @@ public class StringReplacementFileCopier {
    * @throws IOException if some file reading or writing operation failed
    */
   public static void copyDirectory(File sourceDirectory, File targetDirectory, FileFilter filter, Properties replaceStringsWhenCopy) throws IOException {
+    copyDirectory(sourceDirectory, targetDirectory, filter, StringReplacer.of(replaceStringsWhenCopy));
+  }
+
+  private static void copyDirectory(File sourceDirectory, File targetDirectory, FileFilter filter, StringReplacer replacer) throws IOException {
     if (sourceDirectory == null) {
       throw new IllegalArgumentException("source directory is null");
     }
@@ -40,25 +47,51 @@ public class StringReplacementFileCopier {
     for (File file : sourceFiles) {
       if (file.isDirectory()) {
         File targetDir = new File(targetDirectory, file.getName());
-        copyDirectory(file, targetDir, filter, replaceStringsWhenCopy);
+        copyDirectory(file, targetDir, filter, replacer);
       } else {
         //logger.info("copying {} to {}", file, targetDirectory);
         if (filter.accept(file)) {
-          StringBuilder sb = new StringBuilder();
-          Files.lines(file.toPath(), StandardCharsets.UTF_8).forEach(line -> {
-            for (String key : replaceStringsWhenCopy.stringPropertyNames()) {
-              if (line.contains(key)) {
-                logger.debug("Found {} in file {}, changing it to {}", key, file, replaceStringsWhenCopy.getProperty(key));
-              }
-              String modLine = line.replace(key, replaceStringsWhenCopy.getProperty(key));
-              sb.append(modLine).append(System.lineSeparator());
-            }
-          });
-          FileUtils.write(new File(targetDirectory, file.getName()), sb.toString(), StandardCharsets.UTF_8);
+          copyFile(file, new File(targetDirectory, file.getName()), replacer);
         } else {
           FileUtils.copyFileToDirectory(file, targetDirectory);
         }
       }
     }
   }
+
+  /**
+   * Copy a file replacing all occurrences of the keys with their values
+   *
+   * @param file the file to copy
+   * @param targetFile the file to write to
+   * @param replaceStringsWhenCopy a Properties map where key=target to be replaced and value=the replacement value
+   * @throws IOException if some file reading or writing operation failed
+   */
+  public static void copyFile(File file, File targetFile, Properties replaceStringsWhenCopy) throws IOException {
+    copyFile(file, targetFile, StringReplacer.of(replaceStringsWhenCopy));
+  }
+
+  /**
+   * Copy a file replacing all occurrences of the keys with their values in one pass.
+   * The file is streamed so only a small buffer is kept in memory regardless of the size of the file.
+   *
+   * @param file the file to copy
+   * @param targetFile the file to write to
+   * @param replacer the replacer to use
+   * @throws IOException if some file reading or writing operation failed
+   */
+  public static void copyFile(File file, File targetFile, StringReplacer replacer) throws IOException {
+    char[] buffer = new char[BUFFER_SIZE];
+    try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+         StringReplacer.ReplacingWriter out = replacer.wrap(Files.newBufferedWriter(targetFile.toPath(), StandardCharsets.UTF_8))) {
+      int len;
+      while ((len = in.read(buffer)) > 0) {
+        out.write(buffer, 0, len);
+      }
+      out.flush();
+      if (out.getReplacementCount() > 0) {
+        logger.debug("Replaced {} strings when copying {} to {}", out.getReplacementCount(), file, targetFile);
+      }
+    }
+  }
 }
@@ -0,0 +1,262 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+
+/**
+ * Replaces several strings at once in a single pass using an Aho-Corasick automaton.
+ * <p>
+ * Matches are found leftmost-longest and do not overlap, i.e. at each position the longest key starting there
+ * is replaced and the replacement is never scanned again. The replacer is immutable and can be shared between
+ * threads, the actual replacing is done by the Writer returned from {@link #wrap(Writer)} which only buffers
+ * as many characters as the longest key so files of any size can be streamed through it.</p>
+ */
+public class StringReplacer {
+
+  private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+  private final List<Integer> depths = new ArrayList<>();
+  private final List<String> outputs = new ArrayList<>();
+  private int[] fail;
+  /** the length of the longest key that is a suffix of the string represented by the state, 0 if none */
+  private int[] matchLength;
+  /** the replacement of that key */
+  private String[] matchReplacement;
+
+  public StringReplacer(Map<String, String> replacements) {
+    addState(0);
+    for (Map.Entry<String, String> entry : replacements.entrySet()) {
+      if (entry.getKey() != null && !entry.getKey().isEmpty()) {
+        addKey(entry.getKey(), entry.getValue() == null ? "" : entry.getValue());
+      }
+    }
+    buildFailureLinks();
+  }
+
+  public static StringReplacer of(Properties replaceStringsWhenCopy) {
+    Map<String, String> replacements = new HashMap<>();
+    for (String key : replaceStringsWhenCopy.stringPropertyNames()) {
+      replacements.put(key, replaceStringsWhenCopy.getProperty(key));
+    }
+    return new StringReplacer(replacements);
+  }
+
+  /**
+   * @param text the text to replace keys in
+   * @return the text with all keys replaced
+   */
+  public String replace(String text) {
+    StringBuilder sb = new StringBuilder(text.length());
+    try (Writer writer = wrap(new Writer() {
+      @Override
+      public void write(char[] cbuf, int off, int len) {
+        sb.append(cbuf, off, len);
+      }
+
+      @Override
+      public void flush() {
+        // nothing buffered
+      }
+
+      @Override
+      public void close() {
+        // nothing to close
+      }
+    })) {
+      writer.write(text);
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to a StringBuilder failed", e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param out the Writer to write the replaced text to
+   * @return a Writer that replaces the keys in everything written to it, it must be closed (or flushed)
+   * to write out the last characters
+   */
+  public ReplacingWriter wrap(Writer out) {
+    return new ReplacingWriter(out);
+  }
+
+  private int addState(int depth) {
+    transitions.add(new HashMap<>());
+    depths.add(depth);
+    outputs.add(null);
+    return transitions.size() - 1;
+  }
+
+  private void addKey(String key, String replacement) {
+    int state = 0;
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      Integer next = transitions.get(state).get(c);
+      if (next == null) {
+        next = addState(i + 1);
+        transitions.get(state).put(c, next);
+      }
+      state = next;
+    }
+    outputs.set(state, replacement);
+  }
+
+  private void buildFailureLinks() {
+    int size = transitions.size();
+    fail = new int[size];
+    matchLength = new int[size];
+    matchReplacement = new String[size];
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (int child : transitions.get(0).values()) {
+      fail[child] = 0;
+      queue.add(child);
+    }
+    // breadth first so the failure state (which is always shallower) is done before the state itself
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      if (outputs.get(state) != null) {
+        matchLength[state] = depths.get(state);
+        matchReplacement[state] = outputs.get(state);
+      } else {
+        matchLength[state] = matchLength[fail[state]];
+        matchReplacement[state] = matchReplacement[fail[state]];
+      }
+      for (Map.Entry<Character, Integer> transition : transitions.get(state).entrySet()) {
+        int child = transition.getValue();
+        fail[child] = step(fail[state], transition.getKey());
+        queue.add(child);
+      }
+    }
+  }
+
+  private int step(int state, char c) {
+    while (true) {
+      Integer next = transitions.get(state).get(c);
+      if (next != null) {
+        return next;
+      }
+      if (state == 0) {
+        return 0;
+      }
+      state = fail[state];
+    }
+  }
+
+  /**
+   * A Writer that replaces the keys in the text written to it.
+   */
+  public class ReplacingWriter extends Writer {
+
+    private final Writer out;
+    /** the characters that might still be part of a match */
+    private final StringBuilder pending = new StringBuilder();
+    /** the position (in the whole text) of the first pending character */
+    private long pendingStart;
+    /** the position of the next character */
+    private long position;
+    private int state;
+    private long matchStart = -1;
+    private long matchEnd;
+    private String replacement;
+    private long replacementCount;
+
+    ReplacingWriter(Writer out) {
+      this.out = out;
+    }
+
+    /**
+     * @return the number of replacements done so far
+     */
+    public long getReplacementCount() {
+      return replacementCount;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        process(cbuf[i]);
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        process(str.charAt(i));
+      }
+    }
+
+    /**
+     * Write out the pending characters, after this only complete keys written later will be replaced.
+     */
+    @Override
+    public void flush() throws IOException {
+      while (matchStart >= 0) {
+        commitMatch();
+      }
+      emitUpTo(position);
+      state = 0;
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      out.close();
+    }
+
+    private void process(char c) throws IOException {
+      pending.append(c);
+      long current = position++;
+      state = step(state, c);
+      int length = matchLength[state];
+      if (length > 0) {
+        long start = current - length + 1;
+        // a match ending later with the same start is longer
+        if (matchStart < 0 || start <= matchStart) {
+          matchStart = start;
+          matchEnd = current;
+          replacement = matchReplacement[state];
+        }
+      }
+      // no match found from now on can start before this position
+      long earliestPossibleStart = current - depths.get(state) + 1;
+      if (matchStart >= 0) {
+        if (matchStart < earliestPossibleStart) {
+          commitMatch();
+        }
+      } else {
+        emitUpTo(earliestPossibleStart);
+      }
+    }
+
+    private void commitMatch() throws IOException {
+      emitUpTo(matchStart);
+      out.write(replacement);
+      replacementCount++;
+      String rest = pending.substring((int) (matchEnd + 1 - pendingStart));
+      pending.setLength(0);
+      pendingStart = matchEnd + 1;
+      position = matchEnd + 1;
+      state = 0;
+      matchStart = -1;
+      // the characters after the match have to be scanned again, starting from scratch
+      for (int i = 0; i < rest.length(); i++) {
+        process(rest.charAt(i));
+      }
+    }
+
+    private void emitUpTo(long end) throws IOException {
+      int count = (int) (end - pendingStart);
+      if (count > 0) {
+        out.write(pending.toString(), 0, count);
+        pending.delete(0, count);
+        pendingStart = end;
+      }
+    }
+  }
+}
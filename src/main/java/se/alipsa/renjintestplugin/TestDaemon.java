@@ -0,0 +1,290 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived JVM that keeps warm (JIT compiled) sessions between builds, see the daemon parameter of testR. The
+ * daemon listens on a loopback port and writes the port, a random token and its pid to
+ * &lt;daemonDirectory&gt;/&lt;key&gt;.properties (readable by the owner only) so that builds using the same plugin
+ * classpath can find it.
+ * <p>
+ * Each connection runs test files for one worker of a build. The client first writes a request, one value per
+ * line: the token, the template key, the number of test classpath elements followed by the elements and the
+ * number of runner settings arguments (see {@link RunnerSettings#toArguments()}) followed by the arguments. The
+ * session is taken from a {@link RunnerCache} (or built if there is no idle one for the template key) and after
+ * that the connection is a {@link ForkChannel} like the one of a forked JVM: test files in, results out until an
+ * empty line. The runner is given back to the cache when the connection is done.</p>
+ * <p>
+ * The daemon exits when it has had no connections for idleTimeout minutes. When more than
+ * {@link #HEAP_HIGH_WATER_MARK} of the max heap is still in use after a connection is done, the cached sessions are
+ * dropped, and the daemon exits if it runs out of memory.</p>
+ */
+public class TestDaemon {
+
+  static final String DAEMON_DIRECTORY = "daemonDirectory";
+  static final String KEY = "key";
+  static final String IDLE_TIMEOUT = "idleTimeout";
+  static final String SESSION_CACHE_SIZE = "sessionCacheSize";
+
+  static final String PORT = "port";
+  static final String TOKEN = "token";
+  static final String PID = "pid";
+
+  /** The share of the max heap in use after a connection above which the cached sessions are dropped */
+  static final double HEAP_HIGH_WATER_MARK = 0.75;
+
+  private final ServerSocket serverSocket;
+  private final File infoFile;
+  private final String token;
+  private final long idleTimeoutMillis;
+  private final int sessionCacheSize;
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  private volatile long lastActivity = System.currentTimeMillis();
+
+  TestDaemon(File infoFile, long idleTimeoutMillis, int sessionCacheSize) throws IOException {
+    this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    this.infoFile = infoFile;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.sessionCacheSize = sessionCacheSize;
+    byte[] bytes = new byte[24];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    this.token = sb.toString();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Properties props = new Properties();
+    for (String arg : args) {
+      int idx = arg.indexOf('=');
+      if (idx > 0) {
+        props.setProperty(arg.substring(0, idx), arg.substring(idx + 1));
+      }
+    }
+    File infoFile = new File(props.getProperty(DAEMON_DIRECTORY), props.getProperty(KEY) + ".properties");
+    TestDaemon daemon = new TestDaemon(infoFile,
+        TimeUnit.MINUTES.toMillis(Long.parseLong(props.getProperty(IDLE_TIMEOUT, "180"))),
+        Integer.parseInt(props.getProperty(SESSION_CACHE_SIZE, "4")));
+    daemon.serve();
+  }
+
+  /**
+   * Publish the info file and accept connections until the daemon has been idle for too long.
+   */
+  void serve() throws IOException {
+    writeInfoFile();
+    log("Test daemon listening on port " + serverSocket.getLocalPort());
+    ScheduledExecutorService idleCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "renjin-test-daemon-idle-check");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long checkInterval = Math.max(1000, Math.min(idleTimeoutMillis / 10, 60_000));
+    idleCheck.scheduleWithFixedDelay(() -> {
+      if (activeConnections.get() == 0 && System.currentTimeMillis() - lastActivity > idleTimeoutMillis) {
+        shutdown("Idle for " + TimeUnit.MILLISECONDS.toMinutes(idleTimeoutMillis) + " minutes");
+      }
+    }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    AtomicInteger connectionCount = new AtomicInteger();
+    while (!serverSocket.isClosed()) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (SocketException e) {
+        // closed by shutdown
+        break;
+      }
+      activeConnections.incrementAndGet();
+      lastActivity = System.currentTimeMillis();
+      Thread thread = new Thread(() -> handle(socket), "renjin-test-daemon-" + connectionCount.incrementAndGet());
+      thread.setDaemon(true);
+      thread.start();
+    }
+    idleCheck.shutdownNow();
+  }
+
+  /**
+   * Stop accepting connections, {@link #serve()} returns. Unlike an idle daemon this does not exit the JVM.
+   */
+  void stop() throws IOException {
+    serverSocket.close();
+  }
+
+  private void handle(Socket socket) {
+    try (Socket s = socket) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      String line = in.readLine();
+      if (line == null) {
+        // a client checking that the daemon is alive
+        return;
+      }
+      if (!token.equals(line)) {
+        log("Rejected a connection with the wrong token");
+        return;
+      }
+      String templateKey = in.readLine();
+      List<String> classpathElements = readLines(in);
+      RunnerSettings settings = RunnerSettings.fromArguments(readLines(in).toArray(new String[0]));
+      runTestFiles(templateKey, classpathElements, settings, in, out);
+    } catch (OutOfMemoryError e) {
+      shutdown("Out of memory");
+    } catch (Exception e) {
+      log("Connection failed: " + e);
+    } finally {
+      lastActivity = System.currentTimeMillis();
+      if (activeConnections.decrementAndGet() == 0) {
+        checkHeap();
+      }
+    }
+  }
+
+  private void runTestFiles(String templateKey, List<String> classpathElements, RunnerSettings settings,
+                            BufferedReader in, DataOutputStream out) throws Exception {
+    try (RunnerCache cache = RunnerCache.forClasspath(classpathElements, sessionCacheSize)) {
+      runTestFiles(cache, templateKey, classpathElements, settings, in, out);
+    }
+  }
+
+  private void runTestFiles(RunnerCache cache, String templateKey, List<String> classpathElements,
+                            RunnerSettings settings, BufferedReader in, DataOutputStream out) throws Exception {
+    TestLog setupLog = new TestLog(null, true);
+    RenjinTestRunner runner;
+    boolean reused;
+    try {
+      RenjinTestRunner cachedRunner = cache.take(templateKey, classpathElements);
+      reused = cachedRunner != null;
+      if (reused) {
+        setupLog.info("Reusing a session template of the test daemon");
+        runner = cachedRunner.withSettings(settings);
+      } else {
+        runner = RenjinTestRunner.create(cache.createClassLoader(classpathElements), settings, setupLog);
+      }
+      Thread.currentThread().setContextClassLoader(runner.getClassLoader());
+      ForkChannel.writeLog(out, setupLog);
+      ForkChannel.writeReady(out, reused ? 0 : runner.getTemplateBuildNanos(),
+          reused ? 0 : runner.getTemplateParseSavedNanos(), reused);
+    } catch (Exception e) {
+      ForkChannel.writeLog(out, setupLog);
+      ForkChannel.writeFatal(out, e);
+      out.flush();
+      throw e;
+    }
+    // a new runner for a test that timed out is built from scratch, it does not come from the cache
+    ClassLoader classLoader = runner.getClassLoader();
+    runner = ForkedTestRunner.runTestFiles(runner, log -> RenjinTestRunner.create(classLoader, settings, log),
+        null, in, out);
+    // the daemon does not know the thread count of the builds, sessionCacheSize bounds the idle runners per module
+    cache.release(templateKey, classpathElements, Collections.singletonList(runner), sessionCacheSize);
+  }
+
+  /**
+   * Drop the cached sessions if too much of the heap is still in use when no connection is active.
+   */
+  private void checkHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    if (usedHeapShare(runtime) < HEAP_HIGH_WATER_MARK) {
+      return;
+    }
+    System.gc();
+    if (usedHeapShare(runtime) >= HEAP_HIGH_WATER_MARK) {
+      log("More than " + Math.round(HEAP_HIGH_WATER_MARK * 100) + "% of the heap in use, dropping cached sessions");
+      RunnerCache.clear();
+    }
+  }
+
+  private static double usedHeapShare(Runtime runtime) {
+    return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+  }
+
+  private void shutdown(String reason) {
+    log(reason + ", shutting down");
+    infoFile.delete();
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      // nothing to do
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Write the info file atomically so that a client never reads half of it, and readable by the owner only since
+   * the token is what keeps other users from running code in the daemon.
+   */
+  private void writeInfoFile() throws IOException {
+    Properties props = new Properties();
+    props.setProperty(PORT, String.valueOf(serverSocket.getLocalPort()));
+    props.setProperty(TOKEN, token);
+    props.setProperty(PID, ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+    infoFile.getParentFile().mkdirs();
+    File tmpFile = new File(infoFile.getParentFile(), infoFile.getName() + ".tmp");
+    tmpFile.delete();
+    try (OutputStream out = Files.newOutputStream(tmpFile.toPath())) {
+      tmpFile.setReadable(false, false);
+      tmpFile.setReadable(true, true);
+      tmpFile.setWritable(false, false);
+      tmpFile.setWritable(true, true);
+      props.store(out, "Renjin test daemon");
+    }
+    Files.move(tmpFile.toPath(), infoFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the lines of a request to a daemon, see the class doc for the format
+   */
+  static List<String> createRequest(String token, String templateKey, List<String> classpathElements,
+                                    RunnerSettings settings) {
+    List<String> request = new ArrayList<>();
+    request.add(token);
+    request.add(templateKey);
+    request.add(String.valueOf(classpathElements.size()));
+    request.addAll(classpathElements);
+    List<String> arguments = settings.toArguments();
+    request.add(String.valueOf(arguments.size()));
+    request.addAll(arguments);
+    return Collections.unmodifiableList(request);
+  }
+
+  private static List<String> readLines(BufferedReader in) throws IOException {
+    String count = in.readLine();
+    if (count == null) {
+      throw new IOException("Unexpected end of request");
+    }
+    List<String> lines = new ArrayList<>();
+    for (int i = Integer.parseInt(count); i > 0; i--) {
+      lines.add(in.readLine());
+    }
+    return lines;
+  }
+
+  private static void log(String message) {
+    System.err.println(LocalDateTime.now() + " " + message);
+  }
+}
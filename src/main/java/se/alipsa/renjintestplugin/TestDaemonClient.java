@@ -0,0 +1,169 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds (or starts) the {@link TestDaemon} for a plugin classpath and opens connections to it.
+ */
+public class TestDaemonClient {
+
+  private static final Logger logger = LoggerFactory.getLogger(TestDaemonClient.class);
+  private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+  private final File infoFile;
+  private final File lockFile;
+  private final File logFile;
+  private final List<String> command;
+  private final long startTimeoutMillis;
+
+  /**
+   * @param daemonDirectory the directory of the daemon info and log files
+   * @param key identifies the daemon, a hash of the plugin classpath and the JVM settings it was started with
+   * @param javaCommand the java executable and JVM arguments, without main class
+   * @param idleTimeoutMinutes how long the daemon stays alive without connections
+   * @param sessionCacheSize the max number of test classpaths the daemon keeps sessions for
+   * @param startTimeoutMillis how long to wait for a new daemon to start
+   */
+  public TestDaemonClient(File daemonDirectory, String key, List<String> javaCommand, long idleTimeoutMinutes,
+                          int sessionCacheSize, long startTimeoutMillis) {
+    this.infoFile = new File(daemonDirectory, key + ".properties");
+    this.lockFile = new File(daemonDirectory, key + ".lock");
+    this.logFile = new File(daemonDirectory, key + ".log");
+    this.command = new ArrayList<>(javaCommand);
+    command.add(TestDaemon.class.getName());
+    command.add(TestDaemon.DAEMON_DIRECTORY + "=" + daemonDirectory.getAbsolutePath());
+    command.add(TestDaemon.KEY + "=" + key);
+    command.add(TestDaemon.IDLE_TIMEOUT + "=" + idleTimeoutMinutes);
+    command.add(TestDaemon.SESSION_CACHE_SIZE + "=" + sessionCacheSize);
+    this.startTimeoutMillis = startTimeoutMillis;
+  }
+
+  /**
+   * Make sure that the daemon is running, starting it if it is not. The daemon is started holding a lock on
+   * &lt;key&gt;.lock next to the info file so that builds starting at the same time (in this JVM or another one)
+   * do not each start a daemon.
+   *
+   * @return the port and token of the daemon
+   * @throws IOException if the daemon could not be reached or started
+   */
+  public Properties ensureRunning() throws IOException {
+    Properties info = readInfo();
+    if (info != null && isReachable(info)) {
+      return info;
+    }
+    lockFile.getParentFile().mkdirs();
+    // a FileLock is held by the whole JVM, the threads of a parallel reactor build take turns
+    synchronized (TestDaemonClient.class) {
+      try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+           FileLock lock = channel.lock()) {
+        // another build may have started the daemon while this one was waiting for the lock
+        info = readInfo();
+        if (info != null && isReachable(info)) {
+          return info;
+        }
+        return startDaemon();
+      }
+    }
+  }
+
+  private Properties startDaemon() throws IOException {
+    infoFile.delete();
+    logger.info("Starting a test daemon, its output goes to {}", logFile);
+    logger.debug("Daemon command: {}", command);
+    Process process = new ProcessBuilder(command)
+        .redirectErrorStream(true)
+        .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+        .redirectInput(ProcessBuilder.Redirect.PIPE)
+        .start();
+    process.getOutputStream().close();
+    long deadline = System.currentTimeMillis() + startTimeoutMillis;
+    while (System.currentTimeMillis() < deadline) {
+      if (!process.isAlive()) {
+        throw new IOException("The test daemon exited with " + process.exitValue() + ", see " + logFile);
+      }
+      Properties info = readInfo();
+      if (info != null && isReachable(info)) {
+        return info;
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the test daemon to start", e);
+      }
+    }
+    process.destroyForcibly();
+    throw new IOException("The test daemon did not start within " + startTimeoutMillis + " ms, see " + logFile);
+  }
+
+  /**
+   * Open a connection to the daemon and wait until it has set up a session.
+   *
+   * @param info the port and token of the daemon, see {@link #ensureRunning()}
+   * @param templateKey the key of the preload packages and source scripts the session must be built with
+   * @param classpathElements the test classpath elements of the module
+   * @param settings the runner settings
+   * @param log where to write the output from setting up the session
+   * @return the connection
+   * @throws IOException if the daemon could not be reached
+   * @throws MojoExecutionException if the daemon could not set up a session
+   */
+  public JvmFork connect(Properties info, String templateKey, List<String> classpathElements, RunnerSettings settings,
+                         TestLog log) throws IOException, MojoExecutionException {
+    Socket socket = openSocket(info);
+    return JvmFork.connect(socket,
+        TestDaemon.createRequest(info.getProperty(TestDaemon.TOKEN), templateKey, classpathElements, settings), log);
+  }
+
+  private Properties readInfo() {
+    if (!infoFile.isFile()) {
+      return null;
+    }
+    Properties info = new Properties();
+    try (InputStream in = Files.newInputStream(infoFile.toPath())) {
+      info.load(in);
+    } catch (IOException e) {
+      logger.debug("Failed to read {}: {}", infoFile, e.toString());
+      return null;
+    }
+    return info.getProperty(TestDaemon.PORT) == null || info.getProperty(TestDaemon.TOKEN) == null ? null : info;
+  }
+
+  private static boolean isReachable(Properties info) {
+    try (Socket socket = openSocket(info)) {
+      // the daemon logs a connection that does not send the token and drops it
+      return socket.isConnected();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static Socket openSocket(Properties info) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+          Integer.parseInt(info.getProperty(TestDaemon.PORT))), CONNECT_TIMEOUT_MILLIS);
+    } catch (IOException | NumberFormatException e) {
+      socket.close();
+      throw e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+    return socket;
+  }
+}
@@ -0,0 +1,136 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.renjin.sexp.Symbol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker sessions that help a runner run the test functions of a test file in parallel. A Renjin closure belongs
+ * to the session it was defined in, so each worker gets its own copy of the test functions by evaluating the test
+ * file in its own session (see {@link RenjinTestRunner#runQueuedTestFunctions(File, Queue, TestLog)}) and then
+ * takes test functions from a queue shared with the runner until it is empty. Each worker thread has its own
+ * runner, created the first time the thread is used.
+ * <p>
+ * When test files run in parallel they share the pool, which therefore has workerCount threads for each of them so
+ * that a file does not wait for the workers of another one. A worker that starts when the queue is already empty
+ * returns right away.</p>
+ */
+public class TestFunctionPool implements Closeable {
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private final int workerCount;
+  private final RunnerFactory runnerFactory;
+  private final ExecutorService executor;
+  private final ThreadLocal<RenjinTestRunner> runners = new ThreadLocal<>();
+
+  /**
+   * @param workerCount the max number of workers for a test file
+   * @param fileCount the number of test files that can run at the same time
+   * @param classLoader the context class loader of the worker threads
+   * @param runnerFactory creates the runner of a worker thread
+   */
+  public TestFunctionPool(int workerCount, int fileCount, ClassLoader classLoader, RunnerFactory runnerFactory) {
+    this.workerCount = workerCount;
+    this.runnerFactory = runnerFactory;
+    this.executor = Executors.newFixedThreadPool(workerCount * Math.max(1, fileCount), r -> {
+      Thread thread = new Thread(r, "renjin-function-worker-" + threadCount.incrementAndGet());
+      thread.setContextClassLoader(classLoader);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Start workers taking test functions of the test file from the queue.
+   *
+   * @param testFile the test file
+   * @param functions the test functions to run, shared with the calling runner
+   * @return the started workers, at most one per function in the queue
+   */
+  List<Worker> start(File testFile, Queue<Symbol> functions) {
+    List<Worker> workers = new ArrayList<>();
+    int count = Math.min(workerCount, functions.size());
+    for (int i = 0; i < count; i++) {
+      TestLog log = new TestLog(null, true);
+      workers.add(new Worker(executor.submit(() -> run(testFile, functions, log)), log));
+    }
+    return workers;
+  }
+
+  /**
+   * Wait for the workers to finish and hand over their output to the log.
+   *
+   * @return the results of all workers
+   */
+  List<TestResult> finish(List<Worker> workers, TestLog log) {
+    List<TestResult> results = new ArrayList<>();
+    boolean interrupted = false;
+    for (Worker worker : workers) {
+      try {
+        results.addAll(worker.future.get());
+      } catch (InterruptedException | CancellationException e) {
+        // e.g. the test file timed out, stop the workers that are still running
+        workers.forEach(w -> w.future.cancel(true));
+        interrupted = true;
+      } catch (ExecutionException e) {
+        log.error("\t# A worker running test functions failed, its test functions are not reported: {}",
+            TestResultPrinter.formatMessage(e.getCause()));
+      }
+      worker.log.drainTo(log::log);
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return results;
+  }
+
+  private List<TestResult> run(File testFile, Queue<Symbol> functions, TestLog log) throws MojoExecutionException {
+    RenjinTestRunner runner = runners.get();
+    if (runner == null) {
+      runner = runnerFactory.create(log);
+      runners.set(runner);
+    }
+    try {
+      return runner.runQueuedTestFunctions(testFile, functions, log);
+    } finally {
+      if (runner.isBroken() || Thread.currentThread().isInterrupted()) {
+        runners.remove();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * A worker started by {@link #start(File, Queue)}.
+   */
+  static final class Worker {
+    private final Future<List<TestResult>> future;
+    private final TestLog log;
+
+    Worker(Future<List<TestResult>> future, TestLog log) {
+      this.future = future;
+      this.log = log;
+    }
+  }
+
+  @FunctionalInterface
+  public interface RunnerFactory {
+    RenjinTestRunner create(TestLog log) throws MojoExecutionException;
+  }
+}
@@ -0,0 +1,158 @@
+package se.alipsa.renjintestplugin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The duration and outcome of each test file (and each test in it) from previous runs, used to decide
+ * in which order to run the test files. Test files that were not run (or skipped) in the latest run keep their
+ * history from the run before.
+ */
+public class TestHistory {
+
+  private static final int VERSION = 1;
+  private static final Logger logger = LoggerFactory.getLogger(TestHistory.class);
+
+  private final File historyFile;
+  private final File testOutputDirectory;
+  private final Map<String, Entry> entries = new TreeMap<>();
+
+  public TestHistory(File historyFile, File testOutputDirectory) {
+    this.historyFile = historyFile;
+    this.testOutputDirectory = testOutputDirectory;
+    if (historyFile.exists()) {
+      try {
+        load();
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Failed to read {}, starting a new test history: {}", historyFile, e.toString());
+        entries.clear();
+      }
+    }
+  }
+
+  /**
+   * @return whether there is no history at all, e.g. on the first run
+   */
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /**
+   * @param testFile the test file
+   * @return the total duration of the tests in the file in the latest run it was part of, or null if unknown
+   */
+  public Long getDurationNanos(File testFile) {
+    Entry entry = entries.get(relativePath(testFile));
+    return entry == null ? null : entry.durationNanos();
+  }
+
+  /**
+   * @param testFile the test file
+   * @return whether some test in the file failed (or had an error) in the latest run it was part of
+   */
+  public boolean hasFailed(File testFile) {
+    Entry entry = entries.get(relativePath(testFile));
+    return entry != null && entry.failed();
+  }
+
+  /**
+   * @param testFile the test file
+   * @return the duration of each test (by test method) in the file in the latest run, empty if unknown
+   */
+  public Map<String, Long> getTestDurations(File testFile) {
+    Entry entry = entries.get(relativePath(testFile));
+    return entry == null ? Collections.emptyMap() : Collections.unmodifiableMap(entry.durations);
+  }
+
+  /**
+   * Replace the history of the test files in the results with the results.
+   *
+   * @param results the results of the latest run
+   */
+  public void update(List<TestResult> results) {
+    Map<String, Entry> updated = new LinkedHashMap<>();
+    for (TestResult result : results) {
+      if (TestResult.OutCome.SKIPPED.equals(result.getResult())) {
+        continue;
+      }
+      Entry entry = updated.computeIfAbsent(relativePath(result.getTestFile()), k -> new Entry());
+      entry.durations.put(result.getTestMethod(), result.getDurationNanos());
+      entry.outcomes.put(result.getTestMethod(), result.getResult());
+    }
+    entries.putAll(updated);
+  }
+
+  public void save() throws IOException {
+    historyFile.getParentFile().mkdirs();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(historyFile.toPath())))) {
+      out.writeInt(VERSION);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        ForkChannel.writeString(out, entry.getKey());
+        Map<String, Long> durations = entry.getValue().durations;
+        out.writeInt(durations.size());
+        for (Map.Entry<String, Long> test : durations.entrySet()) {
+          ForkChannel.writeString(out, test.getKey());
+          out.writeLong(test.getValue());
+          ForkChannel.writeString(out, entry.getValue().outcomes.get(test.getKey()).name());
+        }
+      }
+    }
+  }
+
+  private void load() throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(historyFile.toPath())))) {
+      if (in.readInt() != VERSION) {
+        logger.info("{} has an unknown format, starting a new test history", historyFile);
+        return;
+      }
+      int fileCount = in.readInt();
+      for (int i = 0; i < fileCount; i++) {
+        String path = ForkChannel.readString(in);
+        Entry entry = new Entry();
+        int testCount = in.readInt();
+        for (int j = 0; j < testCount; j++) {
+          String testMethod = ForkChannel.readString(in);
+          entry.durations.put(testMethod, in.readLong());
+          entry.outcomes.put(testMethod, TestResult.OutCome.valueOf(ForkChannel.readString(in)));
+        }
+        entries.put(path, entry);
+      }
+    }
+  }
+
+  private String relativePath(File testFile) {
+    return testFile.getAbsolutePath().substring(testOutputDirectory.getAbsolutePath().length() + 1);
+  }
+
+  private static class Entry {
+    private final Map<String, Long> durations = new LinkedHashMap<>();
+    private final Map<String, TestResult.OutCome> outcomes = new LinkedHashMap<>();
+
+    long durationNanos() {
+      long total = 0;
+      for (long duration : durations.values()) {
+        total += duration;
+      }
+      return total;
+    }
+
+    boolean failed() {
+      return outcomes.values().stream()
+          .anyMatch(outCome -> TestResult.OutCome.FAILURE.equals(outCome) || TestResult.OutCome.ERROR.equals(outCome));
+    }
+  }
+}
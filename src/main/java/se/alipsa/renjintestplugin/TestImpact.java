@@ -0,0 +1,259 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.renjin.sexp.ExpressionVector;
+import org.renjin.sexp.FunctionCall;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.Symbol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps track of which functions and other objects defined by the source scripts each test file used when it last
+ * succeeded (recorded by a {@link TestImpactRecorder}), so that only the test files that use something that has
+ * changed since then have to be run.
+ * <p>
+ * A dependency is either a function (path#name) or the rest of a source script (path), i.e. the top level code
+ * that is not a function definition. Each is hashed from the parsed source scripts, so changing one function only
+ * affects the test files that called it. A test file is affected if it has changed itself (like in
+ * {@link IncrementalState}), if it did not succeed last time, or if the hash of any of its dependencies differs from
+ * the one recorded. If the inputs hash (everything else that all tests depend on) differs from the one of the
+ * previous run, all test files are affected.</p>
+ */
+public class TestImpact {
+
+  private static final int VERSION = 1;
+  private static final Logger logger = LoggerFactory.getLogger(TestImpact.class);
+
+  private final File stateFile;
+  private final File testOutputDirectory;
+  private final File sourceDirectory;
+  private final String inputsHash;
+  private final Map<String, Entry> entries = new TreeMap<>();
+  private Map<String, String> sourceHashes;
+
+  /**
+   * @param stateFile where the dependencies of the test files are kept
+   * @param testOutputDirectory the directory of the test files
+   * @param sourceDirectory the directory of the source scripts
+   * @param inputsHash a hash of the inputs (other than the source scripts) that all tests depend on
+   */
+  public TestImpact(File stateFile, File testOutputDirectory, File sourceDirectory, String inputsHash) {
+    this.stateFile = stateFile;
+    this.testOutputDirectory = testOutputDirectory;
+    this.sourceDirectory = sourceDirectory;
+    this.inputsHash = inputsHash;
+    if (stateFile.exists()) {
+      try {
+        load();
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Failed to read {}, running all tests: {}", stateFile, e.toString());
+        entries.clear();
+      }
+    }
+  }
+
+  /**
+   * @param testFile the test file
+   * @return whether the test file has to be run
+   * @throws IOException if the test file or some source script could not be read
+   */
+  public boolean isAffected(File testFile) throws IOException {
+    // the source scripts are hashed before the tests run, so that what is recorded is what the tests ran against
+    Map<String, String> currentHashes = getSourceHashes();
+    Entry entry = entries.get(relativePath(testFile));
+    if (entry == null || !entry.hash.equals(IncrementalState.hash(testFile))) {
+      return true;
+    }
+    for (Map.Entry<String, String> dependency : entry.dependencies.entrySet()) {
+      if (!dependency.getValue().equals(lookup(currentHashes, dependency.getKey()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Record the dependencies of the test files that succeeded in this run and forget the ones of the test files that
+   * did not, the entries of the test files that were not run are kept.
+   *
+   * @param results all results of this run
+   * @throws IOException if the state file could not be written
+   */
+  public void save(List<TestResult> results) throws IOException {
+    Map<File, List<TestResult>> resultsByFile = results.stream()
+        .collect(Collectors.groupingBy(TestResult::getTestFile));
+    Map<String, String> currentHashes = getSourceHashes();
+    for (Map.Entry<File, List<TestResult>> fileResults : resultsByFile.entrySet()) {
+      String path = relativePath(fileResults.getKey());
+      boolean success = fileResults.getValue().stream()
+          .allMatch(result -> TestResult.OutCome.SUCCESS.equals(result.getResult()));
+      if (!success || !fileResults.getKey().exists()) {
+        entries.remove(path);
+        continue;
+      }
+      Map<String, String> dependencies = new TreeMap<>();
+      for (TestResult result : fileResults.getValue()) {
+        for (String dependency : result.getSourceDependencies()) {
+          String hash = lookup(currentHashes, dependency);
+          if (hash != null) {
+            dependencies.put(dependency, hash);
+          }
+        }
+      }
+      entries.put(path, new Entry(IncrementalState.hash(fileResults.getKey()), dependencies));
+    }
+    entries.keySet().removeIf(path -> !new File(testOutputDirectory, path).exists());
+
+    stateFile.getParentFile().mkdirs();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(stateFile.toPath())))) {
+      out.writeInt(VERSION);
+      ForkChannel.writeString(out, inputsHash);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        ForkChannel.writeString(out, entry.getKey());
+        ForkChannel.writeString(out, entry.getValue().hash);
+        out.writeInt(entry.getValue().dependencies.size());
+        for (Map.Entry<String, String> dependency : entry.getValue().dependencies.entrySet()) {
+          ForkChannel.writeString(out, dependency.getKey());
+          ForkChannel.writeString(out, dependency.getValue());
+        }
+      }
+    }
+  }
+
+  private void load() throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile.toPath())))) {
+      if (in.readInt() != VERSION || !inputsHash.equals(ForkChannel.readString(in))) {
+        logger.info("Inputs have changed since the previous run, running all tests");
+        return;
+      }
+      int fileCount = in.readInt();
+      for (int i = 0; i < fileCount; i++) {
+        String path = ForkChannel.readString(in);
+        String hash = ForkChannel.readString(in);
+        int dependencyCount = in.readInt();
+        Map<String, String> dependencies = new TreeMap<>();
+        for (int j = 0; j < dependencyCount; j++) {
+          dependencies.put(ForkChannel.readString(in), ForkChannel.readString(in));
+        }
+        entries.put(path, new Entry(hash, dependencies));
+      }
+    }
+  }
+
+  private Map<String, String> getSourceHashes() throws IOException {
+    if (sourceHashes == null) {
+      sourceHashes = hashSourceScripts(sourceDirectory);
+    }
+    return sourceHashes;
+  }
+
+  /**
+   * A function that is not defined by a plain name &lt;- function(...) assignment (e.g. created by another
+   * function) belongs to the rest of the source script.
+   */
+  private static String lookup(Map<String, String> hashes, String dependency) {
+    String hash = hashes.get(dependency);
+    int separator = dependency.lastIndexOf('#');
+    if (hash == null && separator > 0) {
+      hash = hashes.get(dependency.substring(0, separator));
+    }
+    return hash;
+  }
+
+  /**
+   * @param sourceDirectory the directory of the source scripts
+   * @return the hash of each function definition (path#name) and of the rest of each source script (path)
+   * @throws IOException if some source script could not be read
+   */
+  static Map<String, String> hashSourceScripts(File sourceDirectory) throws IOException {
+    Map<String, String> hashes = new HashMap<>();
+    if (sourceDirectory == null || !sourceDirectory.isDirectory()) {
+      return hashes;
+    }
+    for (File sourceFile : new TreeSet<>(FileUtils.listFiles(sourceDirectory, RunnerSettings.EXTENSIONS, true))) {
+      String path = sourcePath(sourceDirectory, sourceFile);
+      Map<String, ContentHash> fileHashes = new LinkedHashMap<>();
+      fileHashes.put(path, new ContentHash());
+      try {
+        ExpressionVector expressions = ParseCache.parseSource(sourceFile);
+        for (SEXP expression : expressions) {
+          String name = definedFunction(expression);
+          String key = name == null ? path : functionKey(path, name);
+          fileHashes.computeIfAbsent(key, k -> new ContentHash()).add(expression.toString());
+        }
+      } catch (RuntimeException e) {
+        // a script that does not parse changes everything defined in it
+        fileHashes.clear();
+        fileHashes.put(path, new ContentHash().add("unparseable").addFile(sourceFile));
+      }
+      for (Map.Entry<String, ContentHash> entry : fileHashes.entrySet()) {
+        hashes.put(entry.getKey(), entry.getValue().finish());
+      }
+    }
+    return hashes;
+  }
+
+  /**
+   * @return the name of the function if the expression is a name &lt;- function(...) assignment, otherwise null
+   */
+  static String definedFunction(SEXP expression) {
+    if (!(expression instanceof FunctionCall)) {
+      return null;
+    }
+    FunctionCall call = (FunctionCall) expression;
+    if (!(call.getFunction() instanceof Symbol) || call.getArguments().length() != 2) {
+      return null;
+    }
+    String operator = ((Symbol) call.getFunction()).getPrintName();
+    if (!operator.equals("<-") && !operator.equals("=") && !operator.equals("<<-")) {
+      return null;
+    }
+    SEXP target = call.getArguments().getElementAsSEXP(0);
+    SEXP value = call.getArguments().getElementAsSEXP(1);
+    if (target instanceof Symbol && value instanceof FunctionCall
+        && ((FunctionCall) value).getFunction() instanceof Symbol
+        && "function".equals(((Symbol) ((FunctionCall) value).getFunction()).getPrintName())) {
+      return ((Symbol) target).getPrintName();
+    }
+    return null;
+  }
+
+  static String functionKey(String sourcePath, String functionName) {
+    return sourcePath + "#" + functionName;
+  }
+
+  static String sourcePath(File sourceDirectory, File sourceFile) {
+    return sourceFile.getAbsolutePath().substring(sourceDirectory.getAbsolutePath().length() + 1).replace('\\', '/');
+  }
+
+  private String relativePath(File testFile) {
+    return testFile.getAbsolutePath().substring(testOutputDirectory.getAbsolutePath().length() + 1);
+  }
+
+  private static class Entry {
+    private final String hash;
+    private final Map<String, String> dependencies;
+
+    Entry(String hash, Map<String, String> dependencies) {
+      this.hash = hash;
+      this.dependencies = dependencies;
+    }
+  }
+}
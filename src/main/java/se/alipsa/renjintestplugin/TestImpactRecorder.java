@@ -0,0 +1,146 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.renjin.eval.Context;
+import org.renjin.sexp.Closure;
+import org.renjin.sexp.Environment;
+import org.renjin.sexp.FunctionCall;
+import org.renjin.sexp.PairList;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringVector;
+import org.renjin.sexp.Symbol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Records which of the functions and other objects defined by the source scripts a test file uses, see
+ * {@link TestImpact}. The functions defined by a source script are replaced in the global environment by a copy
+ * whose body first records that the function was called. The other objects (e.g. data) cannot be followed at
+ * runtime, a test file is taken to use them if their name occurs in the test file or in the body of a function it
+ * called.
+ */
+public class TestImpactRecorder {
+
+  private static final SEXP ASSIGN = FunctionCall.newCall(Symbol.get("::"), Symbol.get("base"), Symbol.get("assign"));
+
+  private final File sourceDirectory;
+  private final Environment calledFunctions;
+  /** The path of the source script defining each object that is not a function */
+  private final Map<String, String> objectSources = new HashMap<>();
+  /** The names used in the body of each function (by key) */
+  private final Map<String, Set<String>> functionNames = new HashMap<>();
+  private Pattern objectNamePattern;
+
+  /**
+   * @param sourceDirectory the directory of the source scripts
+   * @param calledFunctions an environment to record the keys of the called functions in
+   */
+  public TestImpactRecorder(File sourceDirectory, Environment calledFunctions) {
+    this.sourceDirectory = sourceDirectory;
+    this.calledFunctions = calledFunctions;
+  }
+
+  /**
+   * Instrument the functions defined by a source script and remember where the other objects came from.
+   *
+   * @param context the context the script was run in
+   * @param sourceFile the source script
+   * @param environment the environment the script was run in
+   * @param names the names the script defined or changed
+   */
+  public void addDefinitions(Context context, File sourceFile, Environment environment, Collection<Symbol> names) {
+    String path = TestImpact.sourcePath(sourceDirectory, sourceFile);
+    for (Symbol name : names) {
+      SEXP value = environment.getVariableUnsafe(name);
+      objectSources.remove(name.getPrintName());
+      if (value instanceof Closure) {
+        String key = TestImpact.functionKey(path, name.getPrintName());
+        Closure closure = (Closure) value;
+        Set<String> usedNames = new HashSet<>();
+        collectNames(closure.getBody(), usedNames);
+        functionNames.put(key, usedNames);
+        environment.setVariable(context, name, instrument(closure, key));
+      } else {
+        objectSources.put(name.getPrintName(), path);
+      }
+    }
+    objectNamePattern = null;
+  }
+
+  /**
+   * Forget the functions called so far, e.g. before running the next test file.
+   */
+  public void clear() {
+    for (Symbol name : new ArrayList<>(calledFunctions.getSymbolNames())) {
+      calledFunctions.remove(name);
+    }
+  }
+
+  /**
+   * @param testFile the test file that was run since the last {@link #clear()}
+   * @return the source dependencies of the test file, see {@link TestResult#getSourceDependencies()}
+   * @throws IOException if the test file could not be read
+   */
+  public Set<String> collect(File testFile) throws IOException {
+    Set<String> dependencies = new TreeSet<>();
+    Set<String> usedNames = new HashSet<>();
+    for (Symbol key : calledFunctions.getSymbolNames()) {
+      dependencies.add(key.getPrintName());
+      usedNames.addAll(functionNames.getOrDefault(key.getPrintName(), new HashSet<>()));
+    }
+    for (String name : usedNames) {
+      String path = objectSources.get(name);
+      if (path != null) {
+        dependencies.add(path);
+      }
+    }
+    if (!objectSources.isEmpty()) {
+      if (objectNamePattern == null) {
+        objectNamePattern = Pattern.compile("(?<![\\w.])("
+            + objectSources.keySet().stream().map(Pattern::quote).collect(Collectors.joining("|")) + ")(?![\\w.])");
+      }
+      Matcher matcher = objectNamePattern.matcher(FileUtils.readFileToString(testFile, StandardCharsets.UTF_8));
+      while (matcher.find()) {
+        dependencies.add(objectSources.get(matcher.group(1)));
+      }
+    }
+    return dependencies;
+  }
+
+  /**
+   * @return a copy of the closure whose body starts with recording the key in the calledFunctions environment
+   */
+  private Closure instrument(Closure closure, String key) {
+    PairList arguments = new PairList.Builder()
+        .add(StringVector.valueOf(key))
+        .add(StringVector.valueOf(key))
+        .add("envir", calledFunctions)
+        .build();
+    SEXP body = FunctionCall.newCall(Symbol.get("{"), new FunctionCall(ASSIGN, arguments), closure.getBody());
+    return new Closure(closure.getEnclosingEnvironment(), closure.getFormals(), body);
+  }
+
+  private static void collectNames(SEXP expression, Set<String> names) {
+    if (expression instanceof Symbol) {
+      names.add(((Symbol) expression).getPrintName());
+    } else if (expression instanceof FunctionCall) {
+      FunctionCall call = (FunctionCall) expression;
+      collectNames(call.getFunction(), names);
+      for (SEXP argument : call.getArguments().values()) {
+        collectNames(argument, names);
+      }
+    }
+  }
+}
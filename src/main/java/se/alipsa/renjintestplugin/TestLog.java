@@ -0,0 +1,162 @@
+package se.alipsa.renjintestplugin;
+
+import org.slf4j.Logger;
+import org.slf4j.helpers.MessageFormatter;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The console output for the execution of one test file.
+ * When buffered, everything (log messages as well as R output) is kept until {@link #flush()} is called
+ * so that output from test files running in parallel does not interleave.
+ */
+public class TestLog {
+
+  private static final Object CONSOLE_LOCK = new Object();
+
+  private final Logger logger;
+  private final boolean buffered;
+  private final List<Entry> entries = new ArrayList<>();
+
+  public TestLog(Logger logger, boolean buffered) {
+    this.logger = logger;
+    this.buffered = buffered;
+  }
+
+  public boolean isBuffered() {
+    return buffered;
+  }
+
+  public void info(String format, Object... args) {
+    log(Level.INFO, format, args);
+  }
+
+  public void warn(String format, Object... args) {
+    log(Level.WARN, format, args);
+  }
+
+  public void error(String format, Object... args) {
+    log(Level.ERROR, format, args);
+  }
+
+  /**
+   * @return a Writer that adds each line written to it to this log, suitable for R stdout
+   */
+  public Writer getOutput() {
+    return new LineWriter();
+  }
+
+  /**
+   * Write all buffered output to the console in one go.
+   */
+  public void flush() {
+    synchronized (CONSOLE_LOCK) {
+      synchronized (entries) {
+        for (Entry entry : entries) {
+          write(entry.level, entry.message);
+        }
+        entries.clear();
+      }
+    }
+  }
+
+  /**
+   * Add a message that has already been formatted, e.g. output replayed from a forked JVM.
+   *
+   * @param level the name of the level (INFO, WARN or ERROR)
+   * @param message the message
+   */
+  void log(String level, String message) {
+    add(Level.valueOf(level), message);
+  }
+
+  /**
+   * Hand over (and remove) all buffered output.
+   *
+   * @param consumer receives the level name and the message of each entry
+   */
+  void drainTo(BiConsumer<String, String> consumer) {
+    synchronized (entries) {
+      for (Entry entry : entries) {
+        consumer.accept(entry.level.name(), entry.message);
+      }
+      entries.clear();
+    }
+  }
+
+  private void log(Level level, String format, Object... args) {
+    add(level, MessageFormatter.arrayFormat(format, args).getMessage());
+  }
+
+  private void add(Level level, String message) {
+    if (buffered) {
+      synchronized (entries) {
+        entries.add(new Entry(level, message));
+      }
+    } else {
+      write(level, message);
+    }
+  }
+
+  private void write(Level level, String message) {
+    switch (level) {
+      case WARN:
+        logger.warn(message);
+        break;
+      case ERROR:
+        logger.error(message);
+        break;
+      default:
+        logger.info(message);
+    }
+  }
+
+  private enum Level {INFO, WARN, ERROR}
+
+  private static class Entry {
+    private final Level level;
+    private final String message;
+
+    Entry(Level level, String message) {
+      this.level = level;
+      this.message = message;
+    }
+  }
+
+  private class LineWriter extends Writer {
+
+    private final StringBuilder line = new StringBuilder();
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        char c = cbuf[i];
+        if (c == '\n') {
+          emit();
+        } else if (c != '\r') {
+          line.append(c);
+        }
+      }
+    }
+
+    @Override
+    public void flush() {
+      // lines are added as soon as they are complete
+    }
+
+    @Override
+    public void close() {
+      if (line.length() > 0) {
+        emit();
+      }
+    }
+
+    private void emit() {
+      info("{}", line.toString());
+      line.setLength(0);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package se.alipsa.renjintestplugin;
+
+import org.renjin.eval.Context;
+import org.renjin.parser.RParser;
+import org.renjin.sexp.Closure;
+import org.renjin.sexp.Environment;
+import org.renjin.sexp.FunctionCall;
+import org.renjin.sexp.LogicalVector;
+import org.renjin.sexp.Null;
+import org.renjin.sexp.PairList;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.StringVector;
+import org.renjin.sexp.Symbol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples which R functions a runner is executing, see {@link ProfileReport}. Renjin does not let another thread
+ * see how deep the evaluation of a session currently is, so the functions defined by the source scripts and the
+ * test files are replaced by a copy whose body first pushes the name of the function on a call stack kept in an
+ * environment of the runner, and pops it again on exit. A single sampler thread reads the call stacks of the
+ * runners that are running a test at a fixed interval and counts each distinct stack, so the tests only pay for
+ * the push and pop. A function that replaces the exit code (on.exit without add = TRUE) leaves its name on the
+ * stack until its caller or the next profiled function at the same depth returns.
+ */
+public class TestProfiler {
+
+  /** The extension of the collapsed stack files */
+  static final String EXTENSION = ".collapsed";
+
+  private static final Symbol STACK = Symbol.get("stack");
+  private static final Symbol FRAMES = Symbol.get("frames");
+  private static final SEXP ON_EXIT = FunctionCall.newCall(Symbol.get("::"), Symbol.get("base"), Symbol.get("on.exit"));
+  private static final SEXP SYS_NFRAME = FunctionCall.newCall(
+      FunctionCall.newCall(Symbol.get("::"), Symbol.get("base"), Symbol.get("sys.nframe")));
+  /** Keeps the names of the profiled functions on the stack with the frame number each was called in */
+  private static final String STACK_FUNCTIONS =
+      "enter <- function(name, frame) {\n"
+      + "  keep <- frames < frame\n"
+      + "  frames <<- c(frames[keep], frame)\n"
+      + "  stack <<- c(stack[keep], name)\n"
+      + "}\n"
+      + "exit <- function(frame) {\n"
+      + "  keep <- frames < frame\n"
+      + "  frames <<- frames[keep]\n"
+      + "  stack <<- stack[keep]\n"
+      + "}\n";
+
+  private static final List<TestProfiler> sampling = new CopyOnWriteArrayList<>();
+  private static ScheduledExecutorService sampler;
+  private static long samplerInterval;
+
+  private final File outputDirectory;
+  private final long intervalMillis;
+  private final Environment stackEnvironment;
+  private final Set<Closure> profiledFunctions = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final Map<String, Long> counts = new ConcurrentHashMap<>();
+  private volatile String root;
+
+  /**
+   * @param context the context of the session to profile
+   * @param global the global environment of the session
+   * @param outputDirectory the directory to write the collapsed stacks of each test file to
+   * @param intervalMillis how often to sample
+   */
+  public TestProfiler(Context context, Environment global, File outputDirectory, long intervalMillis) {
+    this.outputDirectory = outputDirectory;
+    this.intervalMillis = Math.max(1, intervalMillis);
+    stackEnvironment = Environment.createChildEnvironment(global).build();
+    for (SEXP expression : RParser.parseSource(STACK_FUNCTIONS)) {
+      context.evaluate(expression, stackEnvironment);
+    }
+    clearStack(context);
+  }
+
+  /**
+   * Profile the functions (i.e. closures) among the names in the environment.
+   *
+   * @param context the context of the session
+   * @param environment the environment the names are defined in
+   * @param names the names to profile if they are functions
+   */
+  public void addFunctions(Context context, Environment environment, Collection<Symbol> names) {
+    for (Symbol name : names) {
+      SEXP value = environment.getVariableUnsafe(name);
+      if (value instanceof Closure && !profiledFunctions.contains(value)) {
+        Closure profiled = instrument((Closure) value, name.getPrintName());
+        profiledFunctions.add(profiled);
+        environment.setVariable(context, name, profiled);
+      }
+    }
+  }
+
+  /**
+   * Start sampling the current thread.
+   *
+   * @param context the context of the session
+   * @param testFile the path of the test file relative to the testOutputDirectory
+   * @param testName the name of the test, e.g. the test function
+   */
+  public void start(Context context, String testFile, String testName) {
+    clearStack(context);
+    root = frameName(testFile) + ";" + frameName(testName);
+    sampling.add(this);
+    startSampler(intervalMillis);
+  }
+
+  /**
+   * Stop sampling, the samples are kept until {@link #write(String)}.
+   */
+  public void stop() {
+    sampling.remove(this);
+    root = null;
+  }
+
+  /**
+   * Add the samples taken since the last write to the collapsed stack file of the test file. The runners running
+   * the test functions of a file in parallel write to the same file.
+   *
+   * @param testFile the path of the test file relative to the testOutputDirectory
+   * @throws IOException if the file could not be written
+   */
+  public void write(String testFile) throws IOException {
+    if (counts.isEmpty()) {
+      return;
+    }
+    Map<String, Long> samples = new ConcurrentHashMap<>(counts);
+    counts.clear();
+    File file = new File(outputDirectory, testFile.replace('\\', '/').replace('/', '.') + EXTENSION);
+    synchronized (TestProfiler.class) {
+      if (file.exists()) {
+        ProfileReport.read(file, samples);
+      }
+      ProfileReport.write(file, samples);
+    }
+  }
+
+  private void clearStack(Context context) {
+    stackEnvironment.setVariable(context, FRAMES, Null.INSTANCE);
+    stackEnvironment.setVariable(context, STACK, Null.INSTANCE);
+  }
+
+  /**
+   * @return a copy of the closure whose body starts with pushing the name of the function on the stack
+   */
+  private Closure instrument(Closure closure, String name) {
+    SEXP exit = FunctionCall.newCall(stackFunction("exit"), SYS_NFRAME);
+    SEXP onExit = new FunctionCall(ON_EXIT, new PairList.Builder().add(exit).add("add", LogicalVector.TRUE).build());
+    SEXP enter = FunctionCall.newCall(stackFunction("enter"), StringVector.valueOf(frameName(name)), SYS_NFRAME);
+    SEXP body = FunctionCall.newCall(Symbol.get("{"), onExit, enter, closure.getBody());
+    return new Closure(closure.getEnclosingEnvironment(), closure.getFormals(), body);
+  }
+
+  private SEXP stackFunction(String name) {
+    return FunctionCall.newCall(Symbol.get("$"), stackEnvironment, Symbol.get(name));
+  }
+
+  /**
+   * Count the current stack of the runner, called on the sampler thread. The stack is replaced (never changed) by
+   * the runner so reading it while the runner goes on is safe.
+   */
+  private void sample() {
+    String stackRoot = root;
+    if (stackRoot == null) {
+      return;
+    }
+    StringBuilder key = new StringBuilder(stackRoot);
+    try {
+      SEXP stack = stackEnvironment.getVariableUnsafe(STACK);
+      if (stack instanceof StringVector) {
+        for (int i = 0; i < stack.length(); i++) {
+          key.append(';').append(((StringVector) stack).getElementAsString(i));
+        }
+      }
+    } catch (RuntimeException e) {
+      // the stack was read half way through a change, count the sample for the test only
+      key.setLength(stackRoot.length());
+    }
+    counts.merge(key.toString(), 1L, Long::sum);
+  }
+
+  private static synchronized void startSampler(long intervalMillis) {
+    if (sampler != null && samplerInterval == intervalMillis) {
+      return;
+    }
+    if (sampler != null) {
+      sampler.shutdown();
+    }
+    sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "renjin-test-profiler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    samplerInterval = intervalMillis;
+    sampler.scheduleAtFixedRate(() -> {
+      for (TestProfiler profiler : sampling) {
+        try {
+          profiler.sample();
+        } catch (RuntimeException e) {
+          // an exception would stop the sampler for good, skip the sample instead
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the name as a frame of a collapsed stack line, which can contain neither ; nor line breaks
+   */
+  static String frameName(String name) {
+    return name.replace(';', ',').replaceAll("\\s+", " ").trim();
+  }
+}
@@ -1,6 +1,9 @@
 package se.alipsa.renjintestplugin;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This represents the outcome (test result) of each test.
@@ -14,6 +17,15 @@ public class TestResult {
   private String issue;
   private long startTime;
   private long endTime;
+  private long setupNanos;
+  private long teardownNanos;
+  private long durationNanos;
+  private long parseNanos;
+  private long parseSavedNanos;
+  private long functionsWallNanos;
+  private Set<String> sourceDependencies = Collections.emptySet();
+  private long cpuNanos = -1;
+  private long allocatedBytes = -1;
 
   public TestResult(File file) {
     this.testFile = file;
@@ -55,7 +67,17 @@ public class TestResult {
     this.issue = issue;
   }
 
-  public enum OutCome {SUCCESS, FAILURE, ERROR}
+  /**
+   * @return whether the test failed or had an error
+   */
+  public boolean isFailure() {
+    return OutCome.FAILURE.equals(result) || OutCome.ERROR.equals(result);
+  }
+
+  /**
+   * The outcome of a test, SKIPPED is used for test files that were not run because of too many failures.
+   */
+  public enum OutCome {SUCCESS, FAILURE, ERROR, SKIPPED}
 
   public long getStartTime() {
     return startTime;
@@ -72,4 +94,120 @@ public class TestResult {
   public void setEndTime(long endTime) {
     this.endTime = endTime;
   }
+
+  /**
+   * @return the time spent preparing the session before the test file was run (only set on the
+   * result for the top level code of the test file)
+   */
+  public long getSetupNanos() {
+    return setupNanos;
+  }
+
+  public void setSetupNanos(long setupNanos) {
+    this.setupNanos = setupNanos;
+  }
+
+  /**
+   * @return the time spent restoring the session after the test file was run (only set on the
+   * result for the top level code of the test file)
+   */
+  public long getTeardownNanos() {
+    return teardownNanos;
+  }
+
+  public void setTeardownNanos(long teardownNanos) {
+    this.teardownNanos = teardownNanos;
+  }
+
+  /**
+   * @return the time the test took measured with System.nanoTime(), falls back to the end time minus the
+   * start time if it was not measured
+   */
+  public long getDurationNanos() {
+    if (durationNanos == 0) {
+      return TimeUnit.MILLISECONDS.toNanos(endTime - startTime);
+    }
+    return durationNanos;
+  }
+
+  public void setDurationNanos(long durationNanos) {
+    this.durationNanos = durationNanos;
+  }
+
+  /**
+   * @return the part of the duration spent parsing the test file (only set on the result for the
+   * top level code of the test file)
+   */
+  public long getParseNanos() {
+    return parseNanos;
+  }
+
+  public void setParseNanos(long parseNanos) {
+    this.parseNanos = parseNanos;
+  }
+
+  /**
+   * @return the parse time saved by reading the parsed test file from the parse cache (only set on the result for
+   * the top level code of the test file)
+   */
+  public long getParseSavedNanos() {
+    return parseSavedNanos;
+  }
+
+  public void setParseSavedNanos(long parseSavedNanos) {
+    this.parseSavedNanos = parseSavedNanos;
+  }
+
+  /**
+   * @return the wall clock time it took to run the test functions of the test file in parallel, 0 if they were run
+   * one by one (only set on the result for the top level code of the test file)
+   */
+  public long getFunctionsWallNanos() {
+    return functionsWallNanos;
+  }
+
+  public void setFunctionsWallNanos(long functionsWallNanos) {
+    this.functionsWallNanos = functionsWallNanos;
+  }
+
+  /**
+   * @return the functions (path#name) and files (path, for their other objects) defined by the source scripts that
+   * the test used, only recorded in test impact mode
+   */
+  public Set<String> getSourceDependencies() {
+    return sourceDependencies;
+  }
+
+  public void setSourceDependencies(Set<String> sourceDependencies) {
+    this.sourceDependencies = sourceDependencies;
+  }
+
+  /**
+   * @return the part of the duration spent evaluating R code
+   */
+  public long getEvalNanos() {
+    return getDurationNanos() - parseNanos;
+  }
+
+  /**
+   * @return the CPU time used by the thread running the test or -1 if not measured
+   */
+  public long getCpuNanos() {
+    return cpuNanos;
+  }
+
+  public void setCpuNanos(long cpuNanos) {
+    this.cpuNanos = cpuNanos;
+  }
+
+  /**
+   * @return the bytes allocated by the thread running the test or -1 if not measured
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  public void setAllocatedBytes(long allocatedBytes) {
+    this.allocatedBytes = allocatedBytes;
+  }
 }
@@ -1,19 +1,18 @@
 package se.alipsa.renjintestplugin;
 
-import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.maven.plugin.MojoFailureException;
-import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
 import org.slf4j.Logger;
 
 import java.io.*;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class TestResultPrinter {
@@ -28,28 +27,39 @@ public class TestResultPrinter {
     return error.getMessage().trim().replace("\n", ", ");
   }
 
-  static void printResultToConsole(Logger logger, List<TestResult> results, boolean testFailureIgnore, Collection<File> testFiles) throws MojoFailureException {
+  static void printResultToConsole(Logger logger, List<TestResult> results, boolean testFailureIgnore,
+                                   Collection<File> testFiles, RunStatistics statistics, int slowestCount) throws MojoFailureException {
     Map<TestResult.OutCome, List<TestResult>> resultMap = results.stream()
         .collect(Collectors.groupingBy(TestResult::getResult));
 
     List<TestResult> successResults = resultMap.get(TestResult.OutCome.SUCCESS);
     List<TestResult> failureResults = resultMap.get(TestResult.OutCome.FAILURE);
     List<TestResult> errorResults = resultMap.get(TestResult.OutCome.ERROR);
+    List<TestResult> skippedResults = resultMap.get(TestResult.OutCome.SKIPPED);
     long successCount = successResults == null ? 0 : successResults.size();
     long failCount = failureResults == null ? 0 : failureResults.size();
     long errorCount = errorResults == null ? 0 : errorResults.size();
+    long skippedCount = skippedResults == null ? 0 : skippedResults.size();
     logger.info("");
     logger.info("R tests summary:");
     logger.info("----------------");
-    logger.info("{} Files executed, Tests run: {}, Sucesses: {}, Failures: {}, Errors: {}",
-        testFiles.size(), results.size(), successCount, failCount, errorCount);
+    logger.info("{} Files executed, Tests run: {}, Sucesses: {}, Failures: {}, Errors: {}, Skipped: {}",
+        testFiles.size(), results.size() - skippedCount, successCount, failCount, errorCount, skippedCount);
+    if (statistics.getReusedFileCount() > 0) {
+      logger.info("{} of the files were unchanged and their results reused from the previous run",
+          statistics.getReusedFileCount());
+    }
+
+    if (skippedCount > 0) {
+      logger.warn("{} test files were skipped because of too many failures", skippedCount);
+    }
 
     boolean errorsDuringTests = failCount > 0 || errorCount > 0;
     if (errorsDuringTests) {
       logger.info("");
       logger.info("Results: ");
       for (TestResult result : results) {
-        if (result.getResult().equals(TestResult.OutCome.SUCCESS)) {
+        if (!result.isFailure()) {
           continue;
         }
         String errMsg = formatMessage(result.getError());
@@ -59,16 +69,19 @@ public class TestResultPrinter {
             errMsg);
       }
     } else {
-      logger.info("\tSUCCESS! {} tests run", results.size());
+      logger.info("\tSUCCESS! {} tests run", results.size() - skippedCount);
     }
-    long totalTime = 0;
+    long totalNanos = 0;
     for(TestResult res : results) {
-      totalTime += res.getEndTime() - res.getStartTime();
+      totalNanos += res.getDurationNanos();
     }
 
     logger.info("");
-    logger.info("Total time: {}", DurationFormatUtils.formatDuration(totalTime,
-        "'minutes: 'mm' seconds: 'ss' millis: 'SSS"), false);
+    logger.info("Total time: {} ms", formatMillis(totalNanos));
+    printSessionSetup(logger, results, statistics);
+    printParallelFunctions(logger, results);
+    printSlowestTests(logger, results, slowestCount);
+    printProfile(logger, statistics.getProfile());
     logger.info("");
     logger.info("--------------END OF RENJIN TESTS--------------\n");
 
@@ -94,77 +107,110 @@ public class TestResultPrinter {
   }
 
 
-  public static void printResultsToFile(File reportOutputDirectory, File testOutputDirectory,
-                                        List<TestResult> results, boolean testFailureIgnore) {
-
-    Map<File, List<TestResult>> resultGroups = results.stream().collect(Collectors.groupingBy(TestResult::getTestFile));
-    resultGroups.forEach((k, v) -> printResultToFile(reportOutputDirectory, testOutputDirectory, k, v));
+  private static void printSessionSetup(Logger logger, List<TestResult> results, RunStatistics statistics) {
+    if (statistics.getTemplateCount() == 0 && statistics.getReusedTemplateCount() == 0) {
+      return;
+    }
+    long setupNanos = 0;
+    int fileCount = 0;
+    long parseSavedNanos = 0;
+    int cachedFileCount = 0;
+    for (TestResult res : results) {
+      if (res.getSetupNanos() > 0) {
+        setupNanos += res.getSetupNanos();
+        fileCount++;
+      }
+      if (res.getParseSavedNanos() != 0) {
+        parseSavedNanos += res.getParseSavedNanos();
+        cachedFileCount++;
+      }
+    }
+    logger.info("Session templates: {} built in {} ms, {} reused, per file setup: {} ms in total, {} ms on average",
+        statistics.getTemplateCount(),
+        TimeUnit.NANOSECONDS.toMillis(statistics.getTemplateBuildNanos()),
+        statistics.getReusedTemplateCount(),
+        TimeUnit.NANOSECONDS.toMillis(setupNanos),
+        fileCount == 0 ? "0" : formatMillis(setupNanos / (double) fileCount));
+    if (cachedFileCount > 0 || statistics.getTemplateParseSavedNanos() != 0) {
+      logger.info("Parse cache: {} test files read from the cache, parse time saved: {} ms for test files, {} ms for source scripts",
+          cachedFileCount,
+          TimeUnit.NANOSECONDS.toMillis(parseSavedNanos),
+          TimeUnit.NANOSECONDS.toMillis(statistics.getTemplateParseSavedNanos()));
+    }
   }
 
   /**
-   *<testsuite tests="3" failures="1" name="se.alipsa.renjintestplugin.RenjinTestMojoTest" time="2.301" errors="0" skipped="0>
-   *     <testcase classname="foo1" name="ASuccessfulTest" time="1.868"/>
-   *     <testcase classname="foo2" name="AnotherSuccessfulTest" time="1.868"/>
-   *     <testcase classname="foo3" name="AFailingTest" time="1.868">
-   *         <failure message="NotEnoughFoo" type="SomeExceptionType"> details about failure </failure>
-   *     </testcase>
-   * </testsuite>
+   * For each test file whose test functions were run in parallel, compare the total time of the test functions
+   * (i.e. the time it would have taken to run them one by one) with the time it took to run them in parallel.
    */
-  private static void printResultToFile(File reportOutputDirectory, File testOutputDirectory, File testFile, List<TestResult> resultGroup){
-
-    DecimalFormatSymbols otherSymbols = new DecimalFormatSymbols(Locale.getDefault());
-    otherSymbols.setDecimalSeparator('.');
-    otherSymbols.setGroupingSeparator(',');
-    DecimalFormat format = new DecimalFormat("###.###", otherSymbols);
-
-    Document document = DocumentHelper.createDocument();
-    Element root = document.addElement("testsuite");
-    root.addAttribute("tests", resultGroup.size() + "");
-    Long totalTime = 0L;
-    for (TestResult res : resultGroup) {
-      Element testCase = root.addElement("testcase");
-      String testName = res.getTestFile().getName();
-      testCase.addAttribute("classname", testName.substring(0, testName.lastIndexOf(".")));
-      testCase.addAttribute("name", res.getTestMethod());
-      Long time = res.getEndTime() - res.getStartTime();
-      totalTime = totalTime + time;
-      double sec = time.doubleValue() / 1000.0;
-      //System.out.println("sec for test " + testName + " id " + sec);
-      testCase.addAttribute("time", format.format(sec) );
-      if (!res.getResult().equals(TestResult.OutCome.SUCCESS)) {
-        Element failure = testCase.addElement("failure");
-        failure.addAttribute("message", res.getIssue());
-        failure.addAttribute("type", res.getResult().toString());
-        failure.addText(asString(res.getError()));
+  private static void printParallelFunctions(Logger logger, List<TestResult> results) {
+    Map<File, List<TestResult>> resultsByFile = results.stream()
+        .collect(Collectors.groupingBy(TestResult::getTestFile, LinkedHashMap::new, Collectors.toList()));
+    boolean headerPrinted = false;
+    for (List<TestResult> fileResults : resultsByFile.values()) {
+      long wallNanos = fileResults.get(0).getFunctionsWallNanos();
+      if (wallNanos <= 0) {
+        continue;
       }
+      if (!headerPrinted) {
+        logger.info("");
+        logger.info("Test functions run in parallel:");
+        headerPrinted = true;
+      }
+      long functionNanos = 0;
+      for (TestResult res : fileResults.subList(1, fileResults.size())) {
+        functionNanos += res.getDurationNanos();
+      }
+      logger.info("\t{}: {} test functions in {} ms instead of {} ms, speedup {}x", fileResults.get(0).getTestFile().getName(),
+          fileResults.size() - 1, formatMillis(wallNanos), formatMillis(functionNanos),
+          String.format(Locale.ROOT, "%.1f", functionNanos / (double) wallNanos));
     }
-    Map<TestResult.OutCome, List<TestResult>> resultMap = resultGroup.stream()
-        .collect(Collectors.groupingBy(TestResult::getResult));
-    List<TestResult> failureResults = resultMap.get(TestResult.OutCome.FAILURE);
-    List<TestResult> errorResults = resultMap.get(TestResult.OutCome.ERROR);
+  }
 
-    String file = testFile.getAbsolutePath();
-    String strippedPath = file.substring(testOutputDirectory.getAbsolutePath().length() +1).replace(File.separatorChar, '.');
+  private static void printSlowestTests(Logger logger, List<TestResult> results, int slowestCount) {
+    if (slowestCount <= 0 || results.isEmpty()) {
+      return;
+    }
+    List<TestResult> slowest = results.stream()
+        .sorted(Comparator.comparingLong(TestResult::getDurationNanos).reversed())
+        .limit(slowestCount)
+        .collect(Collectors.toList());
+    logger.info("");
+    logger.info("Slowest tests:");
+    for (TestResult res : slowest) {
+      logger.info("\t{} ms\t{}: {}{}", formatMillis(res.getDurationNanos()), res.getTestFile().getName(),
+          res.getTestMethod(), TestResult.OutCome.SUCCESS.equals(res.getResult()) ? "" : " (" + res.getResult() + ")");
+    }
+  }
 
-    root.addAttribute("failures",  (failureResults == null ? 0 : failureResults.size()) + "");
-    root.addAttribute("errors", (errorResults == null ? 0 : errorResults.size()) + "");
-    String name = strippedPath.substring(0, strippedPath.lastIndexOf("."));
-    root.addAttribute("name", name);
-    double totalSec = totalTime.doubleValue()/1000.0;
-    root.addAttribute("time", format.format(totalSec));
-    //System.out.println("Time for test file " + name + " is " + totalSec);
+  private static void printProfile(Logger logger, ProfileReport profile) {
+    if (profile == null || profile.getSampleCount() == 0) {
+      return;
+    }
+    logger.info("");
+    logger.info("Profile: {} samples, collapsed stacks written to {}", profile.getSampleCount(), profile.getFile());
+    if (profile.getHotFunctions().isEmpty()) {
+      return;
+    }
+    logger.info("Hot functions (self / total samples):");
+    for (ProfileReport.HotFunction function : profile.getHotFunctions()) {
+      logger.info("\t{}\t{}\t{}", formatPercent(function.getSelfSamples(), profile.getSampleCount()),
+          formatPercent(function.getTotalSamples(), profile.getSampleCount()), function.getName());
+    }
+  }
 
-    // All the file names are the same so we can just grab the first
+  private static String formatPercent(long count, long total) {
+    return String.format(Locale.ROOT, "%5.1f%%", 100.0 * count / total);
+  }
 
-    File outFile = new File(reportOutputDirectory, "TEST-" + strippedPath + ".xml");
-    try (FileWriter out = new FileWriter(outFile)) {
-      document.write(out);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  private static String formatMillis(double nanos) {
+    DecimalFormatSymbols otherSymbols = new DecimalFormatSymbols(Locale.getDefault());
+    otherSymbols.setDecimalSeparator('.');
+    otherSymbols.setGroupingSeparator(',');
+    return new DecimalFormat("###.###", otherSymbols).format(nanos / 1_000_000.0);
   }
 
-  private static String asString(Throwable e) {
+  static String asString(Throwable e) {
     if (e == null) {
       return "";
     }
@@ -0,0 +1,57 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a {@link TestRunListener} gets to know about a run when it starts.
+ */
+public class TestRunInfo {
+
+  private final List<File> testFiles;
+  private final File testOutputDirectory;
+  private final File reportOutputDirectory;
+  private final String reportNameSuffix;
+
+  /**
+   * @param testFiles the test files of the run, in order: the ones with results reused from the previous run
+   *                  (incremental mode) first, then the ones that will be run
+   * @param testOutputDirectory the directory of the test files
+   * @param reportOutputDirectory where reports are written
+   * @param reportNameSuffix added to the report file names, e.g. to keep the reports of different shards apart
+   */
+  public TestRunInfo(List<File> testFiles, File testOutputDirectory, File reportOutputDirectory,
+                     String reportNameSuffix) {
+    this.testFiles = Collections.unmodifiableList(testFiles);
+    this.testOutputDirectory = testOutputDirectory;
+    this.reportOutputDirectory = reportOutputDirectory;
+    this.reportNameSuffix = reportNameSuffix;
+  }
+
+  public List<File> getTestFiles() {
+    return testFiles;
+  }
+
+  public File getTestOutputDirectory() {
+    return testOutputDirectory;
+  }
+
+  public File getReportOutputDirectory() {
+    return reportOutputDirectory;
+  }
+
+  public String getReportNameSuffix() {
+    return reportNameSuffix;
+  }
+
+  /**
+   * @param testFile a test file
+   * @return the path of the test file relative to the testOutputDirectory
+   */
+  public String relativePath(File testFile) {
+    String path = testFile.getAbsolutePath();
+    String dir = testOutputDirectory.getAbsolutePath() + File.separator;
+    return path.startsWith(dir) ? path.substring(dir.length()) : path;
+  }
+}
@@ -0,0 +1,48 @@
+package se.alipsa.renjintestplugin;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Receives the events of a testR run as they happen, e.g. to stream the results to a dashboard. Listeners are
+ * configured with the listeners parameter or discovered with {@link java.util.ServiceLoader} on the test classpath
+ * (a META-INF/services/se.alipsa.renjintestplugin.TestRunListener file), they must have a no-argument constructor.
+ * <p>
+ * The events are delivered one at a time on a dedicated thread (see {@link ListenerDispatcher}), so a listener
+ * does not have to be thread safe and a slow listener does not slow down the tests. The results of a test file
+ * arrive when the file is done, testFinished is called for each of them before fileFinished.</p>
+ */
+public interface TestRunListener {
+
+  /**
+   * @param run the test files that will be run and where reports go
+   */
+  default void runStarted(TestRunInfo run) {
+  }
+
+  /**
+   * @param testFile the test file that is about to run
+   */
+  default void fileStarted(File testFile) {
+  }
+
+  /**
+   * @param result the result of a test (a test function or a test_that() call)
+   */
+  default void testFinished(TestResult result) {
+  }
+
+  /**
+   * @param testFile the test file that is done (or was skipped)
+   * @param results the results of the test file
+   */
+  default void fileFinished(File testFile, List<TestResult> results) {
+  }
+
+  /**
+   * @param results all results of the run, including the ones reused from a previous run in incremental mode
+   * @param statistics the statistics of the run
+   */
+  default void runFinished(List<TestResult> results, RunStatistics statistics) {
+  }
+}
@@ -0,0 +1,107 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the test files into shardCount shards so that the test suite can be spread over several machines.
+ * <p>
+ * The files are weighed by their duration in the test history or, without history, by their size (a testthat.R
+ * also weighs the testthat directory next to it). Files without history get the average duration per byte of the
+ * files with history times their size. The files are then handed out heaviest first to the shard with the least
+ * weight so far. The split only depends on the test files and the history, so every machine must use the same
+ * history file (or none) to get the same split.</p>
+ */
+public final class TestSharding {
+
+  private TestSharding() {
+    // static helpers only
+  }
+
+  /**
+   * @param testFiles all test files
+   * @param shardIndex the shard to select, 0 based
+   * @param shardCount the number of shards
+   * @param history the test history
+   * @return the test files of the shard in their original order
+   * @throws MojoExecutionException if the shard index is not between 0 and shardCount - 1
+   */
+  public static List<File> select(List<File> testFiles, int shardIndex, int shardCount, TestHistory history)
+      throws MojoExecutionException {
+    if (shardIndex < 0 || shardIndex >= shardCount) {
+      throw new MojoExecutionException("shardIndex must be between 0 and shardCount - 1 (" + (shardCount - 1)
+          + ") but was " + shardIndex);
+    }
+    Map<File, Long> weights = weigh(testFiles, history);
+    List<File> byWeight = new ArrayList<>(weights.keySet());
+    byWeight.sort(Comparator.comparing((File file) -> weights.get(file)).reversed()
+        .thenComparing(File::getAbsolutePath));
+
+    long[] shardWeights = new long[shardCount];
+    Map<File, Integer> shardOf = new LinkedHashMap<>();
+    for (File file : byWeight) {
+      int lightest = 0;
+      for (int i = 1; i < shardCount; i++) {
+        if (shardWeights[i] < shardWeights[lightest]) {
+          lightest = i;
+        }
+      }
+      shardWeights[lightest] += weights.get(file);
+      shardOf.put(file, lightest);
+    }
+
+    List<File> shard = new ArrayList<>();
+    for (File file : testFiles) {
+      Integer index = shardOf.get(file);
+      if (index != null && index == shardIndex) {
+        shard.add(file);
+      }
+    }
+    return shard;
+  }
+
+  private static Map<File, Long> weigh(List<File> testFiles, TestHistory history) {
+    Map<File, Long> sizes = new LinkedHashMap<>();
+    long knownBytes = 0;
+    long knownNanos = 0;
+    for (File file : testFiles) {
+      long size = Math.max(1, size(file));
+      sizes.put(file, size);
+      Long duration = history.getDurationNanos(file);
+      if (duration != null) {
+        knownBytes += size;
+        knownNanos += duration;
+      }
+    }
+    double nanosPerByte = knownBytes == 0 ? 0 : knownNanos / (double) knownBytes;
+    Map<File, Long> weights = new LinkedHashMap<>();
+    for (Map.Entry<File, Long> entry : sizes.entrySet()) {
+      Long duration = history.getDurationNanos(entry.getKey());
+      long weight;
+      if (knownBytes == 0) {
+        weight = entry.getValue();
+      } else if (duration != null) {
+        weight = duration;
+      } else {
+        weight = (long) (entry.getValue() * nanosPerByte);
+      }
+      weights.put(entry.getKey(), Math.max(1, weight));
+    }
+    return weights;
+  }
+
+  private static long size(File testFile) {
+    long size = testFile.length();
+    if (RenjinTestRunner.isTestthatDriver(testFile)) {
+      size += FileUtils.sizeOfDirectory(new File(testFile.getParentFile(), "testthat"));
+    }
+    return size;
+  }
+}
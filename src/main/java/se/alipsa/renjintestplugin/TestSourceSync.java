@@ -0,0 +1,197 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synchronizes the R test files (and test resources) into the test output directory.
+ * Only new or changed files are copied (in parallel) and only R files that no longer exist in any of the
+ * source directories are deleted. A manifest in the target directory keeps the size, last modified time and
+ * content hash of the source of each copied file (and the replacements used) so that unchanged files can be
+ * skipped. A file whose size and last modified time are unchanged is not read at all, one that was only touched
+ * (e.g. by a checkout) is hashed and skipped if its content is the same.
+ */
+public class TestSourceSync {
+
+  static final String MANIFEST_NAME = ".renjin-test-sync";
+
+  private static final Logger logger = LoggerFactory.getLogger(TestSourceSync.class);
+
+  private final File targetDirectory;
+  private final List<String> extensions;
+  private final Properties replaceStringsWhenCopy;
+  private final StringReplacer replacer;
+  private final String replacementsHash;
+  private final Map<String, File> sources = new LinkedHashMap<>();
+
+  /**
+   * @param targetDirectory the directory to sync to
+   * @param extensions the extensions of R files
+   * @param replaceStringsWhenCopy strings to replace in R files when copying them (may be null)
+   */
+  public TestSourceSync(File targetDirectory, String[] extensions, Properties replaceStringsWhenCopy) {
+    this.targetDirectory = targetDirectory;
+    this.extensions = Arrays.asList(extensions);
+    this.replaceStringsWhenCopy = replaceStringsWhenCopy == null ? new Properties() : replaceStringsWhenCopy;
+    ContentHash hash = new ContentHash();
+    for (String key : new TreeSet<>(this.replaceStringsWhenCopy.stringPropertyNames())) {
+      hash.add(key).add(this.replaceStringsWhenCopy.getProperty(key));
+    }
+    this.replacementsHash = hash.finish();
+    this.replacer = StringReplacer.of(this.replaceStringsWhenCopy);
+  }
+
+  /**
+   * Add the files in a directory to the files to sync, files added later takes precedence over earlier ones
+   * with the same relative path.
+   *
+   * @param sourceDirectory the directory (nothing is added if it does not exist)
+   * @param rFilesOnly whether to only add the R files
+   */
+  public void addDirectory(File sourceDirectory, boolean rFilesOnly) {
+    if (sourceDirectory == null || !sourceDirectory.isDirectory()) {
+      return;
+    }
+    int prefixLength = sourceDirectory.getAbsolutePath().length() + 1;
+    for (File file : FileUtils.listFiles(sourceDirectory, (String[]) null, true)) {
+      if (!rFilesOnly || isRFile(file)) {
+        sources.put(file.getAbsolutePath().substring(prefixLength), file);
+      }
+    }
+  }
+
+  /**
+   * Copy the new and changed files and delete the stale R files.
+   *
+   * @return the target files that were copied or deleted
+   * @throws IOException if some file could not be copied or deleted
+   */
+  public List<File> sync() throws IOException {
+    long start = System.currentTimeMillis();
+    if (!targetDirectory.exists()) {
+      targetDirectory.mkdirs();
+    }
+    File manifestFile = new File(targetDirectory, MANIFEST_NAME);
+    Properties manifest = new Properties();
+    if (manifestFile.exists()) {
+      try (InputStream in = Files.newInputStream(manifestFile.toPath())) {
+        manifest.load(in);
+      }
+    }
+
+    List<File> changedFiles = Collections.synchronizedList(new ArrayList<>());
+    int deleted = 0;
+    int prefixLength = targetDirectory.getAbsolutePath().length() + 1;
+    for (File file : FileUtils.listFiles(targetDirectory, extensions.toArray(new String[0]), true)) {
+      if (!sources.containsKey(file.getAbsolutePath().substring(prefixLength))) {
+        Files.delete(file.toPath());
+        changedFiles.add(file);
+        deleted++;
+      }
+    }
+
+    AtomicInteger copied = new AtomicInteger();
+    AtomicInteger skipped = new AtomicInteger();
+    AtomicLong copiedBytes = new AtomicLong();
+    Properties newManifest = new Properties();
+    try {
+      sources.entrySet().parallelStream().forEach(entry -> {
+        File source = entry.getValue();
+        File target = new File(targetDirectory, entry.getKey());
+        String previous = target.exists() ? manifest.getProperty(entry.getKey()) : null;
+        String signature;
+        boolean unchanged;
+        try {
+          signature = signature(source, previous);
+          unchanged = previous != null && contentSignature(previous).equals(contentSignature(signature));
+          if (!unchanged) {
+            copy(source, target);
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        synchronized (newManifest) {
+          newManifest.setProperty(entry.getKey(), signature);
+        }
+        if (unchanged) {
+          skipped.incrementAndGet();
+          return;
+        }
+        changedFiles.add(target);
+        copied.incrementAndGet();
+        copiedBytes.addAndGet(source.length());
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    try (OutputStream out = Files.newOutputStream(manifestFile.toPath())) {
+      newManifest.store(out, "Sources of the files synced by the renjin-test-maven-plugin");
+    }
+    logger.info("Synced test files to {} in {} ms: {} files ({} bytes) copied, {} unchanged files skipped, {} stale files deleted",
+        targetDirectory, System.currentTimeMillis() - start, copied.get(), copiedBytes.get(), skipped.get(), deleted);
+    return changedFiles;
+  }
+
+  private void copy(File source, File target) throws IOException {
+    target.getParentFile().mkdirs();
+    if (isReplaced(source)) {
+      StringReplacementFileCopier.copyFile(source, target, replacer);
+    } else {
+      Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+  }
+
+  /**
+   * @param previous the signature of the source in the manifest, or null
+   * @return size:lastModified:contentHash of the source, followed by :replacementsHash if strings are replaced in it.
+   * The content hash is taken from the previous signature if the size and last modified time are the same.
+   */
+  private String signature(File source, String previous) throws IOException {
+    String stamp = source.length() + ":" + source.lastModified();
+    String contentHash;
+    if (previous != null && previous.startsWith(stamp + ":")) {
+      contentHash = previous.split(":")[2];
+    } else {
+      contentHash = ContentHash.of(source);
+    }
+    String signature = stamp + ":" + contentHash;
+    return isReplaced(source) ? signature + ":" + replacementsHash : signature;
+  }
+
+  /**
+   * @return the signature without the size and last modified time
+   */
+  private static String contentSignature(String signature) {
+    String[] parts = signature.split(":", 3);
+    return parts.length < 3 ? "" : parts[2];
+  }
+
+  private boolean isReplaced(File file) {
+    return !replaceStringsWhenCopy.isEmpty() && isRFile(file);
+  }
+
+  private boolean isRFile(File file) {
+    return extensions.contains(FilenameUtils.getExtension(file.getName()));
+  }
+}
@@ -0,0 +1,83 @@
+package se.alipsa.renjintestplugin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Writes a machine readable (JSON) summary of a test run with the timing phases and resource usage of each test,
+ * e.g. to find the tests that allocate the most memory:
+ * <pre>
+ * jq '.results | sort_by(-.allocatedBytes) | .[:10]' target/renjin-test-reports/renjin-test-summary.json
+ * </pre>
+ */
+public class TestSummaryWriter {
+
+  static final String FILE_NAME = "renjin-test-summary";
+
+  private static final Logger logger = LoggerFactory.getLogger(TestSummaryWriter.class);
+
+  private TestSummaryWriter() {
+    // static helpers only
+  }
+
+  /**
+   * @param reportOutputDirectory where to write the summary
+   * @param testOutputDirectory the directory the test file paths are made relative to
+   * @param results all results of the run
+   * @param statistics the statistics of the run
+   * @param reportNameSuffix added to the file name, e.g. to keep the summaries of different shards apart
+   */
+  public static void write(File reportOutputDirectory, File testOutputDirectory, List<TestResult> results,
+                           RunStatistics statistics, String reportNameSuffix) {
+    File outFile = new File(reportOutputDirectory, FILE_NAME + reportNameSuffix + ".json");
+    int prefixLength = testOutputDirectory.getAbsolutePath().length() + 1;
+    long[] counts = new long[TestResult.OutCome.values().length];
+    long totalNanos = 0;
+    long parseSavedNanos = statistics.getTemplateParseSavedNanos();
+    for (TestResult res : results) {
+      counts[res.getResult().ordinal()]++;
+      totalNanos += res.getDurationNanos();
+      parseSavedNanos += res.getParseSavedNanos();
+    }
+    try (Writer out = Files.newBufferedWriter(outFile.toPath(), StandardCharsets.UTF_8)) {
+      out.write("{\n");
+      out.write("  \"tests\": " + results.size() + ",\n");
+      for (TestResult.OutCome outCome : TestResult.OutCome.values()) {
+        out.write("  " + Json.quote(outCome.name().toLowerCase()) + ": " + counts[outCome.ordinal()] + ",\n");
+      }
+      out.write("  \"durationNanos\": " + totalNanos + ",\n");
+      out.write("  \"templateCount\": " + statistics.getTemplateCount() + ",\n");
+      out.write("  \"templateBuildNanos\": " + statistics.getTemplateBuildNanos() + ",\n");
+      out.write("  \"reusedTemplateCount\": " + statistics.getReusedTemplateCount() + ",\n");
+      out.write("  \"parseSavedNanos\": " + parseSavedNanos + ",\n");
+      out.write("  \"results\": [");
+      String separator = "\n";
+      for (TestResult res : results) {
+        out.write(separator);
+        separator = ",\n";
+        out.write("    {\"file\": " + Json.quote(res.getTestFile().getAbsolutePath().substring(prefixLength)));
+        out.write(", \"test\": " + Json.quote(res.getTestMethod()));
+        out.write(", \"outcome\": " + Json.quote(res.getResult().name()));
+        out.write(", \"durationNanos\": " + res.getDurationNanos());
+        if (res.getFunctionsWallNanos() > 0) {
+          out.write(", \"functionsWallNanos\": " + res.getFunctionsWallNanos());
+        }
+        long[] values = JUnitReportWriter.propertyValues(res);
+        for (int i = 0; i < values.length; i++) {
+          out.write(", " + Json.quote(JUnitReportWriter.PROPERTIES[i]) + ": " + values[i]);
+        }
+        out.write("}");
+      }
+      out.write("\n  ]\n}\n");
+    } catch (IOException e) {
+      logger.warn("Failed to write test summary {}", outFile, e);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package se.alipsa.renjintestplugin;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces timeouts on test code. A deadline runs an action (e.g. interrupting the thread running the test)
+ * if it has not been closed before the timeout expires. All deadlines share one daemon thread.
+ */
+public final class Watchdog {
+
+  private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "renjin-test-watchdog");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  static final long REPEAT_INTERRUPT_MILLIS = 100;
+
+  private Watchdog() {
+    // static helpers only
+  }
+
+  /**
+   * Interrupt the current thread if it is still inside the deadline when the timeout expires. Renjin checks the
+   * interrupt flag while evaluating so this stops R code that loops forever. The thread is interrupted again
+   * every {@value #REPEAT_INTERRUPT_MILLIS} ms until the deadline is closed in case the R code catches the
+   * resulting condition and carries on.
+   *
+   * @param timeoutMillis the timeout, 0 or less means no timeout
+   * @return the deadline, close it when the guarded code is done
+   */
+  public static Deadline interruptAfter(long timeoutMillis) {
+    Thread thread = Thread.currentThread();
+    Deadline deadline = new Deadline(true);
+    deadline.schedule(timeoutMillis, thread::interrupt);
+    return deadline;
+  }
+
+  /**
+   * @param timeoutMillis the timeout, 0 or less means no timeout
+   * @param action what to do if the deadline is not closed in time
+   * @return the deadline, close it when the guarded code is done
+   */
+  public static Deadline runAfter(long timeoutMillis, Runnable action) {
+    Deadline deadline = new Deadline(false);
+    deadline.schedule(timeoutMillis, action);
+    return deadline;
+  }
+
+  /**
+   * A scheduled timeout that can be cancelled by closing it.
+   */
+  public static final class Deadline implements AutoCloseable {
+
+    private final boolean interrupting;
+    private ScheduledFuture<?> future;
+    private boolean active = true;
+    private boolean expired;
+
+    private Deadline(boolean interrupting) {
+      this.interrupting = interrupting;
+    }
+
+    private void schedule(long timeoutMillis, Runnable action) {
+      if (timeoutMillis <= 0) {
+        return;
+      }
+      if (interrupting) {
+        future = SCHEDULER.scheduleWithFixedDelay(() -> expire(action), timeoutMillis, REPEAT_INTERRUPT_MILLIS,
+            TimeUnit.MILLISECONDS);
+      } else {
+        future = SCHEDULER.schedule(() -> expire(action), timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private synchronized void expire(Runnable action) {
+      if (active) {
+        expired = true;
+        action.run();
+      }
+    }
+
+    /**
+     * @return whether the timeout expired before the deadline was closed
+     */
+    public synchronized boolean isExpired() {
+      return expired;
+    }
+
+    /**
+     * Cancel the timeout. For a deadline that interrupted the current thread the interrupt flag is cleared
+     * (if Renjin did not already do so) so that it does not affect the code that runs next.
+     */
+    @Override
+    public synchronized void close() {
+      active = false;
+      if (future != null) {
+        future.cancel(false);
+      }
+      if (expired && interrupting) {
+        Thread.interrupted();
+      }
+    }
+  }
+}
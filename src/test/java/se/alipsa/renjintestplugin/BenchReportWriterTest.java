@@ -0,0 +1,43 @@
+package se.alipsa.renjintestplugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BenchReportWriterTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testStatistics() {
+    BenchResult result = new BenchResult(new File("bench.R"), "bench.sum()");
+    result.setNanosPerOp(new double[]{50, 10, 40, 20, 30});
+    assertEquals(30, result.getMean(), 0.0001);
+    assertEquals(10, result.getMin(), 0.0001);
+    assertEquals(50, result.getMax(), 0.0001);
+    assertEquals(30, result.getPercentile(50), 0.0001);
+    assertEquals(50, result.getPercentile(90), 0.0001);
+  }
+
+  @Test
+  public void testReadMeansFromCsv() throws Exception {
+    BenchResult sum = new BenchResult(new File("a,b.R"), "bench.sum()");
+    sum.setNanosPerOp(new double[]{100, 200});
+    BenchResult failed = new BenchResult(new File("c.R"), "bench.fail()");
+    failed.setError(new RuntimeException("oops, \"quoted\""));
+    File csv = folder.newFile("results.csv");
+    BenchReportWriter.writeCsv(csv, Arrays.asList(sum, failed));
+
+    Map<String, Double> means = BenchReportWriter.readMeans(csv);
+    assertEquals(150, means.get("a,b.R:bench.sum()"), 0.0001);
+    assertFalse(means.containsKey("c.R:bench.fail()"));
+  }
+}
@@ -0,0 +1,85 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.renjin.sexp.DoubleVector;
+import org.renjin.sexp.IntVector;
+import org.renjin.sexp.ListVector;
+import org.renjin.sexp.StringVector;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FixtureStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testLoadCsv() throws Exception {
+    File csv = folder.newFile("sales data.csv");
+    FileUtils.write(csv, "id,amount,\"the name\"\r\n"
+        + "1,2.5,\"Smith, John\"\r\n"
+        + "\r\n"
+        + "2,NA,\"say \"\"hi\"\"\"\r\n"
+        + ",3,NA\r\n", StandardCharsets.UTF_8);
+    File cacheDir = new File(folder.getRoot(), "cache");
+
+    Fixture fixture = FixtureStore.load(csv, cacheDir, new TestLog(null, true));
+    assertEquals("sales.data", fixture.getName());
+    assertEquals(3, fixture.getRowCount());
+    assertEquals(Arrays.asList("id", "amount", "the.name"), fixture.getColumnNames());
+    assertSame(fixture, FixtureStore.load(csv, cacheDir, new TestLog(null, true)));
+
+    ListVector dataFrame = (ListVector) fixture.getDataFrame();
+    IntVector id = (IntVector) dataFrame.getElementAsSEXP(0);
+    assertEquals(2, id.getElementAsInt(1));
+    assertEquals(IntVector.NA, id.getElementAsInt(2));
+    DoubleVector amount = (DoubleVector) dataFrame.getElementAsSEXP(1);
+    assertEquals(2.5, amount.getElementAsDouble(0), 0);
+    assertTrue(Double.isNaN(amount.getElementAsDouble(1)));
+    assertEquals(3, amount.getElementAsDouble(2), 0);
+    StringVector name = (StringVector) dataFrame.getElementAsSEXP(2);
+    assertEquals("Smith, John", name.getElementAsString(0));
+    assertEquals("say \"hi\"", name.getElementAsString(1));
+    assertNull(name.getElementAsString(2));
+
+    // another JVM maps the same column file
+    FixtureStore.clear();
+    Fixture mapped = FixtureStore.load(csv, cacheDir, new TestLog(null, true));
+    assertEquals(3, mapped.getRowCount());
+    assertEquals(1, FileUtils.listFiles(cacheDir, new String[]{"columns"}, false).size());
+  }
+
+  @Test
+  public void testQuotedNAIsAString() throws Exception {
+    File csv = folder.newFile("codes.csv");
+    FileUtils.write(csv, "code,count\n\"NA\",1\nNA,\"NA\"\n", StandardCharsets.UTF_8);
+    try (FixtureStore.CsvReader reader = new FixtureStore.CsvReader(new StringReader("NA,\"NA\",\"\"\n"))) {
+      assertEquals(Arrays.asList("NA", "NA", ""), reader.readRecord());
+      assertFalse(reader.isQuoted(0));
+      assertTrue(reader.isQuoted(1));
+      assertTrue(reader.isQuoted(2));
+    }
+
+    Fixture fixture = FixtureStore.load(csv, new File(folder.getRoot(), "cache"), new TestLog(null, true));
+    ListVector dataFrame = (ListVector) fixture.getDataFrame();
+    StringVector code = (StringVector) dataFrame.getElementAsSEXP(0);
+    assertEquals("NA", code.getElementAsString(0));
+    assertNull(code.getElementAsString(1));
+    // the quoted NA makes count a character column
+    StringVector count = (StringVector) dataFrame.getElementAsSEXP(1);
+    assertEquals("1", count.getElementAsString(0));
+    assertEquals("NA", count.getElementAsString(1));
+  }
+}
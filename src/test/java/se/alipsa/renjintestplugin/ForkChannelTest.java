@@ -0,0 +1,193 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ForkChannelTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testResultRoundTrip() throws Exception {
+    File testFile = new File("SumTest.R");
+    TestResult result = new TestResult(testFile);
+    result.setTestMethod("test.sum()");
+    result.setResult(TestResult.OutCome.FAILURE);
+    result.setIssue("EvalException executing test SumTest.R: test.sum()");
+    result.setStartTime(1000);
+    result.setEndTime(1250);
+    result.setDurationNanos(250_000_000L);
+    result.setCpuNanos(200_000_000L);
+    result.setAllocatedBytes(4096);
+    result.setSourceDependencies(new TreeSet<>(Arrays.asList("sum.R", "sum.R#sum")));
+    result.setError(new IllegalStateException("expected 3 but was 4"));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    ForkChannel.writeResult(out, result);
+    ForkChannel.writeString(out, null);
+    out.flush();
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals(ForkChannel.RESULT, in.readByte());
+    TestResult copy = ForkChannel.readResult(in, testFile);
+    assertNull(ForkChannel.readString(in));
+    assertEquals(-1, in.read());
+
+    assertEquals("test.sum()", copy.getTestMethod());
+    assertEquals(TestResult.OutCome.FAILURE, copy.getResult());
+    assertEquals(result.getIssue(), copy.getIssue());
+    assertEquals(1000, copy.getStartTime());
+    assertEquals(1250, copy.getEndTime());
+    assertEquals(250_000_000L, copy.getDurationNanos());
+    assertEquals(200_000_000L, copy.getCpuNanos());
+    assertEquals(4096, copy.getAllocatedBytes());
+    assertEquals(result.getSourceDependencies(), copy.getSourceDependencies());
+    // the exception itself cannot be sent, its description is
+    ForkedTestException error = (ForkedTestException) copy.getError();
+    assertEquals(IllegalStateException.class.getName(), error.getClassName());
+    assertEquals("expected 3 but was 4", error.getMessage());
+    assertEquals(ForkChannel.stackTrace(result.getError()), ForkChannel.stackTrace(error));
+  }
+
+  @Test
+  public void testForkRunsTestFile() throws Exception {
+    List<String> logged = new ArrayList<>();
+    try (JvmFork fork = JvmFork.start(forkCommand("pass"), folder.getRoot(), collectingLog(logged))) {
+      assertEquals(1000, fork.getTemplateBuildNanos());
+      List<TestResult> results = fork.runTestFile(new File(folder.getRoot(), "SumTest.R"), collectingLog(logged));
+      assertEquals(1, results.size());
+      assertEquals("test.sum()", results.get(0).getTestMethod());
+      assertEquals(TestResult.OutCome.SUCCESS, results.get(0).getResult());
+    }
+    assertEquals(Arrays.asList("INFO setting up", "INFO running SumTest.R"), logged);
+  }
+
+  @Test
+  public void testForkDyingMidFile() throws Exception {
+    List<String> logged = new ArrayList<>();
+    JvmFork fork = JvmFork.start(forkCommand("die"), folder.getRoot(), collectingLog(logged));
+    try {
+      fork.runTestFile(new File(folder.getRoot(), "CrashTest.R"), collectingLog(logged));
+      fail("Expected the fork to be gone");
+    } catch (IOException e) {
+      // the output from before the crash is kept
+      assertEquals("INFO running CrashTest.R", logged.get(logged.size() - 1));
+    } finally {
+      fork.close();
+    }
+  }
+
+  @Test
+  public void testKilledFork() throws Exception {
+    JvmFork fork = JvmFork.start(forkCommand("hang"), folder.getRoot(), collectingLog(new ArrayList<>()));
+    Thread killer = new Thread(() -> {
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        return;
+      }
+      fork.kill();
+    });
+    killer.start();
+    try {
+      fork.runTestFile(new File(folder.getRoot(), "HangingTest.R"), collectingLog(new ArrayList<>()));
+      fail("Expected the killed fork to be gone");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      killer.join();
+      fork.close();
+    }
+  }
+
+  @Test
+  public void testFatalFork() {
+    try {
+      JvmFork.start(forkCommand("fatal"), folder.getRoot(), collectingLog(new ArrayList<>()));
+      fail("Expected the fork to fail");
+    } catch (MojoExecutionException e) {
+      assertTrue(String.valueOf(e.getCause()), e.getCause().getMessage().contains("no such package"));
+    }
+  }
+
+  private static List<String> forkCommand(String mode) {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    return Arrays.asList(java, "-cp", System.getProperty("java.class.path"), FakeFork.class.getName(), mode);
+  }
+
+  private static TestLog collectingLog(List<String> logged) {
+    return new TestLog(LoggerFactory.getLogger(ForkChannelTest.class), true) {
+      @Override
+      void log(String level, String message) {
+        logged.add(level + " " + message);
+      }
+    };
+  }
+
+  /**
+   * Stands in for {@link ForkedTestRunner}: speaks the fork protocol and then passes, dies or hangs.
+   */
+  public static class FakeFork {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+      DataOutputStream out = new DataOutputStream(System.out);
+      String mode = args[0];
+      log(out, "setting up");
+      if ("fatal".equals(mode)) {
+        ForkChannel.writeFatal(out, new MojoExecutionException("Failed to load package: no such package"));
+        System.exit(1);
+      }
+      ForkChannel.writeReady(out, 1000, 0, false);
+      BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+      String path;
+      while ((path = in.readLine()) != null && !path.isEmpty()) {
+        File testFile = new File(path);
+        log(out, "running " + testFile.getName());
+        if ("die".equals(mode)) {
+          Runtime.getRuntime().halt(3);
+        } else if ("hang".equals(mode)) {
+          Thread.sleep(60_000);
+        }
+        TestResult result = new TestResult(testFile);
+        result.setTestMethod("test.sum()");
+        result.setResult(TestResult.OutCome.SUCCESS);
+        result.setSourceDependencies(Collections.emptySet());
+        ForkChannel.writeResult(out, result);
+        out.writeByte(ForkChannel.DONE);
+        out.flush();
+      }
+    }
+
+    private static void log(DataOutputStream out, String message) throws IOException {
+      out.writeByte(ForkChannel.LOG);
+      ForkChannel.writeString(out, "INFO");
+      ForkChannel.writeString(out, message);
+      out.flush();
+    }
+  }
+}
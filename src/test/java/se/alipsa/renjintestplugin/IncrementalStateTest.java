@@ -0,0 +1,101 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class IncrementalStateTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testUnchangedSuccessIsSkipped() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File stateFile = new File(folder.getRoot(), "state.dat");
+    File testFile = testFile(testDir, "SumTest.R", "test.sum <- function() {}\n");
+    run(stateFile, testDir, "inputs", testFile, TestResult.OutCome.SUCCESS);
+
+    List<TestResult> results = new IncrementalState(stateFile, testDir, "inputs").getUpToDateResults(testFile);
+    assertNotNull(results);
+    assertEquals("test.sum()", results.get(0).getTestMethod());
+  }
+
+  @Test
+  public void testChangedFileIsRerun() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File stateFile = new File(folder.getRoot(), "state.dat");
+    File testFile = testFile(testDir, "SumTest.R", "test.sum <- function() {}\n");
+    File otherFile = testFile(testDir, "OtherTest.R", "test.other <- function() {}\n");
+    IncrementalState state = new IncrementalState(stateFile, testDir, "inputs");
+    state.getUpToDateResults(testFile);
+    state.getUpToDateResults(otherFile);
+    state.save(Arrays.asList(result(testFile, TestResult.OutCome.SUCCESS), result(otherFile, TestResult.OutCome.SUCCESS)));
+
+    FileUtils.write(testFile, "test.sum <- function() { stop('changed') }\n", StandardCharsets.UTF_8);
+    state = new IncrementalState(stateFile, testDir, "inputs");
+    assertNull(state.getUpToDateResults(testFile));
+    assertNotNull(state.getUpToDateResults(otherFile));
+    // the shared inputs (src scripts, classpath) changed, everything is run
+    state = new IncrementalState(stateFile, testDir, "changed inputs");
+    assertNull(state.getUpToDateResults(otherFile));
+  }
+
+  @Test
+  public void testFailedLastTimeIsRerun() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File stateFile = new File(folder.getRoot(), "state.dat");
+    File testFile = testFile(testDir, "SumTest.R", "test.sum <- function() {}\n");
+    run(stateFile, testDir, "inputs", testFile, TestResult.OutCome.FAILURE);
+
+    assertNull(new IncrementalState(stateFile, testDir, "inputs").getUpToDateResults(testFile));
+  }
+
+  @Test
+  public void testClasspathDirectoryChangesInputsHash() throws Exception {
+    File classes = folder.newFolder("classes");
+    File classFile = new File(classes, "Sum.class");
+    FileUtils.write(classFile, "v1", StandardCharsets.UTF_8);
+    List<String> classpath = Collections.singletonList(classes.getAbsolutePath());
+    String before = new ContentHash().addClasspath(classpath, false).finish();
+    assertEquals(before, new ContentHash().addClasspath(classpath, false).finish());
+
+    FileUtils.write(classFile, "v2 recompiled", StandardCharsets.UTF_8);
+    assertNotEquals(before, new ContentHash().addClasspath(classpath, false).finish());
+  }
+
+  private static File testFile(File dir, String name, String content) throws Exception {
+    File file = new File(dir, name);
+    FileUtils.write(file, content, StandardCharsets.UTF_8);
+    return file;
+  }
+
+  private static void run(File stateFile, File testDir, String inputsHash, File testFile, TestResult.OutCome outCome)
+      throws Exception {
+    IncrementalState state = new IncrementalState(stateFile, testDir, inputsHash);
+    state.getUpToDateResults(testFile);
+    List<TestResult> results = new ArrayList<>();
+    results.add(result(testFile, outCome));
+    state.save(results);
+  }
+
+  private static TestResult result(File testFile, TestResult.OutCome outCome) {
+    TestResult result = new TestResult(testFile);
+    result.setTestMethod("test." + testFile.getName().replace("Test.R", "").toLowerCase() + "()");
+    result.setResult(outCome);
+    return result;
+  }
+}
@@ -0,0 +1,95 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class JUnitReportWriterTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * The reports must stay the same as the ones written with dom4j, apart from the skipped results
+   */
+  @Test
+  public void testReportFormat() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File reportDir = folder.newFolder("reports");
+    File testFile = new File(testDir, "sub" + File.separator + "SumTest.R");
+
+    // times are written in seconds with at most three decimals
+    TestResult success = result(testFile, "test.sum()", TestResult.OutCome.SUCCESS, 1_250_400_000L);
+    TestResult failure = result(testFile, "test.sumNA()", TestResult.OutCome.FAILURE, 500_000_000L);
+    failure.setIssue("EvalException executing test SumTest.R: test.sumNA()");
+    failure.setError(new ForkedTestException("org.renjin.eval.EvalException", "expected <3> & \"NA\"",
+        "org.renjin.eval.EvalException: expected <3> & \"NA\"\n\tat test.sumNA\n"));
+    TestResult error = result(testFile, "test.slow()", TestResult.OutCome.ERROR, 2_000_000_000L);
+    error.setIssue("Timeout: test.slow() did not finish within 2 seconds");
+    TestResult skipped = result(testFile, "SumTest()", TestResult.OutCome.SKIPPED, 0);
+    skipped.setIssue("Skipped after 1 failures");
+
+    try (JUnitReportWriter writer = new JUnitReportWriter(reportDir, testDir)) {
+      writer.write(testFile, Arrays.asList(success, failure, error, skipped));
+    }
+
+    String report = FileUtils.readFileToString(new File(reportDir, "TEST-sub.SumTest.R.xml"), StandardCharsets.UTF_8);
+    assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<testsuite tests=\"4\" failures=\"1\" errors=\"1\" skipped=\"1\" name=\"sub.SumTest\" time=\"3.75\">"
+        + "<testcase classname=\"SumTest\" name=\"test.sum()\" time=\"1.25\"/>"
+        + "<testcase classname=\"SumTest\" name=\"test.sumNA()\" time=\"0.5\">"
+        + "<failure message=\"EvalException executing test SumTest.R: test.sumNA()\" type=\"FAILURE\">"
+        + "org.renjin.eval.EvalException: expected &lt;3&gt; &amp; \"NA\"\n\tat test.sumNA\n"
+        + "</failure></testcase>"
+        + "<testcase classname=\"SumTest\" name=\"test.slow()\" time=\"2\">"
+        + "<failure message=\"Timeout: test.slow() did not finish within 2 seconds\" type=\"ERROR\"></failure>"
+        + "</testcase>"
+        + "<testcase classname=\"SumTest\" name=\"SumTest()\" time=\"0\">"
+        + "<skipped message=\"Skipped after 1 failures\"/>"
+        + "</testcase>"
+        + "</testsuite>", report);
+  }
+
+  @Test
+  public void testPropertiesAndSuffix() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File reportDir = folder.newFolder("reports");
+    File testFile = new File(testDir, "MeanTest.R");
+    TestResult result = result(testFile, "test.mean()", TestResult.OutCome.SUCCESS, 1_000_000L);
+    result.setParseNanos(200_000L);
+    result.setCpuNanos(900_000L);
+    result.setAllocatedBytes(2048);
+
+    try (JUnitReportWriter writer = new JUnitReportWriter(reportDir, testDir, "-shard0of2")) {
+      writer.submit(testFile, Collections.singletonList(result));
+    }
+
+    String report = FileUtils.readFileToString(new File(reportDir, "TEST-MeanTest.R-shard0of2.xml"),
+        StandardCharsets.UTF_8);
+    assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<testsuite tests=\"1\" failures=\"0\" errors=\"0\" name=\"MeanTest\" time=\"0.001\">"
+        + "<testcase classname=\"MeanTest\" name=\"test.mean()\" time=\"0.001\"><properties>"
+        + "<property name=\"parseNanos\" value=\"200000\"/>"
+        + "<property name=\"evalNanos\" value=\"800000\"/>"
+        + "<property name=\"cpuNanos\" value=\"900000\"/>"
+        + "<property name=\"allocatedBytes\" value=\"2048\"/>"
+        + "</properties></testcase>"
+        + "</testsuite>", report);
+  }
+
+  private static TestResult result(File testFile, String method, TestResult.OutCome outCome, long durationNanos) {
+    TestResult result = new TestResult(testFile);
+    result.setTestMethod(method);
+    result.setResult(outCome);
+    result.setDurationNanos(durationNanos);
+    return result;
+  }
+}
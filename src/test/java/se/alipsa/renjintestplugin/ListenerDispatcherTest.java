@@ -0,0 +1,70 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerDispatcherTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testJsonLinesReport() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File reportDir = folder.newFolder("reports");
+    File testFile = new File(testDir, "SumTest.R");
+    TestResult success = result(testFile, "test.sum()", TestResult.OutCome.SUCCESS);
+    TestResult failure = result(testFile, "test.sumNA()", TestResult.OutCome.FAILURE);
+    failure.setIssue("expected \"3\"");
+
+    List<TestRunListener> listeners = ListenerDispatcher.createListeners(
+        Collections.singletonList("JsonLinesReporter"), getClass().getClassLoader());
+    List<String> events = new ArrayList<>();
+    listeners.add(0, new TestRunListener() {
+      @Override
+      public void fileStarted(File file) {
+        throw new IllegalStateException("a failing listener does not stop the others");
+      }
+
+      @Override
+      public void testFinished(TestResult result) {
+        events.add(result.getTestMethod());
+      }
+    });
+    try (ListenerDispatcher dispatcher = new ListenerDispatcher(listeners, 100, getClass().getClassLoader())) {
+      dispatcher.runStarted(new TestRunInfo(Collections.singletonList(testFile), testDir, reportDir, ""));
+      dispatcher.fileStarted(testFile);
+      dispatcher.fileFinished(testFile, Arrays.asList(success, failure));
+      dispatcher.runFinished(Arrays.asList(success, failure), new RunStatistics());
+    }
+
+    assertEquals(Arrays.asList("test.sum()", "test.sumNA()"), events);
+    List<String> lines = FileUtils.readLines(new File(reportDir, "renjin-test-events.jsonl"), StandardCharsets.UTF_8);
+    assertEquals(6, lines.size());
+    assertTrue(lines.get(0), lines.get(0).startsWith("{\"event\": \"runStarted\""));
+    assertTrue(lines.get(1), lines.get(1).contains("\"file\": \"SumTest.R\""));
+    assertTrue(lines.get(3), lines.get(3).contains("\"outcome\": \"FAILURE\"")
+        && lines.get(3).contains("\"issue\": \"expected \\\"3\\\"\""));
+    assertTrue(lines.get(4), lines.get(4).contains("\"tests\": 2, \"failures\": 1"));
+    assertTrue(lines.get(5), lines.get(5).contains("\"success\": 1, \"failure\": 1"));
+  }
+
+  private static TestResult result(File testFile, String method, TestResult.OutCome outCome) {
+    TestResult result = new TestResult(testFile);
+    result.setTestMethod(method);
+    result.setResult(outCome);
+    return result;
+  }
+}
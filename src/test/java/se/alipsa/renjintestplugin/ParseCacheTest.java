@@ -0,0 +1,41 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.renjin.eval.Context;
+import org.renjin.eval.SessionBuilder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParseCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testParsedOnlyWhenChanged() throws Exception {
+    File cacheDir = new File(folder.getRoot(), "cache");
+    File rFile = folder.newFile("test.R");
+    FileUtils.write(rFile, "x <- 1 + 2\ny <- x * 2\n", StandardCharsets.UTF_8);
+    Context context = new SessionBuilder().build().getTopLevelContext();
+    ParseCache cache = new ParseCache(cacheDir);
+
+    ParseCache.ParsedFile parsed = cache.parse(context, rFile);
+    assertEquals(0, parsed.getSavedNanos());
+    assertEquals(1, cacheDir.listFiles().length);
+
+    ParseCache.ParsedFile cached = cache.parse(context, rFile);
+    assertEquals(parsed.getExpressions().length(), cached.getExpressions().length());
+    assertEquals(parsed.getExpressions().toString(), cached.getExpressions().toString());
+    assertEquals(1, cacheDir.listFiles().length);
+
+    FileUtils.write(rFile, "x <- 3\n", StandardCharsets.UTF_8);
+    assertEquals(1, cache.parse(context, rFile).getExpressions().length());
+    assertEquals(2, cacheDir.listFiles().length);
+  }
+}
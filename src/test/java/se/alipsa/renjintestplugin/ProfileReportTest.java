@@ -0,0 +1,48 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProfileReportTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAggregate() throws Exception {
+    File profileDir = folder.newFolder("renjin-profile");
+    File filesDir = new File(profileDir, ProfileReport.FILES_DIRECTORY);
+    FileUtils.writeLines(new File(filesDir, "SumTest.R" + TestProfiler.EXTENSION), "UTF-8", Arrays.asList(
+        "SumTest.R;test.sum();calculateSum;checkInput 2",
+        "SumTest.R;test.sum();calculateSum 6",
+        "SumTest.R;test.sum() 1"));
+    FileUtils.writeLines(new File(filesDir, "sub.FibTest.R" + TestProfiler.EXTENSION), "UTF-8", Arrays.asList(
+        "sub/FibTest.R;test.fib();fib;fib;fib 3",
+        "sub/FibTest.R;test.fib();fib;checkInput 1"));
+
+    ProfileReport report = ProfileReport.aggregate(profileDir, "", 2);
+
+    assertEquals(13, report.getSampleCount());
+    List<String> lines = FileUtils.readLines(report.getFile(), StandardCharsets.UTF_8);
+    assertEquals(5, lines.size());
+    assertEquals("SumTest.R;test.sum() 1", lines.get(0));
+    List<ProfileReport.HotFunction> hotFunctions = report.getHotFunctions();
+    assertEquals(2, hotFunctions.size());
+    assertEquals("calculateSum", hotFunctions.get(0).getName());
+    assertEquals(6, hotFunctions.get(0).getSelfSamples());
+    assertEquals(8, hotFunctions.get(0).getTotalSamples());
+    // fib is counted once per sample even though it calls itself
+    assertEquals("fib", hotFunctions.get(1).getName());
+    assertEquals(3, hotFunctions.get(1).getSelfSamples());
+    assertEquals(4, hotFunctions.get(1).getTotalSamples());
+  }
+}
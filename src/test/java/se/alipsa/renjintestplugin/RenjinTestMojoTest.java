@@ -2,10 +2,24 @@ package se.alipsa.renjintestplugin;
 
 import static se.alipsa.renjintestplugin.ResourceLocator.getResourceAsFile;
 
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 public class RenjinTestMojoTest extends EnhancedAbstractMojoTestCase {
 
+  private static final Pattern PARALLEL_FILE = Pattern.compile("Parallel\\d\\.R");
+
   /**
    * {@inheritDoc}
    */
@@ -42,6 +56,155 @@ public class RenjinTestMojoTest extends EnhancedAbstractMojoTestCase {
     myMojo.execute();
   }
 
+  /**
+   * The test files are run in alphabetical order: SuccessTest.R, failure.R (1 failure), sub/Failure2.S (2 failures),
+   * sub/Failure3.R and sub/Failure4.R
+   */
+  public void testSkipAfterFailureCount() throws Exception {
+    File pom = getResourceAsFile("testPomSkipAfterFailureCount.xml");
+    RenjinTestMojo mojo = (RenjinTestMojo) lookupConfiguredMojo(pom, "testR");
+    mojo.execute();
+
+    Map<String, List<TestResult>> results = resultsByFile(mojo);
+    assertEquals(TestResult.OutCome.SUCCESS, results.get("SuccessTest.R").get(0).getResult());
+    assertTrue(results.get("failure.R").get(0).isFailure());
+    assertEquals(2, results.get("Failure2.S").stream().filter(TestResult::isFailure).count());
+    assertSkipped(results.get("Failure3.R"), "Skipped after 3 failures (skipAfterFailureCount = 2)");
+    assertSkipped(results.get("Failure4.R"), "Skipped after 3 failures (skipAfterFailureCount = 2)");
+  }
+
+  public void testFailFast() throws Exception {
+    File pom = getResourceAsFile("testPomFailFast.xml");
+    RenjinTestMojo mojo = (RenjinTestMojo) lookupConfiguredMojo(pom, "testR");
+    mojo.execute();
+
+    Map<String, List<TestResult>> results = resultsByFile(mojo);
+    assertEquals(TestResult.OutCome.SUCCESS, results.get("SuccessTest.R").get(0).getResult());
+    assertTrue(results.get("failure.R").get(0).isFailure());
+    assertSkipped(results.get("Failure2.S"), "Skipped after 1 failures (skipAfterFailureCount = 1)");
+    assertSkipped(results.get("Failure3.R"), "Skipped after 1 failures (skipAfterFailureCount = 1)");
+    assertSkipped(results.get("Failure4.R"), "Skipped after 1 failures (skipAfterFailureCount = 1)");
+  }
+
+  /**
+   * LoopTest.R has a test function that loops forever and one that passes, PassingTest.R runs after it.
+   */
+  public void testTestTimeout() throws Exception {
+    File pom = getResourceAsFile("testPomTestTimeout.xml");
+    RenjinTestMojo mojo = (RenjinTestMojo) lookupConfiguredMojo(pom, "testR");
+    mojo.execute();
+
+    Map<String, TestResult> results = resultsByMethod(mojo);
+    TestResult loop = results.get("test.loop()");
+    assertEquals(TestResult.OutCome.ERROR, loop.getResult());
+    assertEquals("Timeout: LoopTest.R: test.loop() did not finish within 1 seconds", loop.getIssue());
+    assertEquals(TestResult.OutCome.SUCCESS, results.get("test.zAfterLoop()").getResult());
+    assertEquals(TestResult.OutCome.SUCCESS, results.get("test.passing()").getResult());
+    // the session is replaced after the timeout
+    assertEquals(2, mojo.getStatistics().getTemplateCount());
+  }
+
+  public void testFileTimeout() throws Exception {
+    File pom = getResourceAsFile("testPomFileTimeout.xml");
+    RenjinTestMojo mojo = (RenjinTestMojo) lookupConfiguredMojo(pom, "testR");
+    mojo.execute();
+
+    Map<String, TestResult> results = resultsByMethod(mojo);
+    TestResult loop = results.get("test.loop()");
+    assertEquals(TestResult.OutCome.ERROR, loop.getResult());
+    assertEquals("Timeout: LoopTest.R did not finish within 1 seconds", loop.getIssue());
+    assertEquals(TestResult.OutCome.SUCCESS, results.get("test.passing()").getResult());
+    assertEquals(2, mojo.getStatistics().getTemplateCount());
+  }
+
+  /**
+   * HangingTest.R catches the interrupts of the fileTimeout so the forked JVM is killed 10 seconds later, PassingTest.R
+   * then runs on a new one.
+   */
+  public void testForkKilledAfterFileTimeout() throws Exception {
+    File pom = getResourceAsFile("testPomForkTimeout.xml");
+    RenjinTestMojo mojo = (RenjinTestMojo) lookupConfiguredMojo(pom, "testR");
+    mojo.execute();
+
+    Map<String, List<TestResult>> results = resultsByFile(mojo);
+    assertEquals(1, results.get("HangingTest.R").size());
+    TestResult hanging = results.get("HangingTest.R").get(0);
+    assertEquals(TestResult.OutCome.ERROR, hanging.getResult());
+    assertEquals("Timeout: forked JVM killed after running HangingTest.R for 11 seconds", hanging.getIssue());
+    assertEquals(TestResult.OutCome.SUCCESS, resultsByMethod(mojo).get("test.passing()").getResult());
+    assertEquals(2, mojo.getStatistics().getTemplateCount());
+  }
+
+  /**
+   * The six test files in src/test/parallel are run by 4 threads: the results must be the same as when they run one
+   * after the other, and the output of each test file must come in one piece.
+   */
+  public void testThreadCount() throws Exception {
+    RenjinTestMojo serial = (RenjinTestMojo) lookupConfiguredMojo(getResourceAsFile("testPomSerial.xml"), "testR");
+    serial.execute();
+    RenjinTestMojo parallel = (RenjinTestMojo) lookupConfiguredMojo(getResourceAsFile("testPomParallel.xml"), "testR");
+    MessageCollector collector = new MessageCollector();
+    Logger.getRootLogger().addAppender(collector);
+    try {
+      parallel.execute();
+    } finally {
+      Logger.getRootLogger().removeAppender(collector);
+    }
+
+    assertEquals(outcomes(serial), outcomes(parallel));
+    // e.g. "# Running test test.first() in Parallel1.R", the lines of one file must not be mixed with other files
+    List<String> fileOrder = new ArrayList<>();
+    for (String message : collector.messages) {
+      Matcher matcher = PARALLEL_FILE.matcher(message);
+      if (matcher.find() && (fileOrder.isEmpty() || !fileOrder.get(fileOrder.size() - 1).equals(matcher.group()))) {
+        fileOrder.add(matcher.group());
+      }
+    }
+    assertEquals(fileOrder.toString(), 6, fileOrder.size());
+    assertEquals(fileOrder.toString(), 6, new HashSet<>(fileOrder).size());
+  }
+
+  private static List<String> outcomes(RenjinTestMojo mojo) {
+    return mojo.getResults().stream()
+        .map(res -> res.getTestFile().getName() + " " + res.getTestMethod() + " " + res.getResult())
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  private static class MessageCollector extends AppenderSkeleton {
+
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    protected void append(LoggingEvent event) {
+      messages.add(event.getRenderedMessage());
+    }
+
+    @Override
+    public void close() {
+      // nothing to release
+    }
+
+    @Override
+    public boolean requiresLayout() {
+      return false;
+    }
+  }
+
+  private static Map<String, TestResult> resultsByMethod(RenjinTestMojo mojo) {
+    return mojo.getResults().stream().collect(Collectors.toMap(TestResult::getTestMethod, res -> res));
+  }
+
+  private static Map<String, List<TestResult>> resultsByFile(RenjinTestMojo mojo) {
+    return mojo.getResults().stream().collect(Collectors.groupingBy(res -> res.getTestFile().getName()));
+  }
+
+  private static void assertSkipped(List<TestResult> fileResults, String issue) {
+    assertEquals(1, fileResults.size());
+    assertEquals(TestResult.OutCome.SKIPPED, fileResults.get(0).getResult());
+    assertEquals(issue, fileResults.get(0).getIssue());
+  }
+
   public void testSomethingThatFails() {
     fail("This is a deliberate failure");
   }
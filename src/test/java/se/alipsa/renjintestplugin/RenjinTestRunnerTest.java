@@ -0,0 +1,165 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.renjin.parser.RParser;
+import org.renjin.sexp.Environment;
+import org.renjin.sexp.ExpressionVector;
+import org.renjin.sexp.SEXP;
+import org.renjin.sexp.Symbol;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RenjinTestRunnerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testTestthatFileSelection() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File testthatDir = folder.newFolder("tests", "testthat");
+    File driver = new File(testDir, "testthat.R");
+    File testFile = new File(testthatDir, "test-sum.R");
+    File helper = new File(testthatDir, "helper-data.R");
+    File other = new File(testDir, "other.R");
+
+    assertTrue(RenjinTestRunner.isTestFile(driver, false));
+    assertFalse(RenjinTestRunner.isTestFile(testFile, false));
+    assertFalse(RenjinTestRunner.isTestFile(helper, false));
+    assertTrue(RenjinTestRunner.isTestFile(other, false));
+
+    assertFalse(RenjinTestRunner.isTestFile(driver, true));
+    assertTrue(RenjinTestRunner.isTestFile(testFile, true));
+    assertFalse(RenjinTestRunner.isTestFile(helper, true));
+    assertTrue(RenjinTestRunner.isTestFile(other, true));
+  }
+
+  @Test
+  public void testParallelFunctionsFile() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File annotated = new File(testDir, "AnnotatedTest.R");
+    FileUtils.write(annotated, "library(hamcrest)\n# @parallel\ntest.a <- function() {}\n", StandardCharsets.UTF_8);
+    File simulation = new File(folder.newFolder("tests", "sim"), "BigSimulationTest.R");
+    FileUtils.write(simulation, "test.a <- function() {}\n", StandardCharsets.UTF_8);
+    File plain = new File(testDir, "PlainTest.R");
+    FileUtils.write(plain, "# not @parallel\ntest.a <- function() {}\n", StandardCharsets.UTF_8);
+
+    RunnerSettings settings = new RunnerSettings();
+    settings.setTestOutputDirectory(testDir);
+    settings.setParallelFunctionFiles(Arrays.asList("*Simulation*.R"));
+    RenjinTestRunner runner = new RenjinTestRunner(null, settings);
+    assertTrue(runner.isParallelFunctionsFile(annotated));
+    assertTrue(runner.isParallelFunctionsFile(simulation));
+    assertFalse(runner.isParallelFunctionsFile(plain));
+  }
+
+  @Test
+  public void testTestthatDescription() {
+    ExpressionVector expressions = RParser.parseSource(
+        "context('sums')\n"
+            + "test_that('one plus one', { expect_equal(1 + 1, 2) })\n"
+            + "testthat::test_that(\"two plus two\", { expect_equal(2 + 2, 4) })\n");
+    assertNull(RenjinTestRunner.testthatDescription(expressions.getElementAsSEXP(0)));
+    assertEquals("one plus one", RenjinTestRunner.testthatDescription(expressions.getElementAsSEXP(1)));
+    assertEquals("two plus two", RenjinTestRunner.testthatDescription(expressions.getElementAsSEXP(2)));
+  }
+
+  @Test
+  public void testRestoreTemplate() throws Exception {
+    File srcDir = folder.newFolder("src");
+    FileUtils.write(new File(srcDir, "greet.R"), "greet <- function() 'hello'\ngreeting <- 'hi'\n",
+        StandardCharsets.UTF_8);
+    File testDir = folder.newFolder("tests");
+    File testFile = new File(testDir, "LeakTest.R");
+    FileUtils.write(testFile, "greet <<- function() 'changed'\nrm('greeting', envir = globalenv())\n"
+        + "leaked <<- 1\n", StandardCharsets.UTF_8);
+
+    RunnerSettings settings = new RunnerSettings();
+    settings.setTestOutputDirectory(testDir);
+    settings.setSourceDirectory(srcDir);
+    settings.setTestTimeout(60);
+    settings.setFileTimeout(60);
+    TestLog log = new TestLog(LoggerFactory.getLogger(RenjinTestRunnerTest.class), false);
+    RenjinTestRunner runner = RenjinTestRunner.create(getClass().getClassLoader(), settings, log);
+    Environment global = runner.getSession().getGlobalEnvironment();
+    SEXP greet = global.getVariableUnsafe(Symbol.get("greet"));
+    SEXP greeting = global.getVariableUnsafe(Symbol.get("greeting"));
+
+    runner.runTestFile(testFile, log);
+
+    assertSame(greet, global.getVariableUnsafe(Symbol.get("greet")));
+    assertSame(greeting, global.getVariableUnsafe(Symbol.get("greeting")));
+    assertFalse(global.hasVariable(Symbol.get("leaked")));
+  }
+
+  @Test
+  public void testTestFilesAreIsolated() throws Exception {
+    File srcDir = folder.newFolder("src");
+    FileUtils.write(new File(srcDir, "greet.R"), "greeting <- 'hi'\n", StandardCharsets.UTF_8);
+    File testDir = folder.newFolder("tests");
+    File firstFile = new File(testDir, "FirstTest.R");
+    FileUtils.write(firstFile, "library(hamcrest)\n"
+        + "x <- 1\n"
+        + "greeting <<- 'changed'\n"
+        + "test.defines <- function() {\n  y <<- 2\n  assertThat(x, equalTo(1))\n}\n", StandardCharsets.UTF_8);
+    File secondFile = new File(testDir, "SecondTest.R");
+    FileUtils.write(secondFile, "library(hamcrest)\n"
+        + "test.isolated <- function() {\n"
+        + "  assertTrue(!exists('x'))\n"
+        + "  assertTrue(!exists('y'))\n"
+        + "  assertThat(greeting, equalTo('hi'))\n"
+        + "}\n", StandardCharsets.UTF_8);
+
+    RunnerSettings settings = new RunnerSettings();
+    settings.setTestOutputDirectory(testDir);
+    settings.setSourceDirectory(srcDir);
+    TestLog log = new TestLog(LoggerFactory.getLogger(RenjinTestRunnerTest.class), false);
+    RenjinTestRunner runner = RenjinTestRunner.create(getClass().getClassLoader(), settings, log);
+
+    for (TestResult result : runner.runTestFile(firstFile, log)) {
+      assertEquals(result.getTestMethod(), TestResult.OutCome.SUCCESS, result.getResult());
+    }
+    List<TestResult> results = runner.runTestFile(secondFile, log);
+    assertEquals(2, results.size());
+    for (TestResult result : results) {
+      assertEquals(result.getTestMethod() + ": " + result.getIssue(), TestResult.OutCome.SUCCESS, result.getResult());
+    }
+  }
+
+  @Test
+  public void testTestTimeout() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File testFile = new File(testDir, "LoopTest.R");
+    FileUtils.write(testFile, "test.loop <- function() repeat {}\n", StandardCharsets.UTF_8);
+
+    RunnerSettings settings = new RunnerSettings();
+    settings.setTestOutputDirectory(testDir);
+    settings.setTestTimeout(1);
+    TestLog log = new TestLog(LoggerFactory.getLogger(RenjinTestRunnerTest.class), false);
+    RenjinTestRunner runner = RenjinTestRunner.create(getClass().getClassLoader(), settings, log);
+    assertFalse(runner.isBroken());
+
+    List<TestResult> results = runner.runTestFile(testFile, log);
+
+    TestResult loop = results.get(results.size() - 1);
+    assertEquals("test.loop()", loop.getTestMethod());
+    assertEquals(TestResult.OutCome.ERROR, loop.getResult());
+    assertEquals("Timeout: LoopTest.R: test.loop() did not finish within 1 seconds", loop.getIssue());
+    assertTrue(loop.getError() instanceof TimeoutException);
+    assertTrue(runner.isBroken());
+  }
+}
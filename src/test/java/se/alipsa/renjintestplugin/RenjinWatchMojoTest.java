@@ -0,0 +1,98 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RenjinWatchMojoTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSelectReferencing() throws Exception {
+    File sumTest = folder.newFile("SumTest.R");
+    FileUtils.write(sumTest, "test.sum <- function() {\n  assertThat(mySum(1, 2), equalTo(3))\n}\n",
+        StandardCharsets.UTF_8);
+    File dataTest = folder.newFile("DataTest.R");
+    FileUtils.write(dataTest, "df <- read.csv('data/persons.csv')\nx <- mySum.old(1)\n", StandardCharsets.UTF_8);
+    List<File> testFiles = Arrays.asList(sumTest, dataTest);
+
+    assertEquals(Collections.singletonList(sumTest),
+        RenjinWatchMojo.selectReferencing(testFiles, Collections.singleton("mySum")));
+    assertEquals(Collections.singletonList(dataTest),
+        RenjinWatchMojo.selectReferencing(testFiles, Collections.singleton("persons.csv")));
+    assertEquals(testFiles,
+        RenjinWatchMojo.selectReferencing(testFiles, new HashSet<>(Arrays.asList("mySum", "mySum.old"))));
+    assertTrue(RenjinWatchMojo.selectReferencing(testFiles, Collections.emptySet()).isEmpty());
+  }
+
+  @Test
+  public void testSelectReferencingMatchesWholeNames() throws Exception {
+    File dotTest = folder.newFile("DotTest.R");
+    FileUtils.write(dotTest, "x <- my.fun(1)\n", StandardCharsets.UTF_8);
+    File longerTest = folder.newFile("LongerTest.R");
+    FileUtils.write(longerTest, "x <- my.fun2(1) + xmy.fun(2) + my.fun.old(3)\n", StandardCharsets.UTF_8);
+    File regexTest = folder.newFile("RegexTest.R");
+    FileUtils.write(regexTest, "df <- read.csv('data(1).csv')\n", StandardCharsets.UTF_8);
+    List<File> testFiles = Arrays.asList(dotTest, longerTest, regexTest);
+
+    // the dot is an ordinary character in R names, not a regex wildcard
+    assertEquals(Collections.singletonList(dotTest),
+        RenjinWatchMojo.selectReferencing(testFiles, Collections.singleton("my.fun")));
+    assertTrue(RenjinWatchMojo.selectReferencing(testFiles, Collections.singleton("myXfun")).isEmpty());
+    assertEquals(Collections.singletonList(regexTest),
+        RenjinWatchMojo.selectReferencing(testFiles, Collections.singleton("data(1).csv")));
+  }
+
+  @Test
+  public void testTestthatFiles() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File testthatDir = folder.newFolder("tests", "testthat");
+    File driver = new File(testDir, "testthat.R");
+    File other = new File(testDir, "OtherTest.R");
+    File sumTest = new File(testthatDir, "test-sum.R");
+    File meanTest = new File(testthatDir, "test-mean.R");
+    File helper = new File(testthatDir, "helper-data.R");
+    File elsewhere = new File(folder.newFolder("other", "testthat"), "test-other.R");
+
+    // testthat run by the driver: a changed helper or test file runs the testthat.R next to the directory
+    List<File> driverFiles = Arrays.asList(driver, other);
+    assertEquals(Collections.singletonList(driver), RenjinWatchMojo.testthatFiles(driverFiles, helper));
+    assertEquals(Collections.singletonList(driver), RenjinWatchMojo.testthatFiles(driverFiles, sumTest));
+
+    // testthat run natively: a changed helper runs all the test files in its directory
+    List<File> nativeFiles = Arrays.asList(sumTest, meanTest, other, elsewhere);
+    assertEquals(Arrays.asList(sumTest, meanTest), RenjinWatchMojo.testthatFiles(nativeFiles, helper));
+  }
+
+  @Test
+  public void testWatcherReportsChangedFiles() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File existing = new File(testDir, "SumTest.R");
+    FileUtils.write(existing, "x <- 1\n", StandardCharsets.UTF_8);
+    try (SourceWatcher watcher = new SourceWatcher(Arrays.asList(testDir, new File(folder.getRoot(), "missing")))) {
+      assertEquals(Collections.singletonList(testDir), watcher.getRoots());
+      FileUtils.write(existing, "x <- 2\n", StandardCharsets.UTF_8);
+      Set<File> changes = watcher.awaitChanges(100);
+      assertEquals(Collections.singleton(existing), changes);
+
+      File subDir = new File(testDir, "sub");
+      File created = new File(subDir, "NewTest.R");
+      FileUtils.write(created, "x <- 3\n", StandardCharsets.UTF_8);
+      assertTrue(watcher.awaitChanges(100).contains(created));
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RunOrderTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testOrderFromSavedHistory() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File fast = new File(testDir, "Fast.R");
+    File slow = new File(testDir, "Slow.R");
+    File failed = new File(testDir, "Failed.R");
+    File unknown = new File(testDir, "New.R");
+    File historyFile = new File(folder.getRoot(), "history.dat");
+
+    TestHistory history = new TestHistory(historyFile, testDir);
+    history.update(Arrays.asList(
+        result(fast, TestResult.OutCome.SUCCESS, 1_000),
+        result(slow, TestResult.OutCome.SUCCESS, 5_000),
+        result(failed, TestResult.OutCome.FAILURE, 2_000)));
+    history.save();
+
+    TestHistory loaded = new TestHistory(historyFile, testDir);
+    List<File> files = Arrays.asList(fast, slow, failed, unknown);
+    assertEquals(Arrays.asList(unknown, slow, failed, fast), RunOrder.sort(files, "longestfirst", loaded));
+    assertEquals(Arrays.asList(failed, fast, slow, unknown), RunOrder.sort(files, "failedfirst", loaded));
+    assertEquals(Arrays.asList(failed, unknown, slow, fast), RunOrder.sort(files, "failedfirst,longestfirst", loaded));
+    assertEquals(Arrays.asList(failed, fast, unknown, slow), RunOrder.sort(files, "alphabetical", loaded));
+    assertEquals(files, RunOrder.sort(files, "filesystem", loaded));
+  }
+
+  @Test(expected = MojoExecutionException.class)
+  public void testUnknownRunOrder() throws Exception {
+    RunOrder.sort(Arrays.asList(new File("a.R")), "fastestfirst", new TestHistory(new File(folder.getRoot(), "h.dat"), folder.getRoot()));
+  }
+
+  private TestResult result(File testFile, TestResult.OutCome outCome, long durationNanos) {
+    TestResult result = new TestResult(testFile);
+    result.setTestMethod("test" + durationNanos + outCome + "()");
+    result.setResult(outCome);
+    result.setDurationNanos(durationNanos);
+    return result;
+  }
+}
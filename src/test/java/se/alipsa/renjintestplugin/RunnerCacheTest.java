@@ -0,0 +1,165 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class RunnerCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSharedByClasspathWithSameJars() throws Exception {
+    RunnerCache.clear();
+    File jar = folder.newFile("dep.jar");
+    File otherJar = folder.newFile("other.jar");
+    List<String> moduleA = Arrays.asList(folder.newFolder("a").getAbsolutePath(), jar.getAbsolutePath());
+    List<String> moduleB = Arrays.asList(folder.newFolder("b").getAbsolutePath(), jar.getAbsolutePath());
+    List<String> moduleC = Arrays.asList(otherJar.getAbsolutePath());
+
+    RunnerCache cache = RunnerCache.forClasspath(moduleA, 1);
+    assertSame(cache, RunnerCache.forClasspath(moduleB, 1));
+    assertNotSame(cache, RunnerCache.forClasspath(moduleC, 1));
+    // the max size is 1 so the first one was dropped
+    assertNotSame(cache, RunnerCache.forClasspath(moduleA, 1));
+    assertNull(cache.take("template", moduleA));
+    RunnerCache.clear();
+  }
+
+  @Test
+  public void testRunnersAreKeptPerModule() throws Exception {
+    File jar = folder.newFile("dep.jar");
+    List<String> moduleA = Arrays.asList(folder.newFolder("a").getAbsolutePath(), jar.getAbsolutePath());
+    List<String> moduleB = Arrays.asList(folder.newFolder("b").getAbsolutePath(), jar.getAbsolutePath());
+    List<String> otherJars = Arrays.asList(moduleA.get(0), folder.newFile("other.jar").getAbsolutePath());
+
+    assertEquals(RunnerCache.moduleKey(moduleA), RunnerCache.moduleKey(otherJars));
+    assertNotEquals(RunnerCache.moduleKey(moduleA), RunnerCache.moduleKey(moduleB));
+  }
+
+  @Test
+  public void testIdleRunnersAreCapped() throws Exception {
+    RunnerCache.clear();
+    File jar = jar("dep.jar", "dep.txt");
+    File module = folder.newFolder("a");
+    FileUtils.write(new File(module, "a.txt"), "a", StandardCharsets.UTF_8);
+    List<String> classpath = Arrays.asList(module.getAbsolutePath(), jar.getAbsolutePath());
+
+    try (RunnerCache cache = RunnerCache.forClasspath(classpath, 1)) {
+      URLClassLoader classLoader = cache.createClassLoader(classpath);
+      List<RenjinTestRunner> runners = Arrays.asList(runner(classLoader), runner(classLoader), runner(classLoader));
+      cache.release("template", classpath, runners, 2);
+      assertEquals(2, cache.idleCount(classpath));
+      // the dropped runner shares the class loader with the ones that are kept
+      assertNotNull(classLoader.getResource("a.txt"));
+      assertNull(cache.take("other", classpath));
+      assertNotNull(cache.take("template", classpath));
+    }
+    RunnerCache.clear();
+  }
+
+  @Test
+  public void testOnlyTheLatestTemplateIsKept() throws Exception {
+    RunnerCache.clear();
+    File jar = jar("dep.jar", "dep.txt");
+    File module = folder.newFolder("a");
+    FileUtils.write(new File(module, "a.txt"), "a", StandardCharsets.UTF_8);
+    List<String> classpath = Arrays.asList(module.getAbsolutePath(), jar.getAbsolutePath());
+
+    try (RunnerCache cache = RunnerCache.forClasspath(classpath, 1)) {
+      URLClassLoader oldLoader = cache.createClassLoader(classpath);
+      cache.release("old", classpath, Arrays.asList(runner(oldLoader), runner(oldLoader)), 4);
+      URLClassLoader takenLoader = cache.createClassLoader(classpath);
+      cache.release("old", classpath, Collections.singletonList(runner(takenLoader)), 4);
+      assertEquals(3, cache.idleCount(classpath));
+      RenjinTestRunner taken = cache.take("old", classpath);
+      assertSame(takenLoader, taken.getClassLoader());
+
+      URLClassLoader newLoader = cache.createClassLoader(classpath);
+      cache.release("new", classpath, Collections.singletonList(runner(newLoader)), 4);
+      assertEquals(1, cache.idleCount(classpath));
+      assertNull(cache.take("old", classpath));
+      // the runners of the old template are dropped, unless taken by an execution that is not done yet
+      assertNull(oldLoader.getResource("a.txt"));
+      assertNotNull(takenLoader.getResource("a.txt"));
+      assertNotNull(newLoader.getResource("a.txt"));
+
+      // the latest release wins
+      cache.release("old", classpath, Collections.singletonList(taken), 4);
+      assertNotNull(cache.take("old", classpath));
+      assertNotNull(takenLoader.getResource("a.txt"));
+      assertNull(newLoader.getResource("a.txt"));
+    }
+    RunnerCache.clear();
+  }
+
+  @Test
+  public void testModuleClassLoader() throws Exception {
+    RunnerCache.clear();
+    File moduleA = folder.newFolder("a");
+    File moduleB = folder.newFolder("b");
+    FileUtils.write(new File(moduleA, "a.txt"), "a", StandardCharsets.UTF_8);
+    FileUtils.write(new File(moduleB, "b.txt"), "b", StandardCharsets.UTF_8);
+    List<String> classpath = Arrays.asList(moduleA.getAbsolutePath(), jar("dep.jar", "dep.txt").getAbsolutePath());
+
+    try (RunnerCache cache = RunnerCache.forClasspath(classpath, 1)) {
+      URLClassLoader classLoader = cache.createClassLoader(classpath);
+      assertNotNull(classLoader.getResource("a.txt"));
+      assertNull(classLoader.getResource("b.txt"));
+      assertNotNull(classLoader.getResource("a.txt"));
+    }
+    RunnerCache.clear();
+  }
+
+  @Test
+  public void testDroppedClassLoadersAreClosed() throws Exception {
+    RunnerCache.clear();
+    File jar = jar("dep.jar", "dep.txt");
+    List<String> classpath = Arrays.asList(folder.newFolder("a").getAbsolutePath(), jar.getAbsolutePath());
+    List<String> otherClasspath = Arrays.asList(jar("other.jar", "other.txt").getAbsolutePath());
+
+    RunnerCache cache = RunnerCache.forClasspath(classpath, 1);
+    URLClassLoader classLoader = cache.createClassLoader(classpath);
+    assertNotNull(classLoader.getResource("dep.txt"));
+    // dropped while still in use, the class loader is closed when the execution is done with it
+    RunnerCache.forClasspath(otherClasspath, 1).close();
+    assertNotNull(classLoader.getResource("dep.txt"));
+    cache.close();
+    assertNull(classLoader.getResource("dep.txt"));
+    RunnerCache.clear();
+  }
+
+  private static RenjinTestRunner runner(ClassLoader classLoader) {
+    RunnerSettings settings = new RunnerSettings();
+    return new RenjinTestRunner(null, settings, classLoader);
+  }
+
+  private File jar(String name, String entry) throws Exception {
+    File jar = new File(folder.getRoot(), name);
+    try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+      out.putNextEntry(new JarEntry(entry));
+      out.write(entry.getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    }
+    return jar;
+  }
+}
@@ -0,0 +1,54 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+public class StringReplacementFileCopierTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReplaceSeveralKeys() throws Exception {
+    File source = folder.newFolder("source");
+    File target = folder.newFolder("target");
+    FileUtils.write(new File(source, "test.R"),
+        "library(xmlr)\nlibrary(foo)\nprint('unchanged')\n", StandardCharsets.UTF_8);
+    FileUtils.write(new File(source, "data.csv"), "library(xmlr)", StandardCharsets.UTF_8);
+
+    Properties props = new Properties();
+    props.setProperty("library(xmlr)", "library('se.alipsa:xmlr')");
+    props.setProperty("library(foo)", "library('se.alipsa:foo')");
+    StringReplacementFileCopier.copyDirectory(source, target, new SuffixFileFilter("R"), props);
+
+    assertEquals("library('se.alipsa:xmlr')\nlibrary('se.alipsa:foo')\nprint('unchanged')\n",
+        FileUtils.readFileToString(new File(target, "test.R"), StandardCharsets.UTF_8));
+    assertEquals("library(xmlr)", FileUtils.readFileToString(new File(target, "data.csv"), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testLongestKeyWins() {
+    Properties props = new Properties();
+    props.setProperty("lib", "X");
+    props.setProperty("library", "Y");
+    props.setProperty("ary(", "Z");
+    assertEquals("Y(a) X", StringReplacer.of(props).replace("library(a) lib"));
+  }
+
+  @Test
+  public void testReplacementIsNotScannedAgain() {
+    Properties props = new Properties();
+    props.setProperty("a", "ab");
+    props.setProperty("b", "c");
+    assertEquals("abc", StringReplacer.of(props).replace("ab"));
+  }
+}
@@ -0,0 +1,111 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDaemonTest {
+
+  private static final String KEY = "test";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private TestDaemon daemon;
+  private Thread serveThread;
+  private TestDaemonClient client;
+
+  @Before
+  public void startDaemon() throws Exception {
+    File daemonDirectory = folder.newFolder("daemon");
+    daemon = new TestDaemon(new File(daemonDirectory, KEY + ".properties"), TimeUnit.HOURS.toMillis(1), 1);
+    serveThread = new Thread(() -> {
+      try {
+        daemon.serve();
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    serveThread.setDaemon(true);
+    serveThread.start();
+    // the command is never run since the daemon is already listening
+    client = new TestDaemonClient(daemonDirectory, KEY, Collections.singletonList("no-java"), 60, 1, 10_000);
+  }
+
+  @After
+  public void stopDaemon() throws Exception {
+    daemon.stop();
+    serveThread.join(10_000);
+    RunnerCache.clear();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File testFile = new File(testDir, "SumTest.R");
+    FileUtils.write(testFile, "test.sum <- function() {\n  if (1 + 2 != 3) stop('wrong sum')\n}\n",
+        StandardCharsets.UTF_8);
+    RunnerSettings settings = settings(testDir);
+
+    Properties info = awaitDaemon();
+    TestLog log = new TestLog(LoggerFactory.getLogger(TestDaemonTest.class), false);
+    List<TestResult> results;
+    try (JvmFork connection = client.connect(info, "template", Collections.emptyList(), settings, log)) {
+      results = connection.runTestFile(testFile, log);
+    }
+    TestResult sum = results.stream().filter(res -> "test.sum()".equals(res.getTestMethod())).findFirst()
+        .orElseThrow(() -> new AssertionError("No result for test.sum() in " + results));
+    assertEquals(TestResult.OutCome.SUCCESS, sum.getResult());
+    assertEquals(testFile, sum.getTestFile());
+  }
+
+  @Test
+  public void testWrongTokenIsRejected() throws Exception {
+    Properties info = (Properties) awaitDaemon().clone();
+    info.setProperty(TestDaemon.TOKEN, "not the token");
+    try {
+      client.connect(info, "template", Collections.emptyList(), settings(folder.newFolder("tests")),
+          new TestLog(LoggerFactory.getLogger(TestDaemonTest.class), false));
+      fail("Expected the daemon to drop a connection with the wrong token");
+    } catch (IOException e) {
+      // expected, the daemon closes the connection without a reply
+    }
+  }
+
+  private static RunnerSettings settings(File testDir) {
+    RunnerSettings settings = new RunnerSettings();
+    settings.setTestOutputDirectory(testDir);
+    settings.setTestTimeout(60);
+    settings.setFileTimeout(60);
+    return settings;
+  }
+
+  private Properties awaitDaemon() throws Exception {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (true) {
+      try {
+        return client.ensureRunning();
+      } catch (IOException e) {
+        // the daemon has not written its info file yet and the client could not start one
+        assertTrue("The daemon did not start: " + e, System.currentTimeMillis() < deadline);
+        TimeUnit.MILLISECONDS.sleep(50);
+      }
+    }
+  }
+}
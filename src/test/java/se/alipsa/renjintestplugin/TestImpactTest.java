@@ -0,0 +1,64 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestImpactTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testOnlyTestsUsingChangedFunctionsAreAffected() throws Exception {
+    File sourceDir = folder.newFolder("R");
+    File testDir = folder.newFolder("tests");
+    File stateFile = new File(folder.getRoot(), "impact.dat");
+    File script = new File(sourceDir, "calc.R");
+    FileUtils.write(script, "add <- function(x, y) x + y\nmul <- function(x, y) x * y\nfactor <- 2\n",
+        StandardCharsets.UTF_8);
+    File addTest = new File(testDir, "AddTest.R");
+    FileUtils.write(addTest, "test.add <- function() stopifnot(add(1, 2) == 3)\n", StandardCharsets.UTF_8);
+    File mulTest = new File(testDir, "MulTest.R");
+    FileUtils.write(mulTest, "test.mul <- function() stopifnot(mul(factor, 2) == 4)\n", StandardCharsets.UTF_8);
+
+    TestImpact impact = new TestImpact(stateFile, testDir, sourceDir, "inputs");
+    assertTrue(impact.isAffected(addTest));
+    assertTrue(impact.isAffected(mulTest));
+    List<TestResult> results = new ArrayList<>();
+    results.add(success(addTest, "calc.R#add"));
+    results.add(success(mulTest, "calc.R#mul", "calc.R"));
+    impact.save(results);
+
+    impact = new TestImpact(stateFile, testDir, sourceDir, "inputs");
+    assertFalse(impact.isAffected(addTest));
+    assertFalse(impact.isAffected(mulTest));
+
+    FileUtils.write(script, "add <- function(x, y) x + y\nmul <- function(x, y) y * x\nfactor <- 2\n",
+        StandardCharsets.UTF_8);
+    impact = new TestImpact(stateFile, testDir, sourceDir, "inputs");
+    assertFalse(impact.isAffected(addTest));
+    assertTrue(impact.isAffected(mulTest));
+
+    impact = new TestImpact(stateFile, testDir, sourceDir, "other inputs");
+    assertTrue(impact.isAffected(addTest));
+  }
+
+  private static TestResult success(File testFile, String... dependencies) {
+    TestResult result = new TestResult(testFile);
+    result.setResult(TestResult.OutCome.SUCCESS);
+    result.setSourceDependencies(new TreeSet<>(Arrays.asList(dependencies)));
+    return result;
+  }
+}
@@ -0,0 +1,75 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestShardingTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testShardsCoverAllFilesOnce() throws Exception {
+    File testDir = folder.newFolder("tests");
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      File file = new File(testDir, "Test" + i + ".R");
+      FileUtils.write(file, repeat("x <- 1\n", i + 1), StandardCharsets.UTF_8);
+      files.add(file);
+    }
+    TestHistory history = new TestHistory(new File(folder.getRoot(), "history.dat"), testDir);
+
+    List<File> all = new ArrayList<>();
+    for (int shard = 0; shard < 3; shard++) {
+      List<File> shardFiles = TestSharding.select(files, shard, 3, history);
+      assertEquals(shardFiles, TestSharding.select(files, shard, 3, history));
+      all.addAll(shardFiles);
+    }
+    assertEquals(files.size(), all.size());
+    assertEquals(new HashSet<>(files), new HashSet<>(all));
+  }
+
+  @Test
+  public void testBalancedByHistory() throws Exception {
+    File testDir = folder.newFolder("tests");
+    File slow = new File(testDir, "Slow.R");
+    File fast1 = new File(testDir, "Fast1.R");
+    File fast2 = new File(testDir, "Fast2.R");
+    for (File file : Arrays.asList(slow, fast1, fast2)) {
+      FileUtils.write(file, "x <- 1\n", StandardCharsets.UTF_8);
+    }
+    TestHistory history = new TestHistory(new File(folder.getRoot(), "history.dat"), testDir);
+    history.update(Arrays.asList(result(slow, 10_000), result(fast1, 1_000), result(fast2, 1_000)));
+
+    List<File> files = Arrays.asList(slow, fast1, fast2);
+    assertEquals(Arrays.asList(slow), TestSharding.select(files, 0, 2, history));
+    assertEquals(Arrays.asList(fast1, fast2), TestSharding.select(files, 1, 2, history));
+  }
+
+  private TestResult result(File testFile, long durationNanos) {
+    TestResult result = new TestResult(testFile);
+    result.setTestMethod(testFile.getName() + "()");
+    result.setResult(TestResult.OutCome.SUCCESS);
+    result.setDurationNanos(durationNanos);
+    return result;
+  }
+
+  private String repeat(String text, int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(text);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,90 @@
+package se.alipsa.renjintestplugin;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSourceSyncTest {
+
+  private static final String[] EXTENSIONS = new String[]{"R", "r", "S", "s"};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSyncNewChangedUnchangedAndDeletedFiles() throws Exception {
+    File sourceDir = folder.newFolder("src");
+    File targetDir = new File(folder.getRoot(), "target");
+    File sum = write(new File(sourceDir, "SumTest.R"), "test.sum <- function() {}\n");
+    File mean = write(new File(sourceDir, "sub/MeanTest.R"), "test.mean <- function() {}\n");
+    write(new File(sourceDir, "data.csv"), "a,b\n1,2\n");
+
+    // new files
+    List<File> changed = sync(sourceDir, targetDir, null);
+    assertEquals(new HashSet<>(Arrays.asList(new File(targetDir, "SumTest.R"), new File(targetDir, "sub/MeanTest.R"),
+        new File(targetDir, "data.csv"))), new HashSet<>(changed));
+
+    // unchanged files
+    assertTrue(sync(sourceDir, targetDir, null).isEmpty());
+
+    // changed file
+    write(sum, "test.sum <- function() { stop('changed') }\n");
+    assertEquals(Collections.singletonList(new File(targetDir, "SumTest.R")), sync(sourceDir, targetDir, null));
+    assertEquals("test.sum <- function() { stop('changed') }\n",
+        FileUtils.readFileToString(new File(targetDir, "SumTest.R"), StandardCharsets.UTF_8));
+
+    // touched but with the same content
+    assertTrue(mean.setLastModified(mean.lastModified() + 10_000));
+    assertTrue(sync(sourceDir, targetDir, null).isEmpty());
+
+    // deleted source, only stale R files are deleted from the target
+    assertTrue(mean.delete());
+    File extra = write(new File(targetDir, "generated.txt"), "kept");
+    assertEquals(Collections.singletonList(new File(targetDir, "sub/MeanTest.R")), sync(sourceDir, targetDir, null));
+    assertFalse(new File(targetDir, "sub/MeanTest.R").exists());
+    assertTrue(extra.exists());
+  }
+
+  @Test
+  public void testChangedReplacementsCopyAgain() throws Exception {
+    File sourceDir = folder.newFolder("src");
+    File targetDir = new File(folder.getRoot(), "target");
+    write(new File(sourceDir, "LibTest.R"), "library('org.renjin.cran:xmlr')\n");
+    Properties replacements = new Properties();
+    replacements.setProperty("org.renjin.cran:xmlr", "se.alipsa:xmlr");
+
+    assertEquals(1, sync(sourceDir, targetDir, replacements).size());
+    assertEquals("library('se.alipsa:xmlr')\n",
+        FileUtils.readFileToString(new File(targetDir, "LibTest.R"), StandardCharsets.UTF_8));
+    assertTrue(sync(sourceDir, targetDir, replacements).isEmpty());
+
+    replacements.setProperty("org.renjin.cran:xmlr", "com.acme:xmlr");
+    assertEquals(1, sync(sourceDir, targetDir, replacements).size());
+    assertEquals("library('com.acme:xmlr')\n",
+        FileUtils.readFileToString(new File(targetDir, "LibTest.R"), StandardCharsets.UTF_8));
+  }
+
+  private static List<File> sync(File sourceDir, File targetDir, Properties replacements) throws Exception {
+    TestSourceSync sync = new TestSourceSync(targetDir, EXTENSIONS, replacements);
+    sync.addDirectory(sourceDir, false);
+    return sync.sync();
+  }
+
+  private static File write(File file, String content) throws Exception {
+    FileUtils.write(file, content, StandardCharsets.UTF_8);
+    return file;
+  }
+}
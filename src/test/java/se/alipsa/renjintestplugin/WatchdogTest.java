@@ -0,0 +1,36 @@
+package se.alipsa.renjintestplugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WatchdogTest {
+
+  @Test
+  public void testInterruptsWhenExpired() {
+    Watchdog.Deadline deadline = Watchdog.interruptAfter(50);
+    try {
+      Thread.sleep(10_000);
+      fail("Expected the sleep to be interrupted");
+    } catch (InterruptedException e) {
+      // expected
+    }
+    deadline.close();
+    assertTrue(deadline.isExpired());
+    assertFalse("interrupt flag should be cleared", Thread.currentThread().isInterrupted());
+  }
+
+  @Test
+  public void testClosedDeadlineDoesNotExpire() throws Exception {
+    AtomicBoolean ran = new AtomicBoolean();
+    Watchdog.Deadline deadline = Watchdog.runAfter(50, () -> ran.set(true));
+    deadline.close();
+    Thread.sleep(200);
+    assertFalse(deadline.isExpired());
+    assertFalse(ran.get());
+  }
+}